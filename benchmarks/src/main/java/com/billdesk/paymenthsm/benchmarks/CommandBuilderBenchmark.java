@@ -0,0 +1,99 @@
+package com.billdesk.paymenthsm.benchmarks;
+
+import com.billdesk.paymenthsm.client.internal.core.CommandTemplate;
+import com.billdesk.paymenthsm.client.internal.core.HSMResultView;
+import com.billdesk.paymenthsm.client.internal.provider.utimaco.UtimacoCommandBuilder;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBuilderBenchmark {
+
+    private static final String KEY_BLOCK = "1A4B2C0DE0000000A1B2C3D4E5F60718293A4B5C6D7E8F90123456789ABCDEF0";
+    private static final String DATA = "4111111111111111250112345678901234";
+    private static final String CONTEXT_TAG = "BD_1718000000000_1a2b3c4d";
+
+    private final UtimacoCommandBuilder commandBuilder = new UtimacoCommandBuilder();
+    private String hmacCommand;
+    private CommandTemplate hmacTemplate;
+    private String cavvResponse;
+    private char[] hmacResponseFrame;
+    private final HSMResultView resultView = new HSMResultView();
+    private final byte[] hmac = new byte[32];
+    private final byte[] sendBuffer = new byte[512];
+
+    @Setup
+    public void setup() {
+        hmacCommand = commandBuilder.buildHMACCommand(KEY_BLOCK, DATA);
+        hmacTemplate = commandBuilder.hmacTemplate(KEY_BLOCK);
+        cavvResponse = "<6D#0A1B2C3D4E5F60718293A4B5C6D7#^" + CONTEXT_TAG + "#>";
+        hmacResponseFrame = ("<49B#" + "0A1B2C3D4E5F6071".repeat(4) + "#^" + CONTEXT_TAG + "#>").toCharArray();
+    }
+
+    @Benchmark
+    public String buildVisaCAVV() {
+        return commandBuilder.buildVisaCAVVCommand(KEY_BLOCK, DATA);
+    }
+
+    @Benchmark
+    public String buildHMAC() {
+        return commandBuilder.buildHMACCommand(KEY_BLOCK, DATA);
+    }
+
+    @Benchmark
+    public String renderHMACTemplate() {
+        return hmacTemplate.render(DATA);
+    }
+
+    // the frame as a connection wrote it before templates were encoded: render, embed the tag, encode
+    @Benchmark
+    public byte[] renderTagAndEncodeHMAC() {
+        return commandBuilder.embedContextTag(hmacTemplate.render(DATA), CONTEXT_TAG).getBytes(StandardCharsets.UTF_8);
+    }
+
+    // what a connection does now, straight into its send buffer
+    @Benchmark
+    public int encodeHMACTemplate() {
+        return hmacTemplate.encode(DATA, CONTEXT_TAG, sendBuffer, 0);
+    }
+
+    @Benchmark
+    public String embedContextTag() {
+        return commandBuilder.embedContextTag(hmacCommand, CONTEXT_TAG);
+    }
+
+    @Benchmark
+    public String extractContextTag() {
+        return commandBuilder.extractContextTag(cavvResponse);
+    }
+
+    @Benchmark
+    public String parseResponse() {
+        return commandBuilder.parseResponse(cavvResponse);
+    }
+
+    @Benchmark
+    public String extractContextTagInPlace() {
+        return commandBuilder.extractContextTag(hmacResponseFrame, 0, hmacResponseFrame.length);
+    }
+
+    @Benchmark
+    public String parseResponseInPlace() {
+        return commandBuilder.parseResponse(hmacResponseFrame, 0, hmacResponseFrame.length);
+    }
+
+    // what an HSMResultViewHandler sees, decoded straight into the caller's buffer
+    @Benchmark
+    public byte[] parseResponseViewDecodeHex() {
+        commandBuilder.parseResponse(hmacResponseFrame, 0, hmacResponseFrame.length, resultView);
+        resultView.decodeHex(hmac, 0);
+        return hmac;
+    }
+}
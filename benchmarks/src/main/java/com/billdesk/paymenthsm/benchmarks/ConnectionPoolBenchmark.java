@@ -0,0 +1,143 @@
+package com.billdesk.paymenthsm.benchmarks;
+
+import com.billdesk.paymenthsm.client.internal.config.HSMConfig;
+import com.billdesk.paymenthsm.client.internal.connection.AsyncSocketConnection;
+import com.billdesk.paymenthsm.client.internal.connection.AsyncSocketFactory;
+import com.billdesk.paymenthsm.client.internal.connection.ConnectionBag;
+import com.billdesk.paymenthsm.client.internal.model.HSMNode;
+import com.billdesk.paymenthsm.client.internal.provider.utimaco.UtimacoCommandBuilder;
+import com.billdesk.paymenthsm.simulator.SimulatorConfig;
+import com.billdesk.paymenthsm.simulator.UtimacoSimulator;
+import org.apache.commons.pool2.BasePooledObjectFactory;
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.impl.DefaultPooledObject;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Borrow + return cost of {@link ConnectionBag} against the GenericObjectPool it replaced, configured as
+ * HSMConnectionPool used to configure it. Connections are real sockets to an in-process simulator but no
+ * command is sent, so only pool overhead is measured. With fewer connections than threads it also covers
+ * handing connections to waiting threads.
+ * <p>
+ * As in the client, where the listener thread that reads the reply returns the connection, every benchmark
+ * thread hands its connection to a returner thread of its own instead of returning it itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(64)
+public class ConnectionPoolBenchmark {
+
+    @Param({"bag", "commons-pool2"})
+    public String pool;
+
+    @Param({"8", "64"})
+    public int connections;
+
+    private UtimacoSimulator hsm;
+    private ConnectionBag bag;
+    private GenericObjectPool<AsyncSocketConnection> commonsPool;
+
+    @Setup
+    public void setup() throws Exception {
+        hsm = UtimacoSimulator.start(new SimulatorConfig());
+        HSMNode node = new HSMNode();
+        node.setIp("127.0.0.1");
+        node.setPort(hsm.getPort());
+        HSMConfig config = new HSMConfig();
+        config.setWireTraceCapacity(0);
+        AsyncSocketFactory factory = new AsyncSocketFactory(node, config, new UtimacoCommandBuilder());
+        if ("bag".equals(pool)) {
+            bag = new ConnectionBag(factory, connections, connections);
+            bag.preparePool();
+        } else {
+            commonsPool = new GenericObjectPool<>(new BasePooledObjectFactory<>() {
+                @Override
+                public AsyncSocketConnection create() throws Exception {
+                    return factory.makeObject();
+                }
+
+                @Override
+                public PooledObject<AsyncSocketConnection> wrap(AsyncSocketConnection connection) {
+                    return new DefaultPooledObject<>(connection);
+                }
+
+                @Override
+                public void destroyObject(PooledObject<AsyncSocketConnection> p) {
+                    factory.destroyObject(p.getObject());
+                }
+
+                @Override
+                public boolean validateObject(PooledObject<AsyncSocketConnection> p) {
+                    return p.getObject().isConnected();
+                }
+            });
+            commonsPool.setMaxTotal(connections);
+            commonsPool.setMinIdle(connections);
+            commonsPool.setTestOnBorrow(true);
+            commonsPool.preparePool();
+        }
+    }
+
+    /**
+     * The listener thread of a benchmark thread, returns the connections it borrowed.
+     */
+    @State(Scope.Thread)
+    public static class Returner {
+
+        private final BlockingQueue<AsyncSocketConnection> borrowed = new ArrayBlockingQueue<>(1);
+        private Thread thread;
+
+        @Setup
+        public void setup(ConnectionPoolBenchmark benchmark) {
+            thread = new Thread(() -> {
+                try {
+                    while (true) {
+                        AsyncSocketConnection connection = borrowed.take();
+                        if (benchmark.bag != null) {
+                            benchmark.bag.returnObject(connection);
+                        } else {
+                            benchmark.commonsPool.returnObject(connection);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // tear down
+                }
+            }, "Returner");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @TearDown
+        public void tearDown() throws InterruptedException {
+            thread.interrupt();
+            thread.join();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (bag != null) {
+            bag.close();
+        } else {
+            commonsPool.close();
+        }
+        hsm.close();
+    }
+
+    @Benchmark
+    public boolean borrowAndReturn(Returner returner) throws Exception {
+        AsyncSocketConnection connection = bag != null ? bag.borrowObject() : commonsPool.borrowObject();
+        boolean connected = connection.isConnected();
+        returner.borrowed.put(connection);
+        return connected;
+    }
+}
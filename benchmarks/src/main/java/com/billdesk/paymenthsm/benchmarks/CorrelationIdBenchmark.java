@@ -0,0 +1,26 @@
+package com.billdesk.paymenthsm.benchmarks;
+
+import com.billdesk.paymenthsm.client.internal.core.CorrelationIdGenerator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CorrelationIdBenchmark {
+
+    @Benchmark
+    public String commandId() {
+        return CorrelationIdGenerator.commandId();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String commandIdContended() {
+        return CorrelationIdGenerator.commandId();
+    }
+}
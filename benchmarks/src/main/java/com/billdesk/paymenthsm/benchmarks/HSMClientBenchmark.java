@@ -0,0 +1,124 @@
+package com.billdesk.paymenthsm.benchmarks;
+
+import com.billdesk.paymenthsm.client.HSMClient;
+import com.billdesk.paymenthsm.client.internal.core.HSMCompletionHandler;
+import com.billdesk.paymenthsm.client.internal.core.HSMResultView;
+import com.billdesk.paymenthsm.client.internal.core.HSMResultViewHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End to end {@code generateHMAC} against in-process simulators over loopback. Thread count comes from
+ * {@code -t}, e.g. {@code -t 1}, {@code -t 16}, {@code -t max}. {@code generateHMACHandler} is the same call
+ * through the completion handler entry point and {@code generateHMACView} through a result view handler
+ * decoding into a reused buffer, compare them with {@code -prof gc}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class HSMClientBenchmark {
+
+    @Param({"1", "2"})
+    public int nodes;
+
+    @Param({"1", "4", "16"})
+    public int connections;
+
+    // simulated HSM service time per command
+    @Param({"0"})
+    public long hsmLatencyMicros;
+
+    private LoopbackHSM hsm;
+    private HSMClient client;
+    private final AtomicLong sequence = new AtomicLong();
+
+    @Setup
+    public void setup() throws Exception {
+        hsm = LoopbackHSM.start(nodes, connections, hsmLatencyMicros);
+        client = hsm.getClient();
+    }
+
+    @TearDown
+    public void tearDown() {
+        hsm.close();
+    }
+
+    @Benchmark
+    public String generateHMAC() {
+        return client.generateHMAC(LoopbackHSM.HMAC_KEY_NAME, "4111111111111111" + sequence.incrementAndGet()).join();
+    }
+
+    @Benchmark
+    public String generateHMACHandler(Caller caller) {
+        caller.reset();
+        client.generateHMAC(LoopbackHSM.HMAC_KEY_NAME, "4111111111111111" + sequence.incrementAndGet(), HANDLER, caller);
+        return caller.await();
+    }
+
+    @Benchmark
+    public byte[] generateHMACView(Caller caller) {
+        caller.reset();
+        client.generateHMAC(LoopbackHSM.HMAC_KEY_NAME, "4111111111111111" + sequence.incrementAndGet(), VIEW_HANDLER, caller);
+        caller.await();
+        return caller.hmac;
+    }
+
+    private static final HSMResultViewHandler<Caller> VIEW_HANDLER = new HSMResultViewHandler<>() {
+        @Override
+        public void completed(HSMResultView result, Caller caller) {
+            result.decodeHex(caller.hmac, 0);
+            caller.result = "";
+            LockSupport.unpark(caller.thread);
+        }
+
+        @Override
+        public void failed(Throwable error, Caller caller) {
+            caller.error = error;
+            LockSupport.unpark(caller.thread);
+        }
+    };
+
+    private static final HSMCompletionHandler<Caller> HANDLER = new HSMCompletionHandler<>() {
+        @Override
+        public void completed(String result, Caller caller) {
+            caller.result = result;
+            LockSupport.unpark(caller.thread);
+        }
+
+        @Override
+        public void failed(Throwable error, Caller caller) {
+            caller.error = error;
+            LockSupport.unpark(caller.thread);
+        }
+    };
+
+    @State(Scope.Thread)
+    public static class Caller {
+        private Thread thread;
+        private final byte[] hmac = new byte[32];
+        private volatile String result;
+        private volatile Throwable error;
+
+        void reset() {
+            thread = Thread.currentThread();
+            result = null;
+            error = null;
+        }
+
+        String await() {
+            while (result == null && error == null) {
+                LockSupport.park(this);
+            }
+            if (error != null) {
+                throw new IllegalStateException(error);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.billdesk.paymenthsm.benchmarks;
+
+import com.billdesk.paymenthsm.client.HSMClient;
+import com.billdesk.paymenthsm.client.internal.config.HSMConfig;
+import com.billdesk.paymenthsm.client.internal.enums.ACS_BANK;
+import com.billdesk.paymenthsm.client.internal.enums.Provider;
+import com.billdesk.paymenthsm.client.internal.loadbalancer.LoadBalancer;
+import com.billdesk.paymenthsm.client.internal.loadbalancer.LoadBalancingType;
+import com.billdesk.paymenthsm.client.internal.model.HSMNode;
+import com.billdesk.paymenthsm.client.internal.provider.utimaco.UtimacoCommandBuilder;
+import com.billdesk.paymenthsm.client.internal.provider.utimaco.UtimacoHSMService;
+import com.billdesk.paymenthsm.simulator.LatencyDistribution;
+import com.billdesk.paymenthsm.simulator.SimulatorConfig;
+import com.billdesk.paymenthsm.simulator.UtimacoSimulator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A fully wired {@link HSMClient} talking to {@code nodes} in-process simulators, or to real HSMs via
+ * {@link #connect}, shared by the benchmarks and the load generator.
+ */
+public class LoopbackHSM implements AutoCloseable {
+
+    public static final String HMAC_KEY_NAME = "BENCH_HMAC";
+
+    private final List<UtimacoSimulator> simulators;
+    private final HSMConfig config;
+    private final LoadBalancer loadBalancer;
+    private final HSMClient client;
+
+    private LoopbackHSM(List<UtimacoSimulator> simulators, HSMConfig config, Map<String, String> keyBlocks) {
+        this.simulators = simulators;
+        this.config = config;
+        UtimacoCommandBuilder commandBuilder = new UtimacoCommandBuilder();
+        this.loadBalancer = new LoadBalancer(config, commandBuilder);
+        this.client = new HSMClient(config, loadBalancer,
+                new UtimacoHSMService(config, loadBalancer, commandBuilder, keyBlocks));
+    }
+
+    public static LoopbackHSM start(int nodes, int connections, long hsmLatencyMicros) throws IOException {
+        SimulatorConfig simulatorConfig = new SimulatorConfig();
+        simulatorConfig.setDefaultLatency(LatencyDistribution.fixed(hsmLatencyMicros));
+        return start(nodes, connections, simulatorConfig, LoadBalancingType.CLIENT_SIDE_ROUND_ROBIN);
+    }
+
+    public static LoopbackHSM start(int nodes, int connections, SimulatorConfig simulatorConfig,
+                                    LoadBalancingType loadBalancingType) throws IOException {
+        List<UtimacoSimulator> simulators = new ArrayList<>();
+        List<HSMNode> hsmNodes = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            UtimacoSimulator simulator = UtimacoSimulator.start(simulatorConfig);
+            simulators.add(simulator);
+            HSMNode node = new HSMNode();
+            node.setIp("127.0.0.1");
+            node.setPort(simulator.getPort());
+            hsmNodes.add(node);
+        }
+        return new LoopbackHSM(simulators, clientConfig(hsmNodes, connections, loadBalancingType), keyBlocks());
+    }
+
+    public static LoopbackHSM connect(List<HSMNode> hsmNodes, int connections, Map<String, String> keyBlocks,
+                                      LoadBalancingType loadBalancingType) {
+        return new LoopbackHSM(List.of(), clientConfig(hsmNodes, connections, loadBalancingType), keyBlocks);
+    }
+
+    private static HSMConfig clientConfig(List<HSMNode> hsmNodes, int connections, LoadBalancingType loadBalancingType) {
+        HSMConfig config = new HSMConfig();
+        config.setProvider(Provider.UTIMACO);
+        config.setLoadBalancingType(loadBalancingType);
+        config.setHsmNodes(hsmNodes);
+        config.setMaxConnections(connections);
+        config.setIdleConnections(connections);
+        config.validate();
+        return config;
+    }
+
+    public static Map<String, String> keyBlocks() {
+        Map<String, String> keyBlocks = new HashMap<>();
+        keyBlocks.put(HMAC_KEY_NAME, "1A4B2C0DE0000000A1B2C3D4E5F60718293A4B5C6D7E8F90123456789ABCDEF0");
+        for (ACS_BANK bank : ACS_BANK.values()) {
+            keyBlocks.put(bank.name() + "_VISA_CAVV_GEN", "V" + bank.name() + "0000000000000000000000000000000");
+            keyBlocks.put(bank.name() + "_MASTERCARD_CAVV_GEN", "M" + bank.name() + "0000000000000000000000000000000");
+        }
+        return keyBlocks;
+    }
+
+    public HSMClient getClient() {
+        return client;
+    }
+
+    public LoadBalancer getLoadBalancer() {
+        return loadBalancer;
+    }
+
+    public HSMConfig getConfig() {
+        return config;
+    }
+
+    public List<UtimacoSimulator> getSimulators() {
+        return simulators;
+    }
+
+    @Override
+    public void close() {
+        client.shutdown();
+        simulators.forEach(UtimacoSimulator::close);
+    }
+}
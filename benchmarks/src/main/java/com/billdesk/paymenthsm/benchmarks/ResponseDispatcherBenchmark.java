@@ -0,0 +1,58 @@
+package com.billdesk.paymenthsm.benchmarks;
+
+import com.billdesk.paymenthsm.client.internal.core.ResponseDispatcher;
+import com.billdesk.paymenthsm.client.internal.model.HSMNode;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Register + complete round trip on a single dispatcher, which is what every command on one
+ * connection does. Run with -t to add contention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseDispatcherBenchmark {
+
+    private ResponseDispatcher dispatcher;
+    private final AtomicLong ids = new AtomicLong();
+
+    @Setup
+    public void setup() {
+        HSMNode node = new HSMNode();
+        node.setIp("127.0.0.1");
+        node.setPort(1500);
+        dispatcher = new ResponseDispatcher(node);
+    }
+
+    @TearDown
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String registerAndComplete() {
+        return roundTrip();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String registerAndCompleteContended() {
+        return roundTrip();
+    }
+
+    private String roundTrip() {
+        String correlationId = "BD_" + ids.incrementAndGet();
+        CompletableFuture<String> future = new CompletableFuture<>();
+        dispatcher.registerRequest(correlationId, future, 1000);
+        dispatcher.completeResponse(correlationId, correlationId);
+        return future.join();
+    }
+}
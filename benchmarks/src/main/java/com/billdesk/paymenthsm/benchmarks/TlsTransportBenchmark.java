@@ -0,0 +1,83 @@
+package com.billdesk.paymenthsm.benchmarks;
+
+import com.billdesk.paymenthsm.client.internal.config.HSMConfig;
+import com.billdesk.paymenthsm.client.internal.connection.AsyncSocketConnection;
+import com.billdesk.paymenthsm.client.internal.connection.AsyncSocketFactory;
+import com.billdesk.paymenthsm.client.internal.model.HSMNode;
+import com.billdesk.paymenthsm.client.internal.provider.utimaco.UtimacoCommandBuilder;
+import com.billdesk.paymenthsm.simulator.SelfSignedTls;
+import com.billdesk.paymenthsm.simulator.SimulatorConfig;
+import com.billdesk.paymenthsm.simulator.UtimacoSimulator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of TLS against plain sockets, with an in-process simulator as the TLS stand-in for the HSM.
+ * {@code connect} opens and closes a connection, after the first one every TLS connect resumes the cached
+ * session, as reconnects of the client do. {@code roundTrip} sends one HMAC command on an open connection and
+ * waits for the reply, the difference to plain is the per-frame encryption overhead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsTransportBenchmark {
+
+    private static final String KEY_BLOCK = "1A4B2C0DE0000000A1B2C3D4E5F60718293A4B5C6D7E8F90123456789ABCDEF0";
+    private static final String DATA = "4111111111111111250112345678901234";
+
+    @Param({"plain", "TLSv1.3", "TLSv1.2"})
+    public String transport;
+
+    private UtimacoSimulator hsm;
+    private AsyncSocketFactory factory;
+    private AsyncSocketConnection connection;
+    private String hmacCommand;
+    private long tag;
+
+    @Setup
+    public void setup() throws Exception {
+        HSMConfig config = new HSMConfig();
+        config.setWireTraceCapacity(0);
+        if ("plain".equals(transport)) {
+            hsm = UtimacoSimulator.start(new SimulatorConfig());
+        } else {
+            SelfSignedTls tls = SelfSignedTls.create();
+            hsm = UtimacoSimulator.startTls(new SimulatorConfig(), tls.serverContext());
+            config.setTlsEnabled(true);
+            config.setTlsTrustStore(tls.getTrustStore().toString());
+            config.setTlsTrustStorePassword(SelfSignedTls.PASSWORD);
+            config.setTlsProtocols(List.of(transport));
+        }
+        HSMNode node = new HSMNode();
+        node.setIp("127.0.0.1");
+        node.setPort(hsm.getPort());
+        UtimacoCommandBuilder commandBuilder = new UtimacoCommandBuilder();
+        factory = new AsyncSocketFactory(node, config, commandBuilder);
+        connection = factory.makeObject();
+        hmacCommand = commandBuilder.buildHMACCommand(KEY_BLOCK, DATA);
+    }
+
+    @TearDown
+    public void tearDown() {
+        factory.destroyObject(connection);
+        hsm.close();
+    }
+
+    @Benchmark
+    public boolean connect() throws Exception {
+        AsyncSocketConnection opened = factory.makeObject();
+        boolean connected = opened.isConnected();
+        factory.destroyObject(opened);
+        return connected;
+    }
+
+    @Benchmark
+    public String roundTrip() {
+        return connection.sendCommandToHSM(hmacCommand, "BENCH_" + tag++).join();
+    }
+}
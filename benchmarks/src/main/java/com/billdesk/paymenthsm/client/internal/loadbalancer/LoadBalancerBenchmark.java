@@ -0,0 +1,52 @@
+package com.billdesk.paymenthsm.client.internal.loadbalancer;
+
+import com.billdesk.paymenthsm.benchmarks.LoopbackHSM;
+import com.billdesk.paymenthsm.client.internal.connection.HSMConnectionPool;
+import com.billdesk.paymenthsm.simulator.SimulatorConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of picking a pool in {@link LoadBalancer#getNextHealthyPool()}. Lives in the load balancer
+ * package because selection is package-private.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoadBalancerBenchmark {
+
+    @Param({"1", "4"})
+    public int nodes;
+
+    @Param({"CLIENT_SIDE_ROUND_ROBIN", "CLIENT_SIDE_FAILOVER"})
+    public LoadBalancingType loadBalancingType;
+
+    private LoopbackHSM hsm;
+    private LoadBalancer loadBalancer;
+
+    @Setup
+    public void setup() throws Exception {
+        hsm = LoopbackHSM.start(nodes, 1, new SimulatorConfig(), loadBalancingType);
+        loadBalancer = hsm.getLoadBalancer();
+    }
+
+    @TearDown
+    public void tearDown() {
+        hsm.close();
+    }
+
+    @Benchmark
+    public HSMConnectionPool select() {
+        return loadBalancer.getNextHealthyPool();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public HSMConnectionPool selectContended() {
+        return loadBalancer.getNextHealthyPool();
+    }
+}
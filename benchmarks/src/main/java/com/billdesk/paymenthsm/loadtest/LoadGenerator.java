@@ -0,0 +1,244 @@
+package com.billdesk.paymenthsm.loadtest;
+
+import com.billdesk.paymenthsm.benchmarks.LoopbackHSM;
+import com.billdesk.paymenthsm.client.HSMClient;
+import com.billdesk.paymenthsm.client.internal.connection.HSMConnectionPool;
+import com.billdesk.paymenthsm.client.internal.exception.HSMException;
+import com.billdesk.paymenthsm.client.internal.model.HSMNode;
+import com.billdesk.paymenthsm.simulator.SimulatorConfig;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives an {@link HSMClient} at a fixed arrival rate (open loop) or fixed concurrency (closed loop) and
+ * reports latency percentiles, errors per {@link HSMException} subtype and the per-node split.
+ * <p>
+ * In open loop every request has an intended send time on a fixed schedule and latency is measured from
+ * that time, not from when the call was actually made, so stalls in the client (e.g. waiting in
+ * {@code borrowObject}) show up in the numbers instead of silently lowering the offered rate.
+ * <pre>
+ * java -cp benchmarks.jar com.billdesk.paymenthsm.loadtest.LoadGenerator mode=open tps=5000 duration=60
+ * java -cp benchmarks.jar com.billdesk.paymenthsm.loadtest.LoadGenerator mode=closed concurrency=64 \
+ *     nodes=10.0.0.1:1500,10.0.0.2:1500 keyBlocks=keys.properties keyName=MY_HMAC connections=8
+ * </pre>
+ */
+public class LoadGenerator {
+
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    private final LoadTestOptions options;
+    private final HSMClient client;
+    private final List<HSMConnectionPool> pools;
+    private final Histogram latencies = new ConcurrentHistogram(HIGHEST_TRACKABLE_NANOS, 3);
+    private final LongAdder successes = new LongAdder();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private final AtomicLong outstanding = new AtomicLong();
+    private final Map<String, Long> perNode = new LinkedHashMap<>();
+    private volatile boolean recording;
+
+    public LoadGenerator(LoadTestOptions options, HSMClient client, List<HSMConnectionPool> pools) {
+        this.options = options;
+        this.client = client;
+        this.pools = pools;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTestOptions options = LoadTestOptions.parse(args);
+        try (LoopbackHSM hsm = connect(options)) {
+            LoadGenerator generator = new LoadGenerator(options, hsm.getClient(), hsm.getLoadBalancer().getNodePools());
+            generator.run();
+            generator.report(System.out);
+        }
+        System.exit(0);
+    }
+
+    private static LoopbackHSM connect(LoadTestOptions options) throws IOException {
+        if (options.getNodes() == null || options.getNodes().isBlank()) {
+            SimulatorConfig simulatorConfig = new SimulatorConfig();
+            simulatorConfig.setDefaultLatency(options.getSimulatorLatency());
+            if (options.getKeyName() == null) {
+                options.setKeyName(LoopbackHSM.HMAC_KEY_NAME);
+            }
+            return LoopbackHSM.start(options.getSimulatorNodes(), options.getConnections(), simulatorConfig,
+                    options.getLoadBalancingType());
+        }
+        List<HSMNode> nodes = new ArrayList<>();
+        for (String address : options.getNodes().split(",")) {
+            String[] parts = address.trim().split(":");
+            HSMNode node = new HSMNode();
+            node.setIp(parts[0]);
+            node.setPort(Integer.parseInt(parts[1]));
+            nodes.add(node);
+        }
+        if (options.getKeyBlocksFile() == null) {
+            throw new IllegalArgumentException("keyBlocks=<file> is required when running against real nodes");
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(options.getKeyBlocksFile())) {
+            properties.load(in);
+        }
+        Map<String, String> keyBlocks = new LinkedHashMap<>();
+        properties.stringPropertyNames().forEach(name -> keyBlocks.put(name, properties.getProperty(name)));
+        return LoopbackHSM.connect(nodes, options.getConnections(), keyBlocks, options.getLoadBalancingType());
+    }
+
+    public void run() throws InterruptedException {
+        long warmupNanos = TimeUnit.SECONDS.toNanos(options.getWarmupSeconds());
+        long totalNanos = warmupNanos + TimeUnit.SECONDS.toNanos(options.getDurationSeconds());
+        long startNanos = System.nanoTime();
+        long[] baseline = new long[pools.size()];
+
+        List<Thread> workers = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(options.getConcurrency());
+        AtomicLong ticket = new AtomicLong();
+        for (int i = 0; i < options.getConcurrency(); i++) {
+            Runnable loop = options.getMode() == LoadTestOptions.Mode.OPEN
+                    ? () -> openLoop(ticket, startNanos, totalNanos)
+                    : () -> closedLoop(startNanos, totalNanos);
+            Thread worker = new Thread(() -> {
+                try {
+                    loop.run();
+                } finally {
+                    done.countDown();
+                }
+            }, "HSM-Load-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+        }
+        workers.forEach(Thread::start);
+
+        LockSupport.parkNanos(warmupNanos);
+        for (int i = 0; i < pools.size(); i++) {
+            baseline[i] = pools.get(i).getCommandsExecuted();
+        }
+        latencies.reset();
+        recording = true;
+        done.await();
+        long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (outstanding.get() > 0 && System.nanoTime() < drainDeadline) {
+            Thread.sleep(10);
+        }
+        recording = false;
+        for (int i = 0; i < pools.size(); i++) {
+            perNode.put(pools.get(i).getNode().getIp() + ":" + pools.get(i).getNode().getPort(),
+                    pools.get(i).getCommandsExecuted() - baseline[i]);
+        }
+    }
+
+    private void openLoop(AtomicLong ticket, long startNanos, long totalNanos) {
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / options.getTargetTps();
+        while (true) {
+            long intendedStart = startNanos + ticket.getAndIncrement() * intervalNanos;
+            if (intendedStart - startNanos >= totalNanos) {
+                return;
+            }
+            long wait;
+            while ((wait = intendedStart - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            issue(intendedStart);
+        }
+    }
+
+    private void closedLoop(long startNanos, long totalNanos) {
+        while (System.nanoTime() - startNanos < totalNanos) {
+            CompletableFuture<String> future = issue(System.nanoTime());
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException ignored) {
+                // already counted by the completion callback
+            }
+        }
+    }
+
+    private CompletableFuture<String> issue(long intendedStart) {
+        boolean counted = recording;
+        outstanding.incrementAndGet();
+        CompletableFuture<String> future;
+        try {
+            future = send(randomData());
+        } catch (Exception e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        return future.whenComplete((result, error) -> {
+            outstanding.decrementAndGet();
+            if (!counted || !recording) {
+                return;
+            }
+            latencies.recordValue(Math.min(System.nanoTime() - intendedStart, HIGHEST_TRACKABLE_NANOS));
+            if (error == null) {
+                successes.increment();
+            } else {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                errors.computeIfAbsent(cause.getClass().getSimpleName(), name -> new LongAdder()).increment();
+            }
+        });
+    }
+
+    private CompletableFuture<String> send(String data) {
+        return switch (options.getOperation()) {
+            case HMAC -> client.generateHMAC(options.getKeyName(), data);
+            case VISA_CAVV -> client.generateVisaCAVV(options.getBank(), data);
+            case MASTER_CAVV -> client.generateMasterCAVV(options.getBank(), data);
+        };
+    }
+
+    private String randomData() {
+        char[] data = new char[options.getDataLength()];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < data.length; i++) {
+            data[i] = Character.forDigit(random.nextInt(16), 16);
+        }
+        return new String(data).toUpperCase();
+    }
+
+    public void report(PrintStream out) throws IOException {
+        long total = latencies.getTotalCount();
+        double seconds = options.getDurationSeconds();
+        out.printf("%nMode %s, operation %s, %s%n", options.getMode(), options.getOperation(),
+                options.getMode() == LoadTestOptions.Mode.OPEN
+                        ? "target " + options.getTargetTps() + " TPS"
+                        : options.getConcurrency() + " concurrent callers");
+        out.printf("Requests %d, ok %d, failed %d, achieved %.1f TPS%n", total, successes.sum(),
+                total - successes.sum(), total / seconds);
+        out.println("Latency (ms)" + (options.getMode() == LoadTestOptions.Mode.OPEN ? " from intended send time" : ""));
+        for (double percentile : new double[]{50, 90, 99, 99.9, 99.99}) {
+            out.printf("  p%-6s %10.3f%n", percentile, latencies.getValueAtPercentile(percentile) / 1e6);
+        }
+        out.printf("  max     %10.3f%n", latencies.getMaxValue() / 1e6);
+        if (!errors.isEmpty()) {
+            out.println("Errors");
+            errors.forEach((type, count) -> out.printf("  %-32s %d%n", type, count.sum()));
+        }
+        out.println("Commands per node");
+        perNode.forEach((node, count) -> out.printf("  %-24s %d%n", node, count));
+        if (options.getHistogramOutput() != null) {
+            try (PrintStream histogram = new PrintStream(options.getHistogramOutput())) {
+                latencies.outputPercentileDistribution(histogram, 1e6);
+            }
+        }
+    }
+}
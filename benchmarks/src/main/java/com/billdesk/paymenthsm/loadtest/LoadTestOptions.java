@@ -0,0 +1,82 @@
+package com.billdesk.paymenthsm.loadtest;
+
+import com.billdesk.paymenthsm.client.internal.enums.ACS_BANK;
+import com.billdesk.paymenthsm.client.internal.loadbalancer.LoadBalancingType;
+import com.billdesk.paymenthsm.simulator.LatencyDistribution;
+import lombok.Getter;
+import lombok.Setter;
+
+@Getter
+@Setter
+public class LoadTestOptions {
+
+    public enum Mode {
+        // fixed arrival rate, latency measured from the intended send time
+        OPEN,
+        // fixed number of callers each waiting for its previous response
+        CLOSED
+    }
+
+    public enum Operation {
+        HMAC, VISA_CAVV, MASTER_CAVV
+    }
+
+    private Mode mode = Mode.OPEN;
+    private Operation operation = Operation.HMAC;
+    private int targetTps = 1000;
+    // caller threads in CLOSED mode, sender threads in OPEN mode
+    private int concurrency = 16;
+    private long durationSeconds = 30;
+    private long warmupSeconds = 5;
+    // comma separated host:port list, empty runs against in-process simulators
+    private String nodes = "";
+    private int simulatorNodes = 2;
+    private LatencyDistribution simulatorLatency = LatencyDistribution.uniform(1000, 3000);
+    private int connections = 4;
+    private LoadBalancingType loadBalancingType = LoadBalancingType.CLIENT_SIDE_ROUND_ROBIN;
+    // properties file of keyName=keyBlock, required with real nodes
+    private String keyBlocksFile;
+    private String keyName;
+    private ACS_BANK bank = ACS_BANK.SBI;
+    private int dataLength = 32;
+    // optional file to write the full HdrHistogram percentile distribution to
+    private String histogramOutput;
+
+    public static LoadTestOptions parse(String[] args) {
+        LoadTestOptions options = new LoadTestOptions();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected key=value but got " + arg);
+            }
+            String key = arg.substring(0, eq);
+            String value = arg.substring(eq + 1);
+            switch (key) {
+                case "mode" -> options.setMode(Mode.valueOf(value.toUpperCase()));
+                case "operation" -> options.setOperation(Operation.valueOf(value.toUpperCase()));
+                case "tps" -> options.setTargetTps(Integer.parseInt(value));
+                case "concurrency" -> options.setConcurrency(Integer.parseInt(value));
+                case "duration" -> options.setDurationSeconds(Long.parseLong(value));
+                case "warmup" -> options.setWarmupSeconds(Long.parseLong(value));
+                case "nodes" -> options.setNodes(value);
+                case "simulatorNodes" -> options.setSimulatorNodes(Integer.parseInt(value));
+                case "simulatorLatency" -> options.setSimulatorLatency(LatencyDistribution.parse(value));
+                case "connections" -> options.setConnections(Integer.parseInt(value));
+                case "loadBalancing" -> options.setLoadBalancingType(LoadBalancingType.valueOf(value.toUpperCase()));
+                case "keyBlocks" -> options.setKeyBlocksFile(value);
+                case "keyName" -> options.setKeyName(value);
+                case "bank" -> options.setBank(ACS_BANK.valueOf(value.toUpperCase()));
+                case "dataLength" -> options.setDataLength(Integer.parseInt(value));
+                case "histogram" -> options.setHistogramOutput(value);
+                default -> throw new IllegalArgumentException("Unknown load test option " + key);
+            }
+        }
+        if (options.getMode() == Mode.OPEN && options.getTargetTps() <= 0) {
+            throw new IllegalArgumentException("tps must be positive in OPEN mode");
+        }
+        if (options.getConcurrency() <= 0) {
+            throw new IllegalArgumentException("concurrency must be positive");
+        }
+        return options;
+    }
+}
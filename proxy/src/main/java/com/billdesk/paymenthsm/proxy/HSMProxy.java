@@ -0,0 +1,344 @@
+package com.billdesk.paymenthsm.proxy;
+
+import com.billdesk.paymenthsm.client.internal.config.HSMConfig;
+import com.billdesk.paymenthsm.client.internal.core.CommandBuilder;
+import com.billdesk.paymenthsm.client.internal.core.CorrelationIdGenerator;
+import com.billdesk.paymenthsm.client.internal.enums.Provider;
+import com.billdesk.paymenthsm.client.internal.exception.HSMNoHealthyNodeException;
+import com.billdesk.paymenthsm.client.internal.exception.HSMOverloadedException;
+import com.billdesk.paymenthsm.client.internal.exception.HSMRequestTimeoutException;
+import com.billdesk.paymenthsm.client.internal.exception.HSMSocketTimeoutException;
+import com.billdesk.paymenthsm.client.internal.exception.HSMUnhealthyNodeException;
+import com.billdesk.paymenthsm.client.internal.loadbalancer.LoadBalancer;
+import com.billdesk.paymenthsm.client.internal.loadbalancer.LoadBalancingType;
+import com.billdesk.paymenthsm.client.internal.model.HSMNode;
+import com.billdesk.paymenthsm.client.internal.provider.utimaco.UtimacoCommandBuilder;
+import com.billdesk.paymenthsm.client.internal.trace.WireTraceBuffer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Local proxy that lets many application instances share a few HSM connections. It accepts the provider's
+ * framed protocol from any number of clients and forwards each command through a {@link LoadBalancer}, so
+ * upstream connections, health checks, failover and slow start behave exactly as in the client library.
+ * <p>
+ * Client context tags are only unique per client connection, so every forwarded command gets a fresh
+ * upstream tag and the reply is rewritten back to the client's tag. A command that fails upstream is answered
+ * with an {@code <ER#PROXY_...#^tag#>} error frame, so the client fails it at once instead of at its timeout.
+ * A client that sends a frame longer than {@value #MAX_FRAME_LENGTH} characters is disconnected.
+ * <p>
+ * Replies are queued to a writer thread per client, the upstream listener threads never write to a client
+ * socket, so a client that reads slowly cannot stall the commands of others sharing its upstream connection. A
+ * client whose queue fills up is disconnected.
+ * <p>
+ * Can be run standalone, see {@link #main(String[])}.
+ */
+@Slf4j
+public class HSMProxy implements AutoCloseable {
+
+    // replies waiting for a slow client before it is disconnected
+    private static final int MAX_QUEUED_REPLIES = 4096;
+    // far above any command the client builds, a client without a closing '>' must not grow the buffer forever
+    static final int MAX_FRAME_LENGTH = 8192;
+
+    private final LoadBalancer loadBalancer;
+    private final CommandBuilder commandBuilder;
+    private final ServerSocket serverSocket;
+    private final Set<ClientConnection> clients = ConcurrentHashMap.newKeySet();
+    private final Thread acceptThread;
+    private volatile boolean running = true;
+
+    private final LongAdder commandsForwarded = new LongAdder();
+    private final LongAdder repliesSent = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final AtomicInteger connectionsAccepted = new AtomicInteger();
+
+    public HSMProxy(HSMConfig config, CommandBuilder commandBuilder, String bindAddress, int port) throws IOException {
+        this.commandBuilder = commandBuilder;
+        this.loadBalancer = new LoadBalancer(config, new RawResponseCommandBuilder(commandBuilder));
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.setReuseAddress(true);
+        this.serverSocket.bind(new InetSocketAddress(InetAddress.getByName(bindAddress), port), 512);
+        this.acceptThread = new Thread(this::acceptLoop, "HSM-Proxy-Acceptor-" + getPort());
+        this.acceptThread.setDaemon(true);
+        this.acceptThread.start();
+        log.info("HSM proxy listening on {}:{}, forwarding to {} HSM nodes", bindAddress, getPort(), config.getHsmNodes().size());
+    }
+
+    public static HSMProxy start(HSMConfig config, String bindAddress, int port) throws IOException {
+        switch (config.getProvider()) {
+            case UTIMACO:
+                return new HSMProxy(config, new UtimacoCommandBuilder(), bindAddress, port);
+            default:
+                throw new IllegalArgumentException("Unsupported provider: " + config.getProvider());
+        }
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public LoadBalancer getLoadBalancer() {
+        return loadBalancer;
+    }
+
+    public long getCommandsForwarded() {
+        return commandsForwarded.sum();
+    }
+
+    public long getRepliesSent() {
+        return repliesSent.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    public int getConnectionsAccepted() {
+        return connectionsAccepted.get();
+    }
+
+    public int getOpenConnections() {
+        return clients.size();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                ClientConnection client = new ClientConnection(socket);
+                clients.add(client);
+                connectionsAccepted.incrementAndGet();
+                Thread reader = new Thread(() -> serve(client), "HSM-Proxy-Conn-" + socket.getPort());
+                reader.setDaemon(true);
+                reader.start();
+                client.writer.start();
+            } catch (IOException e) {
+                if (running) {
+                    log.warn("Proxy failed to accept connection", e);
+                }
+            }
+        }
+    }
+
+    private void serve(ClientConnection client) {
+        try (InputStream in = client.socket.getInputStream()) {
+            StringBuilder frame = new StringBuilder(256);
+            byte[] buffer = new byte[4096];
+            int read;
+            while (running && (read = in.read(buffer)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    char c = (char) (buffer[i] & 0xFF);
+                    if (frame.length() == 0 && c != '<') {
+                        continue;
+                    }
+                    if (frame.length() == MAX_FRAME_LENGTH) {
+                        failures.increment();
+                        log.warn("Proxy client {} sent a frame longer than {} characters, disconnecting it", client.socket.getPort(), MAX_FRAME_LENGTH);
+                        return;
+                    }
+                    frame.append(c);
+                    if (c == '>') {
+                        String command = frame.toString();
+                        frame.setLength(0);
+                        forward(client, command);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.debug("Proxy client connection {} closed: {}", client.socket.getPort(), e.getMessage());
+        } finally {
+            client.close();
+        }
+    }
+
+    private void forward(ClientConnection client, String frame) {
+        String clientTag = commandBuilder.extractContextTag(frame);
+        String command = clientTag == null ? frame : stripContextTag(frame, clientTag);
+        String upstreamTag = CorrelationIdGenerator.commandId();
+        commandsForwarded.increment();
+        loadBalancer.executeCommand(command, upstreamTag).whenComplete((reply, error) -> {
+            if (error != null) {
+                failures.increment();
+                log.warn("Failing command {} from client {}: {}", WireTraceBuffer.redact(frame), client.socket.getPort(), error.getMessage());
+                client.reply((errorFrame(error, clientTag) + "\n").getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            client.reply((retag(reply, upstreamTag, clientTag) + "\n").getBytes(StandardCharsets.UTF_8));
+        });
+    }
+
+    static String errorFrame(Throwable error, String clientTag) {
+        return "<ER#" + errorCode(error) + (clientTag == null ? "#>" : "#^" + clientTag + "#>");
+    }
+
+    private static String errorCode(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof HSMOverloadedException) {
+            return "PROXY_OVERLOADED";
+        }
+        if (cause instanceof HSMNoHealthyNodeException || cause instanceof HSMUnhealthyNodeException) {
+            return "PROXY_NO_HEALTHY_NODE";
+        }
+        if (cause instanceof HSMRequestTimeoutException || cause instanceof HSMSocketTimeoutException) {
+            return "PROXY_TIMEOUT";
+        }
+        return "PROXY_UPSTREAM_FAILED";
+    }
+
+    static String stripContextTag(String frame, String tag) {
+        int start = frame.lastIndexOf("#^" + tag);
+        return start < 0 ? frame : frame.substring(0, start) + frame.substring(start + 2 + tag.length());
+    }
+
+    static String retag(String reply, String upstreamTag, String clientTag) {
+        int start = reply.lastIndexOf("#^" + upstreamTag);
+        if (start < 0) {
+            return reply;
+        }
+        String replacement = clientTag == null ? "" : "#^" + clientTag;
+        return reply.substring(0, start) + replacement + reply.substring(start + 2 + upstreamTag.length());
+    }
+
+    /**
+     * One client socket and the thread that writes its replies.
+     */
+    private final class ClientConnection {
+
+        private final Socket socket;
+        private final BlockingQueue<byte[]> replies = new ArrayBlockingQueue<>(MAX_QUEUED_REPLIES);
+        private final Thread writer;
+
+        private ClientConnection(Socket socket) {
+            this.socket = socket;
+            this.writer = new Thread(this::writeLoop, "HSM-Proxy-Writer-" + socket.getPort());
+            this.writer.setDaemon(true);
+        }
+
+        // on an upstream listener thread, must not block
+        private void reply(byte[] bytes) {
+            if (!replies.offer(bytes)) {
+                failures.increment();
+                log.warn("Proxy client {} is not reading its replies, {} queued, disconnecting it", socket.getPort(), MAX_QUEUED_REPLIES);
+                close();
+            }
+        }
+
+        private void writeLoop() {
+            try {
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 8192);
+                while (!socket.isClosed()) {
+                    byte[] reply = replies.take();
+                    // everything already queued goes out with one flush
+                    do {
+                        out.write(reply);
+                        repliesSent.increment();
+                    } while ((reply = replies.poll()) != null);
+                    out.flush();
+                }
+            } catch (InterruptedException e) {
+                // closed
+            } catch (IOException e) {
+                log.debug("Proxy failed to reply to client {}: {}", socket.getPort(), e.getMessage());
+            } finally {
+                close();
+            }
+        }
+
+        private void close() {
+            clients.remove(this);
+            closeQuietly(socket);
+            writer.interrupt();
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+        }
+        for (ClientConnection client : clients) {
+            client.close();
+        }
+        loadBalancer.shutdown();
+    }
+
+    /**
+     * Standalone mode, arguments are key=value pairs:
+     * <pre>
+     * port=1600 bind=127.0.0.1 nodes=10.0.0.1:1500,10.0.0.2:1500 lb=CLIENT_SIDE_ROUND_ROBIN connections=4
+     * </pre>
+     * {@code vip=host:port} with {@code lb=NETWORK_LEVEL} replaces {@code nodes}.
+     */
+    public static void main(String[] args) throws Exception {
+        HSMConfig config = new HSMConfig();
+        config.setProvider(Provider.UTIMACO);
+        config.setLoadBalancingType(LoadBalancingType.CLIENT_SIDE_ROUND_ROBIN);
+        int port = 1600;
+        String bind = "127.0.0.1";
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected key=value but got " + arg);
+            }
+            String key = arg.substring(0, eq);
+            String value = arg.substring(eq + 1);
+            switch (key) {
+                case "port" -> port = Integer.parseInt(value);
+                case "bind" -> bind = value;
+                case "nodes" -> config.setHsmNodes(parseNodes(value));
+                case "vip" -> config.setVip(value);
+                case "lb" -> config.setLoadBalancingType(LoadBalancingType.valueOf(value));
+                case "connections" -> {
+                    config.setMaxConnections(Integer.parseInt(value));
+                    config.setIdleConnections(Integer.parseInt(value));
+                }
+                default -> throw new IllegalArgumentException("Unknown proxy option " + key);
+            }
+        }
+        config.validate();
+        HSMProxy proxy = start(config, bind, port);
+        Runtime.getRuntime().addShutdownHook(new Thread(proxy::close));
+        Thread.currentThread().join();
+    }
+
+    private static List<HSMNode> parseNodes(String value) {
+        List<HSMNode> nodes = new ArrayList<>();
+        for (String address : value.split(",")) {
+            String[] parts = address.trim().split(":");
+            HSMNode node = new HSMNode();
+            node.setIp(parts[0]);
+            node.setPort(Integer.parseInt(parts[1]));
+            nodes.add(node);
+        }
+        return nodes;
+    }
+}
@@ -0,0 +1,67 @@
+package com.billdesk.paymenthsm.proxy;
+
+import com.billdesk.paymenthsm.client.internal.core.CommandBuilder;
+import com.billdesk.paymenthsm.client.internal.core.CommandTemplate;
+
+/**
+ * Delegating builder that completes requests with the whole response frame instead of the parsed result,
+ * so the proxy can hand the HSM's reply back to its client as is.
+ */
+class RawResponseCommandBuilder implements CommandBuilder {
+
+    private final CommandBuilder delegate;
+
+    RawResponseCommandBuilder(CommandBuilder delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public String parseResponse(String rawResponse) {
+        return rawResponse.trim();
+    }
+
+    @Override
+    public String extractContextTag(String rawResponse) {
+        return delegate.extractContextTag(rawResponse);
+    }
+
+    @Override
+    public String embedContextTag(String command, String contextTag) {
+        return delegate.embedContextTag(command, contextTag);
+    }
+
+    @Override
+    public String buildHSMPingCommand() {
+        return delegate.buildHSMPingCommand();
+    }
+
+    @Override
+    public String buildVisaCAVVCommand(String keyBlock, String data) {
+        return delegate.buildVisaCAVVCommand(keyBlock, data);
+    }
+
+    @Override
+    public String buildMasterCAVVCommand(String keyBlock, String data) {
+        return delegate.buildMasterCAVVCommand(keyBlock, data);
+    }
+
+    @Override
+    public String buildHMACCommand(String keyBlock, String data) {
+        return delegate.buildHMACCommand(keyBlock, data);
+    }
+
+    @Override
+    public CommandTemplate visaCAVVTemplate(String keyBlock) {
+        return delegate.visaCAVVTemplate(keyBlock);
+    }
+
+    @Override
+    public CommandTemplate masterCAVVTemplate(String keyBlock) {
+        return delegate.masterCAVVTemplate(keyBlock);
+    }
+
+    @Override
+    public CommandTemplate hmacTemplate(String keyBlock) {
+        return delegate.hmacTemplate(keyBlock);
+    }
+}
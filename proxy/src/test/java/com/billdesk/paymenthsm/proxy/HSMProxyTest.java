@@ -0,0 +1,172 @@
+package com.billdesk.paymenthsm.proxy;
+
+import com.billdesk.paymenthsm.client.internal.config.HSMConfig;
+import com.billdesk.paymenthsm.client.internal.connection.HSMConnectionPool;
+import com.billdesk.paymenthsm.client.internal.core.CorrelationIdGenerator;
+import com.billdesk.paymenthsm.client.internal.enums.Provider;
+import com.billdesk.paymenthsm.client.internal.exception.HSMExecutionException;
+import com.billdesk.paymenthsm.client.internal.exception.HSMOverloadedException;
+import com.billdesk.paymenthsm.client.internal.loadbalancer.LoadBalancingType;
+import com.billdesk.paymenthsm.client.internal.model.HSMNode;
+import com.billdesk.paymenthsm.client.internal.provider.utimaco.UtimacoCommandBuilder;
+import com.billdesk.paymenthsm.simulator.SimulatorConfig;
+import com.billdesk.paymenthsm.simulator.UtimacoSimulator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HSMProxyTest {
+
+    private static final String KEY_BLOCK = "1A4B2C0DE0000000A1B2C3D4E5F60718293A4B5C6D7E8F90123456789ABCDEF0";
+
+    private final UtimacoCommandBuilder commandBuilder = new UtimacoCommandBuilder();
+    private SimulatorConfig simulatorConfig;
+    private UtimacoSimulator hsm;
+    private HSMProxy proxy;
+
+    @BeforeEach
+    void start() throws Exception {
+        simulatorConfig = new SimulatorConfig();
+        hsm = UtimacoSimulator.start(simulatorConfig);
+        HSMNode node = new HSMNode();
+        node.setIp("127.0.0.1");
+        node.setPort(hsm.getPort());
+        HSMConfig config = new HSMConfig();
+        config.setProvider(Provider.UTIMACO);
+        config.setLoadBalancingType(LoadBalancingType.CLIENT_SIDE_ROUND_ROBIN);
+        config.setHsmNodes(List.of(node));
+        config.setMaxConnections(2);
+        config.setIdleConnections(1);
+        config.validate();
+        proxy = new HSMProxy(config, commandBuilder, "127.0.0.1", 0);
+    }
+
+    @AfterEach
+    void stop() {
+        proxy.close();
+        hsm.close();
+    }
+
+    @Test
+    void stripContextTagRemovesOnlyTheTrailingTag() {
+        assertEquals("<39B#KEY##2#00#>", HSMProxy.stripContextTag("<39B#KEY##2#00#^abc#>", "abc"));
+        assertEquals("<39B#KEY##2#00#>", HSMProxy.stripContextTag("<39B#KEY##2#00#>", "abc"));
+    }
+
+    @Test
+    void retagReplacesTheUpstreamTagWithTheClientTag() {
+        assertEquals("<49B#RESULT#^client#>", HSMProxy.retag("<49B#RESULT#^upstream#>", "upstream", "client"));
+        assertEquals("<49B#RESULT#>", HSMProxy.retag("<49B#RESULT#^upstream#>", "upstream", null));
+        assertEquals("<49B#RESULT#>", HSMProxy.retag("<49B#RESULT#>", "upstream", "client"));
+    }
+
+    @Test
+    void errorFrameCarriesTheClientTag() {
+        assertEquals("<ER#PROXY_OVERLOADED#^t1#>",
+                HSMProxy.errorFrame(new CompletionException(new HSMOverloadedException("full")), "t1"));
+        assertEquals("<ER#PROXY_UPSTREAM_FAILED#>", HSMProxy.errorFrame(new IllegalStateException(), null));
+    }
+
+    @Test
+    void clientsSharingATagEachGetTheirOwnReply() throws Exception {
+        try (Socket first = connect(); Socket second = connect()) {
+            // both clients use the same context tag, the proxy keeps them apart upstream
+            String firstCommand = commandBuilder.embedContextTag(commandBuilder.buildHMACCommand(KEY_BLOCK, "0011223344"), "t1");
+            String secondCommand = commandBuilder.embedContextTag(commandBuilder.buildHMACCommand(KEY_BLOCK, "5566778899"), "t1");
+            send(first, firstCommand);
+            send(second, secondCommand);
+
+            assertEquals(UtimacoSimulator.respond(firstCommand), readLine(first));
+            assertEquals(UtimacoSimulator.respond(secondCommand), readLine(second));
+        }
+        assertEquals(2, proxy.getCommandsForwarded());
+    }
+
+    @Test
+    void upstreamFailureIsAnsweredWithAnErrorFrame() throws Exception {
+        simulatorConfig.getFaults().setResetRate(1.0);
+        try (Socket client = connect()) {
+            send(client, commandBuilder.embedContextTag(commandBuilder.buildHMACCommand(KEY_BLOCK, "0011223344"), "t1"));
+            String reply = readLine(client);
+            assertTrue(reply.startsWith("<ER#PROXY_") && reply.endsWith("#^t1#>"), reply);
+        }
+        assertTrue(proxy.getFailures() > 0);
+    }
+
+    @Test
+    void clientLibraryFailsACommandOnTheErrorFrame() throws Exception {
+        HSMNode node = new HSMNode();
+        node.setIp("127.0.0.1");
+        node.setPort(proxy.getPort());
+        HSMConfig config = new HSMConfig();
+        config.setProvider(Provider.UTIMACO);
+        config.setHsmNodes(List.of(node));
+        config.setMaxConnections(1);
+        config.setIdleConnections(1);
+        HSMConnectionPool pool = new HSMConnectionPool(node, config, commandBuilder);
+        try {
+            pool.warmupPoolAndMarkHealthyNodes();
+            simulatorConfig.getFaults().setResetRate(1.0);
+            ExecutionException failure = assertThrows(ExecutionException.class, () -> pool.executeCommand(
+                    commandBuilder.buildHMACCommand(KEY_BLOCK, "0011223344"), CorrelationIdGenerator.commandId()).get(5, TimeUnit.SECONDS));
+            // the error reply, not the request timeout
+            assertInstanceOf(HSMExecutionException.class, failure.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void clientSendingAnEndlessFrameIsDisconnected() throws Exception {
+        try (Socket client = connect()) {
+            byte[] garbage = new byte[HSMProxy.MAX_FRAME_LENGTH + 1];
+            garbage[0] = '<';
+            for (int i = 1; i < garbage.length; i++) {
+                garbage[i] = 'A';
+            }
+            OutputStream out = client.getOutputStream();
+            out.write(garbage);
+            out.flush();
+            try {
+                assertEquals(-1, client.getInputStream().read());
+            } catch (SocketException reset) {
+                // closed with unread data, also a disconnect
+            }
+        }
+        assertEquals(0, proxy.getCommandsForwarded());
+        assertEquals(1, proxy.getFailures());
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket("127.0.0.1", proxy.getPort());
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    private static void send(Socket socket, String command) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(command.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private static String readLine(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII)).readLine();
+    }
+}
@@ -1,16 +1,25 @@
 package com.billdesk.paymenthsm.client;
 
 import com.billdesk.paymenthsm.client.internal.config.HSMConfig;
+import com.billdesk.paymenthsm.client.internal.core.HSMCompletionHandler;
 import com.billdesk.paymenthsm.client.internal.core.HSMService;
 import com.billdesk.paymenthsm.client.internal.enums.ACS_BANK;
 import com.billdesk.paymenthsm.client.internal.exception.HSMException;
+import com.billdesk.paymenthsm.client.internal.exception.HSMExecutionException;
+import com.billdesk.paymenthsm.client.internal.health.HSMHealthSnapshot;
 import com.billdesk.paymenthsm.client.internal.loadbalancer.LoadBalancer;
+import com.billdesk.paymenthsm.client.internal.model.HSMRequest;
+import com.billdesk.paymenthsm.client.internal.model.HSMResult;
+import com.billdesk.paymenthsm.client.internal.stream.HSMStreamPublisher;
 import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
 
 @Component
 @Slf4j
@@ -18,8 +27,19 @@ public class HSMClient {
     private final HSMService hsmService;
     private final LoadBalancer loadBalancer;
     private final boolean enabled;
+    private volatile boolean shuttingDown;
+    private final Executor callbackExecutor;
 
     public HSMClient(HSMConfig config,LoadBalancer loadBalancer, HSMService hsmService) {
+        this(config, loadBalancer, hsmService, null);
+    }
+
+    /**
+     * @param callbackExecutor runs the dependent stages of the returned futures, null runs them on the socket
+     *                         listener thread that received the response
+     */
+    public HSMClient(HSMConfig config, LoadBalancer loadBalancer, HSMService hsmService, Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
 
         if (!config.isEnabled()) {
             log.info("HSM Client is disabled");
@@ -36,29 +56,164 @@ public class HSMClient {
 
     public CompletableFuture<String> generateVisaCAVV(ACS_BANK bank, String data) throws HSMException {
         checkIfEnabled();
-        return hsmService.generateVisaCAVV(bank, data);
+        return onCallbackExecutor(hsmService.generateVisaCAVV(bank, data));
     }
 
     public CompletableFuture<String> generateMasterCAVV(ACS_BANK bank, String data) throws HSMException {
         checkIfEnabled();
-        return hsmService.generateMasterCAVV(bank, data);
+        return onCallbackExecutor(hsmService.generateMasterCAVV(bank, data));
     }
 
     public CompletableFuture<String> generateHMAC(String keyName, String data) throws HSMException {
         checkIfEnabled();
-        return hsmService.generateHMAC(keyName, data);
+        return onCallbackExecutor(hsmService.generateHMAC(keyName, data));
+    }
+
+    /**
+     * Lower level HMAC generation for the highest rates: the outcome goes to {@code handler} directly on the
+     * socket listener thread, with no future in between and regardless of the callback executor. One handler
+     * instance can serve every request, per request state travels in {@code context}. Handlers must not block.
+     * An {@link com.billdesk.paymenthsm.client.internal.core.HSMResultViewHandler} gets the result as a view over
+     * the receive buffer, without a String being created for it.
+     */
+    public <C> void generateHMAC(String keyName, String data, HSMCompletionHandler<? super C> handler, C context) throws HSMException {
+        checkIfEnabled();
+        hsmService.generateHMAC(keyName, data, handler, context);
+    }
+
+    /**
+     * Blocking variants for callers on virtual threads, waiting parks the virtual thread without pinning its
+     * carrier. Failures are thrown as the HSMException that failed the request.
+     */
+    public String generateVisaCAVVSync(ACS_BANK bank, String data) throws HSMException {
+        checkIfEnabled();
+        return await(hsmService.generateVisaCAVV(bank, data));
+    }
+
+    public String generateMasterCAVVSync(ACS_BANK bank, String data) throws HSMException {
+        checkIfEnabled();
+        return await(hsmService.generateMasterCAVV(bank, data));
+    }
+
+    public String generateHMACSync(String keyName, String data) throws HSMException {
+        checkIfEnabled();
+        return await(hsmService.generateHMAC(keyName, data));
+    }
+
+    /**
+     * Sends a stream of requests to the HSM. Requests are pulled from {@code requests} only as fast as the
+     * subscriber consumes results and the healthy nodes have free connections, so no semaphore is needed
+     * around it. A failed request is emitted as an {@link HSMResult} with an error, the stream only fails if
+     * {@code requests} does. Reactor and RxJava adapt to and from {@link Flow} with their FlowAdapters.
+     *
+     * @param ordered emit results in request order, otherwise as they complete
+     */
+    public Flow.Publisher<HSMResult> stream(Flow.Publisher<HSMRequest> requests, boolean ordered) throws HSMException {
+        checkIfEnabled();
+        return new HSMStreamPublisher(requests, this::execute, loadBalancer::getAvailableCapacity, ordered);
+    }
+
+    private CompletableFuture<String> execute(HSMRequest request) {
+        switch (request.getOperation()) {
+            case VISA_CAVV:
+                return hsmService.generateVisaCAVV(request.getBank(), request.getData());
+            case MASTER_CAVV:
+                return hsmService.generateMasterCAVV(request.getBank(), request.getData());
+            case HMAC:
+                return hsmService.generateHMAC(request.getKeyName(), request.getData());
+            default:
+                throw new IllegalArgumentException("Unsupported operation: " + request.getOperation());
+        }
+    }
+
+    // the future handed out fails with the same throwable as the request, not with it wrapped in a CompletionException
+    private CompletableFuture<String> onCallbackExecutor(CompletableFuture<String> future) {
+        if (callbackExecutor == null || future.isDone()) {
+            return future;
+        }
+        CompletableFuture<String> relayed = new CompletableFuture<>();
+        future.handleAsync((result, error) -> relay(relayed, result, error), callbackExecutor)
+                // a rejecting executor must not leave the caller waiting, the outcome goes out on this thread instead
+                .exceptionally(rejected -> {
+                    future.handle((result, error) -> relay(relayed, result, error));
+                    return null;
+                });
+        return relayed;
+    }
+
+    private static Void relay(CompletableFuture<String> to, String result, Throwable error) {
+        if (error != null) {
+            to.completeExceptionally(error);
+        } else {
+            to.complete(result);
+        }
+        return null;
+    }
+
+    private static String await(CompletableFuture<String> future) throws HSMException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            while (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof HSMException) {
+                throw (HSMException) cause;
+            }
+            throw new HSMExecutionException("HSM request failed", cause);
+        }
+    }
+
+    /**
+     * True while requests that would queue for a connection are being rejected with HSMOverloadedException,
+     * callers can use it to shed optional work before calling. Always false without admission control.
+     */
+    public boolean isOverloaded() {
+        return enabled && loadBalancer.isOverloaded();
+    }
+
+    /**
+     * Redacted wire trace of the most recent frames on every live connection.
+     */
+    public String dumpWireTrace() throws HSMException {
+        checkIfEnabled();
+        return loadBalancer.dumpWireTrace();
+    }
+
+    /**
+     * Commands sent and not yet answered or waiting for a connection, what a shutdown still has to drain.
+     */
+    public int getPendingCount() {
+        return enabled ? loadBalancer.getInFlight() : 0;
+    }
+
+    /**
+     * Cached health of the client and every node, null when the client is disabled. Never touches the network,
+     * so it can back a liveness or readiness probe of any frequency.
+     */
+    public HSMHealthSnapshot getHealth() {
+        return enabled ? loadBalancer.getHealth() : null;
     }
 
     private void checkIfEnabled() throws HSMException {
         if (!enabled) {
             throw new HSMException("HSM Client is disabled. Check your configuration.");
         }
+        if (shuttingDown) {
+            throw new HSMException("HSM Client is shutting down.");
+        }
     }
 
+    /**
+     * Refuses new commands, waits up to {@code hsm.client.shutdown-drain-timeout-seconds} for pending ones
+     * and then closes all connections.
+     */
     @PreDestroy
     public void shutdown() {
         if (enabled) {
-            log.info("Shutting down HSMClient gracefully.");
+            log.info("Shutting down HSMClient gracefully, {} commands pending.", getPendingCount());
+            shuttingDown = true;
             loadBalancer.shutdown();
         } else {
             log.info("HSM Client was disabled, no shutdown required.");
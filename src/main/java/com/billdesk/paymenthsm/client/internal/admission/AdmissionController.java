@@ -0,0 +1,118 @@
+package com.billdesk.paymenthsm.client.internal.admission;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CoDel style admission in front of the connection pool queue. Every request that waits for a connection
+ * reports its queueing delay; once the delay has stayed above {@code target} for a full {@code interval}
+ * the controller is overloaded and rejects every request that would have to queue, while requests that
+ * find a free connection still go through. The first delay below target ends the overload.
+ * <p>
+ * Queue depth is capped independently of delay, so a sudden burst is shed before the delay has built up.
+ */
+@Slf4j
+public class AdmissionController {
+
+    private final String name;
+    private final long targetNanos;
+    private final long intervalNanos;
+    private final int maxQueueDepth;
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    // deadline by which the delay has to drop below target again, 0 while it is below
+    private final AtomicLong firstAboveTarget = new AtomicLong();
+    private volatile boolean overloaded;
+    private volatile long lastAboveTarget;
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public AdmissionController(String name, long targetMillis, long intervalMillis, int maxQueueDepth) {
+        this.name = name;
+        this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.maxQueueDepth = maxQueueDepth;
+    }
+
+    /**
+     * @param wouldQueue no connection is free, the request would wait for one
+     * @return false if the request has to be rejected, otherwise it must be followed by {@link #release(long)}
+     */
+    public boolean tryAcquire(boolean wouldQueue) {
+        if (wouldQueue && isOverloaded()) {
+            rejected.increment();
+            return false;
+        }
+        if (queueDepth.incrementAndGet() > maxQueueDepth) {
+            queueDepth.decrementAndGet();
+            rejected.increment();
+            return false;
+        }
+        admitted.increment();
+        return true;
+    }
+
+    /**
+     * Gives back an acquired slot without a delay sample, for a request rejected further down.
+     */
+    public void cancel() {
+        queueDepth.decrementAndGet();
+    }
+
+    public void release(long queueDelayNanos) {
+        queueDepth.decrementAndGet();
+        if (queueDelayNanos < targetNanos) {
+            firstAboveTarget.set(0);
+            if (overloaded) {
+                overloaded = false;
+                log.info("{} no longer overloaded", name);
+            }
+            return;
+        }
+        long now = System.nanoTime();
+        if (overloaded && now - lastAboveTarget >= intervalNanos) {
+            // expired while idle, a new overload has to last a full interval again
+            overloaded = false;
+            firstAboveTarget.set(0);
+        }
+        lastAboveTarget = now;
+        long deadline = firstAboveTarget.get();
+        if (deadline == 0) {
+            firstAboveTarget.compareAndSet(0, now + intervalNanos);
+        } else if (now - deadline >= 0 && !overloaded) {
+            overloaded = true;
+            log.warn("{} overloaded, queueing delay above {}ms for {}ms, shedding requests that would queue",
+                    name, TimeUnit.NANOSECONDS.toMillis(targetNanos), TimeUnit.NANOSECONDS.toMillis(intervalNanos));
+        }
+    }
+
+    /**
+     * Longest a request admitted by this controller should wait for a connection.
+     */
+    public long getMaxQueueWaitNanos() {
+        return intervalNanos;
+    }
+
+    /**
+     * Overload also ends once no request has seen a delay above target for an interval, so the signal does
+     * not stay raised when traffic stops.
+     */
+    public boolean isOverloaded() {
+        return overloaded && System.nanoTime() - lastAboveTarget < intervalNanos;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    public long getAdmitted() {
+        return admitted.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+}
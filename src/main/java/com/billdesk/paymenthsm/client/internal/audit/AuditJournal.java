@@ -0,0 +1,362 @@
+package com.billdesk.paymenthsm.client.internal.audit;
+
+import com.billdesk.paymenthsm.client.internal.model.HSMRequest;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Audit trail of HSM commands: when, correlation id, operation, key name, node, outcome and latency, never the
+ * data or the result. Request threads only claim a slot of a preallocated ring with one CAS and store
+ * references into it; a background writer encodes batches into memory-mapped segment files and rotates them.
+ * <p>
+ * The ring never blocks a request. When it is full the entry is dropped and the writer records a gap entry
+ * with the number of dropped entries, so the journal shows where it is incomplete. Size the buffer for the
+ * longest disk stall that has to be absorbed.
+ * <p>
+ * Segment format, see {@link AuditJournalReader}: a header of {@link #MAGIC} and {@link #VERSION}, then records
+ * of an int length, a type byte and the fields. A zero length marks the end of the written part.
+ */
+@Slf4j
+public final class AuditJournal implements AutoCloseable {
+
+    public static final int MAGIC = 0x48534D41;
+    public static final short VERSION = 1;
+    static final byte ENTRY = 1;
+    static final byte GAP = 2;
+    static final byte OUTCOME_SUCCESS = 0;
+    static final byte OUTCOME_FAILURE = 1;
+    static final byte OPERATION_UNKNOWN = -1;
+    // node of entries answered without a command of their own
+    public static final String NODE_CACHE = "cache";
+    public static final String NODE_SINGLE_FLIGHT = "single-flight";
+    static final String SEGMENT_PREFIX = "hsm-audit-";
+    static final String SEGMENT_SUFFIX = ".log";
+    static final int MAX_STRING_BYTES = 255;
+
+    private static final int HEADER_BYTES = Integer.BYTES + Short.BYTES;
+    private static final int MAX_RECORD_BYTES = Integer.BYTES + 1 + 2 * Long.BYTES + 2 + 4 * (1 + MAX_STRING_BYTES);
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int MAX_BATCH = 4096;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final long flushIntervalNanos;
+
+    // the ring, slot i holds the entry whose sequence is in published[i]
+    private final int mask;
+    private final long[] timestamps;
+    private final long[] latencies;
+    private final byte[] operations;
+    private final String[] correlationIds;
+    private final String[] keyNames;
+    private final String[] nodes;
+    private final Class<?>[] errors;
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+
+    private final Thread writer;
+    private volatile boolean running = true;
+    // only touched by the writer thread
+    private MappedByteBuffer segment;
+    private long segmentIndex;
+    private long droppedReported;
+    private boolean dirty;
+    private long lastForce = System.nanoTime();
+
+    public AuditJournal(Path directory, int bufferCapacity, int segmentBytes, int maxSegments, long flushIntervalMillis) throws IOException {
+        if (segmentBytes < HEADER_BYTES + MAX_RECORD_BYTES) {
+            throw new IllegalArgumentException("Audit segment size must be at least " + (HEADER_BYTES + MAX_RECORD_BYTES) + " bytes");
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        int capacity = Integer.highestOneBit(Math.max(2, bufferCapacity - 1)) << 1;
+        this.mask = capacity - 1;
+        this.timestamps = new long[capacity];
+        this.latencies = new long[capacity];
+        this.operations = new byte[capacity];
+        this.correlationIds = new String[capacity];
+        this.keyNames = new String[capacity];
+        this.nodes = new String[capacity];
+        this.errors = new Class<?>[capacity];
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+        }
+
+        Files.createDirectories(directory);
+        this.segmentIndex = lastSegmentIndex(directory);
+        openNextSegment();
+        this.writer = new Thread(this::writeLoop, "HSM-Audit-Writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        log.info("HSM audit journal writing to {}, {} entries buffered", directory, capacity);
+    }
+
+    /**
+     * Appends an entry without blocking.
+     *
+     * @param operation null when the command was not built from a template, e.g. forwarded by the proxy
+     * @param error     null on success, only its class is kept
+     * @return false if the ring was full and the entry was dropped
+     */
+    public boolean record(long timestampMillis, long latencyNanos, HSMRequest.Operation operation,
+                          String correlationId, String keyName, String node, Throwable error) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed.get() > mask) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        int slot = (int) sequence & mask;
+        timestamps[slot] = timestampMillis;
+        latencies[slot] = latencyNanos;
+        operations[slot] = operation == null ? OPERATION_UNKNOWN : (byte) operation.ordinal();
+        correlationIds[slot] = correlationId;
+        keyNames[slot] = keyName;
+        nodes[slot] = node;
+        errors[slot] = error == null ? null : error.getClass();
+        published.setRelease(slot, sequence);
+        return true;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    private void writeLoop() {
+        // entries dropped just before close still get their gap record
+        while (running || consumed.get() != claimed.get() || dropped.get() != droppedReported) {
+            try {
+                int batch = drain();
+                long now = System.nanoTime();
+                if (dirty && now - lastForce >= flushIntervalNanos) {
+                    segment.force();
+                    dirty = false;
+                    lastForce = now;
+                }
+                if (batch == 0) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            } catch (IOException | UncheckedIOException e) {
+                log.error("HSM audit journal failed to write to {}, retrying", directory, e);
+                LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+        segment.force();
+    }
+
+    private int drain() throws IOException {
+        long droppedNow = dropped.get();
+        if (droppedNow != droppedReported) {
+            ensureSpace(Integer.BYTES + 1 + 2 * Long.BYTES);
+            int start = segment.position();
+            try {
+                segment.position(start + Integer.BYTES);
+                segment.put(GAP).putLong(System.currentTimeMillis()).putLong(droppedNow - droppedReported);
+                segment.putInt(start, 1 + 2 * Long.BYTES);
+            } catch (RuntimeException | InternalError e) {
+                throw discardRecord(start, e);
+            }
+            droppedReported = droppedNow;
+            dirty = true;
+        }
+        long next = consumed.get();
+        int batch = 0;
+        while (batch < MAX_BATCH) {
+            int slot = (int) next & mask;
+            if (published.getAcquire(slot) != next) {
+                break;
+            }
+            writeEntry(slot);
+            correlationIds[slot] = null;
+            keyNames[slot] = null;
+            nodes[slot] = null;
+            errors[slot] = null;
+            // per entry, so a write that fails half way through a batch is not repeated
+            consumed.setRelease(++next);
+            batch++;
+        }
+        if (batch > 0) {
+            written.addAndGet(batch);
+            dirty = true;
+        }
+        return batch;
+    }
+
+    private void writeEntry(int slot) throws IOException {
+        String error = errors[slot] == null ? null : errors[slot].getSimpleName();
+        int length = 1 + 2 * Long.BYTES + 2 + encodedLength(correlationIds[slot]) + encodedLength(keyNames[slot])
+                + encodedLength(nodes[slot]) + encodedLength(error);
+        ensureSpace(Integer.BYTES + length);
+        // the length goes in last, a reader of the live segment stops at a record still being written
+        int start = segment.position();
+        try {
+            segment.position(start + Integer.BYTES);
+            segment.put(ENTRY)
+                    .putLong(timestamps[slot])
+                    .putLong(latencies[slot])
+                    .put(operations[slot])
+                    .put(error == null ? OUTCOME_SUCCESS : OUTCOME_FAILURE);
+            putString(correlationIds[slot]);
+            putString(keyNames[slot]);
+            putString(nodes[slot]);
+            putString(error);
+            segment.putInt(start, length);
+        } catch (RuntimeException | InternalError e) {
+            throw discardRecord(start, e);
+        }
+    }
+
+    /*
+     * A record that failed half way, e.g. the mapped file hit an I/O error, is wiped and the position goes back
+     * to its start. Readers stop at the zero length there and the retry writes the record at the same place,
+     * instead of leaving a hole that ends the segment for readers.
+     */
+    private IOException discardRecord(int start, Throwable error) {
+        try {
+            for (int i = start; i < segment.position(); i++) {
+                segment.put(i, (byte) 0);
+            }
+            segment.position(start);
+        } catch (RuntimeException | InternalError e) {
+            error.addSuppressed(e);
+        }
+        return new IOException("Failed to write audit record", error);
+    }
+
+    private static int encodedLength(String value) {
+        return 1 + (value == null ? 0 : Math.min(value.length(), MAX_STRING_BYTES));
+    }
+
+    // the fields are ids, key names, addresses and class names, anything outside ASCII is written as '?'
+    private void putString(String value) {
+        int length = value == null ? 0 : Math.min(value.length(), MAX_STRING_BYTES);
+        segment.put((byte) length);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            segment.put(c < 0x80 ? (byte) c : (byte) '?');
+        }
+    }
+
+    private void ensureSpace(int bytes) throws IOException {
+        // one int of zeros always stays free as the end marker
+        if (segment.remaining() < bytes + Integer.BYTES) {
+            segment.force();
+            openNextSegment();
+            deleteExpiredSegments();
+        }
+    }
+
+    private void openNextSegment() throws IOException {
+        segmentIndex++;
+        Path path = directory.resolve(segmentName(segmentIndex));
+        MappedByteBuffer next;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            next = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            next.putInt(MAGIC).putShort(VERSION);
+        } catch (FileAlreadyExistsException e) {
+            throw e;
+        } catch (IOException | RuntimeException | InternalError e) {
+            // a segment without its header would fail every read of the directory, the retry takes the next index
+            Files.deleteIfExists(path);
+            throw e;
+        }
+        // the current segment stays in place until the next one is ready
+        segment = next;
+        lastForce = System.nanoTime();
+        log.debug("HSM audit journal rotated to {}", path);
+    }
+
+    private void deleteExpiredSegments() throws IOException {
+        if (maxSegments <= 0) {
+            return;
+        }
+        List<Path> segments = segments(directory);
+        for (int i = 0; i < segments.size() - maxSegments; i++) {
+            Files.deleteIfExists(segments.get(i));
+        }
+    }
+
+    static String segmentName(long index) {
+        return String.format("%s%012d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Segment files of a journal directory, oldest first.
+     */
+    static List<Path> segments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> {
+                        String name = file.getFileName().toString();
+                        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+                    })
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static long lastSegmentIndex(Path directory) throws IOException {
+        List<Path> segments = segments(directory);
+        if (segments.isEmpty()) {
+            return 0;
+        }
+        String name = segments.get(segments.size() - 1).getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Writes out everything recorded so far and stops the writer.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive()) {
+            log.warn("HSM audit journal writer did not finish, {} entries not written", claimed.get() - consumed.get());
+        }
+    }
+
+    static ByteBuffer checkHeader(ByteBuffer segment, Path path) throws IOException {
+        if (segment.remaining() < HEADER_BYTES || segment.getInt() != MAGIC) {
+            throw new IOException(path + " is not an HSM audit journal segment");
+        }
+        short version = segment.getShort();
+        if (version != VERSION) {
+            throw new IOException(path + " has unsupported audit journal version " + version);
+        }
+        return segment;
+    }
+}
@@ -0,0 +1,161 @@
+package com.billdesk.paymenthsm.client.internal.audit;
+
+import com.billdesk.paymenthsm.client.internal.model.HSMRequest;
+import lombok.Getter;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.function.Consumer;
+
+/**
+ * Reads the segments written by {@link AuditJournal}, oldest first. Segments may be read while the client is
+ * still appending to the newest one. Standalone it exports a journal directory as CSV:
+ * <pre>
+ * java -cp paymenthsmclient.jar com.billdesk.paymenthsm.client.internal.audit.AuditJournalReader /var/log/hsm-audit [from=2024-06-01T00:00:00Z] [to=...]
+ * </pre>
+ */
+public final class AuditJournalReader {
+
+    private static final HSMRequest.Operation[] OPERATIONS = HSMRequest.Operation.values();
+
+    private AuditJournalReader() {
+    }
+
+    /**
+     * One record of the journal. A gap stands for {@code dropped} entries lost because the buffer was full,
+     * its other fields are empty.
+     */
+    @Getter
+    public static final class Entry {
+        private final long timestampMillis;
+        private final boolean gap;
+        private final long dropped;
+        private final long latencyNanos;
+        // null for commands not built from a template
+        private final HSMRequest.Operation operation;
+        private final boolean success;
+        private final String correlationId;
+        private final String keyName;
+        private final String node;
+        // simple class name of the failure, null on success
+        private final String error;
+
+        private Entry(long timestampMillis, boolean gap, long dropped, long latencyNanos, HSMRequest.Operation operation,
+                      boolean success, String correlationId, String keyName, String node, String error) {
+            this.timestampMillis = timestampMillis;
+            this.gap = gap;
+            this.dropped = dropped;
+            this.latencyNanos = latencyNanos;
+            this.operation = operation;
+            this.success = success;
+            this.correlationId = correlationId;
+            this.keyName = keyName;
+            this.node = node;
+            this.error = error;
+        }
+    }
+
+    public static void read(Path directory, Consumer<Entry> consumer) throws IOException {
+        for (Path segment : AuditJournal.segments(directory)) {
+            readSegment(segment, consumer);
+        }
+    }
+
+    public static void readSegment(Path path, Consumer<Entry> consumer) throws IOException {
+        MappedByteBuffer segment;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        AuditJournal.checkHeader(segment, path);
+        while (segment.remaining() >= Integer.BYTES) {
+            int length = segment.getInt();
+            if (length <= 0 || length > segment.remaining()) {
+                // end of the written part, or a record the writer has not finished yet
+                return;
+            }
+            ByteBuffer record = segment.slice(segment.position(), length);
+            segment.position(segment.position() + length);
+            byte type = record.get();
+            if (type == AuditJournal.GAP) {
+                consumer.accept(new Entry(record.getLong(), true, record.getLong(), 0, null, false, null, null, null, null));
+            } else if (type == AuditJournal.ENTRY) {
+                long timestamp = record.getLong();
+                long latency = record.getLong();
+                byte operation = record.get();
+                boolean success = record.get() == AuditJournal.OUTCOME_SUCCESS;
+                String correlationId = getString(record);
+                String keyName = getString(record);
+                String node = getString(record);
+                String error = getString(record);
+                consumer.accept(new Entry(timestamp, false, 0, latency,
+                        operation >= 0 && operation < OPERATIONS.length ? OPERATIONS[operation] : null,
+                        success, correlationId, keyName, node, error));
+            }
+            // unknown record types are skipped, their length is known
+        }
+    }
+
+    private static String getString(ByteBuffer record) {
+        int length = record.get() & 0xFF;
+        if (length == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Arguments: the journal directory, then optional from=ISO-instant and to=ISO-instant bounds.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.err.println("Usage: AuditJournalReader <directory> [from=<instant>] [to=<instant>]");
+            System.exit(1);
+        }
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("from=")) {
+                from = Instant.parse(arg.substring("from=".length())).toEpochMilli();
+            } else if (arg.startsWith("to=")) {
+                to = Instant.parse(arg.substring("to=".length())).toEpochMilli();
+            } else {
+                throw new IllegalArgumentException("Unknown option " + arg);
+            }
+        }
+        long fromMillis = from;
+        long toMillis = to;
+        PrintStream out = System.out;
+        out.println("timestamp,correlation_id,operation,key_name,node,outcome,latency_us,error");
+        read(Path.of(args[0]), entry -> {
+            if (entry.getTimestampMillis() < fromMillis || entry.getTimestampMillis() >= toMillis) {
+                return;
+            }
+            if (entry.isGap()) {
+                out.println(Instant.ofEpochMilli(entry.getTimestampMillis()) + ",,,,,GAP,,dropped " + entry.getDropped());
+                return;
+            }
+            out.println(Instant.ofEpochMilli(entry.getTimestampMillis()) + ","
+                    + nullToEmpty(entry.getCorrelationId()) + ","
+                    + (entry.getOperation() == null ? "" : entry.getOperation().name()) + ","
+                    + nullToEmpty(entry.getKeyName()) + ","
+                    + nullToEmpty(entry.getNode()) + ","
+                    + (entry.isSuccess() ? "SUCCESS" : "FAILURE") + ","
+                    + entry.getLatencyNanos() / 1000 + ","
+                    + nullToEmpty(entry.getError()));
+        });
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+}
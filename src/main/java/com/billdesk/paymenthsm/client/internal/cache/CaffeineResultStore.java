@@ -0,0 +1,51 @@
+package com.billdesk.paymenthsm.client.internal.cache;
+
+import com.billdesk.paymenthsm.client.internal.core.RequestDigest;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * On-heap store with Caffeine's W-TinyLFU eviction, so a burst of one-off lookups does not flush the
+ * identifiers that are actually looked up repeatedly.
+ */
+class CaffeineResultStore implements ResultStore {
+
+    private final Cache<RequestDigest, String> cache;
+    private final LongAdder evictions = new LongAdder();
+
+    CaffeineResultStore(long maxEntries, Duration ttl) {
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(ttl)
+                .evictionListener((key, value, cause) -> evictions.increment())
+                .build();
+    }
+
+    @Override
+    public String get(RequestDigest digest) {
+        return cache.getIfPresent(digest);
+    }
+
+    @Override
+    public void put(RequestDigest digest, String result) {
+        cache.put(digest, result);
+    }
+
+    @Override
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    @Override
+    public long size() {
+        return cache.estimatedSize();
+    }
+
+    @Override
+    public long evictions() {
+        return evictions.sum();
+    }
+}
@@ -0,0 +1,99 @@
+package com.billdesk.paymenthsm.client.internal.cache;
+
+import com.billdesk.paymenthsm.client.internal.config.HSMConfig;
+import com.billdesk.paymenthsm.client.internal.core.RequestDigest;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Result cache for HMAC over stable identifiers, enabled per key name with hsm.client.hmac-cache-key-names.
+ * Entries are keyed by {@link RequestDigest}, never by the data itself, and bounded in both count and age.
+ * <p>
+ * A result is only valid for the key block that produced it, so entries are tagged with the key block
+ * registry version the request started under: a lookup with a newer version drops the whole cache, and a
+ * result computed under an older one is not stored. Puts check the version under the read side of a lock whose
+ * write side the invalidation holds, so a put can never land between the version bump and the clear.
+ */
+@Slf4j
+public class HMACResultCache {
+
+    private final Set<String> keyNames;
+    private final ResultStore store;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private volatile long keyBlockVersion;
+    private final ReadWriteLock versionLock = new ReentrantReadWriteLock();
+
+    public HMACResultCache(HSMConfig config, long keyBlockVersion) {
+        this.keyNames = Set.copyOf(config.getHmacCacheKeyNames());
+        Duration ttl = Duration.ofSeconds(config.getHmacCacheTtlSeconds());
+        this.store = config.isHmacCacheOffHeap()
+                ? new OffHeapResultStore(config.getHmacCacheMaxEntries(), ttl, config.getHmacCacheMaxValueBytes())
+                : new CaffeineResultStore(config.getHmacCacheMaxEntries(), ttl);
+        this.keyBlockVersion = keyBlockVersion;
+        log.info("HMAC result cache enabled for {} with {} entries, ttl {}s, {}", keyNames, config.getHmacCacheMaxEntries(),
+                config.getHmacCacheTtlSeconds(), config.isHmacCacheOffHeap() ? "off-heap" : "on-heap");
+    }
+
+    public boolean caches(String keyName) {
+        return keyNames.contains(keyName);
+    }
+
+    public String get(RequestDigest digest, long keyBlockVersion) {
+        if (keyBlockVersion != this.keyBlockVersion) {
+            invalidate(keyBlockVersion);
+        }
+        String result = store.get(digest);
+        if (result != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return result;
+    }
+
+    public void put(RequestDigest digest, long keyBlockVersion, String result) {
+        versionLock.readLock().lock();
+        try {
+            if (keyBlockVersion == this.keyBlockVersion) {
+                store.put(digest, result);
+            }
+        } finally {
+            versionLock.readLock().unlock();
+        }
+    }
+
+    private void invalidate(long keyBlockVersion) {
+        versionLock.writeLock().lock();
+        try {
+            if (keyBlockVersion > this.keyBlockVersion) {
+                log.info("Key blocks changed to version {}, clearing HMAC result cache", keyBlockVersion);
+                this.keyBlockVersion = keyBlockVersion;
+                store.clear();
+            }
+        } finally {
+            versionLock.writeLock().unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return store.evictions();
+    }
+
+    public long getSize() {
+        return store.size();
+    }
+}
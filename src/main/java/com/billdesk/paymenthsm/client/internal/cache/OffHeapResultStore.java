@@ -0,0 +1,193 @@
+package com.billdesk.paymenthsm.client.internal.cache;
+
+import com.billdesk.paymenthsm.client.internal.core.RequestDigest;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed size store in a direct buffer, for caches of millions of entries that would otherwise add
+ * that many objects to every GC cycle. The table is set associative: a digest maps to one set of
+ * {@code WAYS} slots and a full set evicts its least frequently hit slot. Hit counters are halved on every
+ * eviction in the set, so old popularity fades. Locking is striped per set.
+ * <p>
+ * Slot layout: 32 byte digest, 8 byte expiry (nanoTime, 0 when empty), 2 byte hit count, 2 byte value
+ * length, value bytes. Values longer than the configured maximum are not stored.
+ */
+class OffHeapResultStore implements ResultStore {
+
+    private static final int WAYS = 8;
+    private static final int DIGEST_BYTES = 32;
+    private static final int EXPIRY = DIGEST_BYTES;
+    private static final int HITS = EXPIRY + 8;
+    private static final int LENGTH = HITS + 2;
+    private static final int VALUE = LENGTH + 2;
+    private static final int MAX_STRIPES = 1024;
+
+    private final ByteBuffer table;
+    private final int slotSize;
+    private final int maxValueBytes;
+    private final int setMask;
+    private final Object[] stripes;
+    private final long ttlNanos;
+    private final AtomicLong size = new AtomicLong();
+    private final LongAdder evictions = new LongAdder();
+
+    OffHeapResultStore(long maxEntries, Duration ttl, int maxValueBytes) {
+        long sets = Long.highestOneBit(Math.max(1, (maxEntries + WAYS - 1) / WAYS) * 2 - 1);
+        this.maxValueBytes = maxValueBytes;
+        this.slotSize = (VALUE + maxValueBytes + 7) & ~7;
+        long bytes = sets * WAYS * slotSize;
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Off-heap result cache of " + maxEntries + " entries exceeds 2GB");
+        }
+        this.table = ByteBuffer.allocateDirect((int) bytes);
+        this.setMask = (int) sets - 1;
+        this.stripes = new Object[(int) Math.min(sets, MAX_STRIPES)];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Object();
+        }
+        this.ttlNanos = ttl.toNanos();
+    }
+
+    @Override
+    public String get(RequestDigest digest) {
+        byte[] key = digest.toByteArray();
+        int set = digest.hashCode() & setMask;
+        long now = System.nanoTime();
+        synchronized (stripes[set % stripes.length]) {
+            int slot = find(set, key, now);
+            if (slot < 0) {
+                return null;
+            }
+            int hits = table.getShort(slot + HITS) & 0xFFFF;
+            if (hits < 0xFFFF) {
+                table.putShort(slot + HITS, (short) (hits + 1));
+            }
+            byte[] value = new byte[table.getShort(slot + LENGTH) & 0xFFFF];
+            table.get(slot + VALUE, value);
+            return new String(value, StandardCharsets.UTF_8);
+        }
+    }
+
+    @Override
+    public void put(RequestDigest digest, String result) {
+        byte[] value = result.getBytes(StandardCharsets.UTF_8);
+        if (value.length > maxValueBytes) {
+            return;
+        }
+        byte[] key = digest.toByteArray();
+        int set = digest.hashCode() & setMask;
+        long now = System.nanoTime();
+        synchronized (stripes[set % stripes.length]) {
+            int slot = find(set, key, now);
+            if (slot < 0) {
+                slot = victim(set, now);
+                table.put(slot, key);
+                table.putShort(slot + HITS, (short) 0);
+            }
+            table.putLong(slot + EXPIRY, expiry(now));
+            table.putShort(slot + LENGTH, (short) value.length);
+            table.put(slot + VALUE, value);
+        }
+    }
+
+    private int find(int set, byte[] key, long now) {
+        int base = set * WAYS * slotSize;
+        for (int way = 0; way < WAYS; way++) {
+            int slot = base + way * slotSize;
+            long expiresAt = table.getLong(slot + EXPIRY);
+            if (expiresAt == 0 || !matches(slot, key)) {
+                continue;
+            }
+            if (expiresAt - now <= 0) {
+                table.putLong(slot + EXPIRY, 0);
+                size.decrementAndGet();
+                return -1;
+            }
+            return slot;
+        }
+        return -1;
+    }
+
+    // an empty or expired slot if there is one, otherwise the least hit slot after ageing the set
+    private int victim(int set, long now) {
+        int base = set * WAYS * slotSize;
+        int coldest = base;
+        int coldestHits = Integer.MAX_VALUE;
+        for (int way = 0; way < WAYS; way++) {
+            int slot = base + way * slotSize;
+            long expiresAt = table.getLong(slot + EXPIRY);
+            if (expiresAt == 0) {
+                size.incrementAndGet();
+                return slot;
+            }
+            if (expiresAt - now <= 0) {
+                return slot;
+            }
+            int hits = table.getShort(slot + HITS) & 0xFFFF;
+            if (hits < coldestHits) {
+                coldest = slot;
+                coldestHits = hits;
+            }
+        }
+        for (int way = 0; way < WAYS; way++) {
+            int slot = base + way * slotSize;
+            table.putShort(slot + HITS, (short) ((table.getShort(slot + HITS) & 0xFFFF) >>> 1));
+        }
+        evictions.increment();
+        return coldest;
+    }
+
+    private boolean matches(int slot, byte[] key) {
+        for (int i = 0; i < DIGEST_BYTES; i += 8) {
+            if (table.getLong(slot + i) != getLong(key, i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    // 0 marks an empty slot
+    private long expiry(long now) {
+        long expiresAt = now + ttlNanos;
+        return expiresAt == 0 ? 1 : expiresAt;
+    }
+
+    @Override
+    public void clear() {
+        for (int set = 0; set <= setMask; set++) {
+            synchronized (stripes[set % stripes.length]) {
+                int base = set * WAYS * slotSize;
+                for (int way = 0; way < WAYS; way++) {
+                    int slot = base + way * slotSize;
+                    if (table.getLong(slot + EXPIRY) != 0) {
+                        table.putLong(slot + EXPIRY, 0);
+                        size.decrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public long size() {
+        return size.get();
+    }
+
+    @Override
+    public long evictions() {
+        return evictions.sum();
+    }
+}
@@ -0,0 +1,20 @@
+package com.billdesk.paymenthsm.client.internal.cache;
+
+import com.billdesk.paymenthsm.client.internal.core.RequestDigest;
+
+/**
+ * Storage behind {@link HMACResultCache}. Implementations bound both size and age of entries and are safe
+ * for concurrent use.
+ */
+interface ResultStore {
+
+    String get(RequestDigest digest);
+
+    void put(RequestDigest digest, String result);
+
+    void clear();
+
+    long size();
+
+    long evictions();
+}
@@ -1,11 +1,13 @@
 package com.billdesk.paymenthsm.client.internal.config;
 
 import com.billdesk.paymenthsm.client.HSMClient;
+import com.billdesk.paymenthsm.client.internal.connection.SlowStart;
 import com.billdesk.paymenthsm.client.internal.enums.Provider;
 import com.billdesk.paymenthsm.client.internal.loadbalancer.LoadBalancingType;
 import com.billdesk.paymenthsm.client.internal.model.HSMNode;
 import jakarta.annotation.PostConstruct;
 import jakarta.validation.Valid;
+import jakarta.validation.constraints.Max;
 import jakarta.validation.constraints.Min;
 import jakarta.validation.constraints.NotNull;
 import lombok.Getter;
@@ -16,6 +18,7 @@ import org.springframework.validation.annotation.Validated;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 
 @Getter
@@ -35,8 +38,104 @@ public class HSMConfig {
     @Min(value = 1, message = "Idle connections cannot be negative")
     private int idleConnections = 1;
     private String vip;
+    // zone this client runs in, CLIENT_SIDE_WEIGHTED prefers nodes of the same zone
+    private String localZone;
     private Map<String, String> keyBlocks;
+    // CLIENT_SIDE_KEY_AFFINITY moves a key off its preferred node once that node carries this many times the average load
+    private double keyAffinityLoadFactor = 1.25;
+    // properties file of keyName=keyBlock, watched and hot reloaded when set
+    private String keyBlocksFile;
     private boolean enabled = true;
+    // run socket listeners on virtual threads, needs Java 21, falls back to platform threads otherwise
+    private boolean listenerVirtualThreads = false;
+    // concurrent identical CAVV/HMAC requests share one HSM command
+    private boolean singleFlightEnabled = false;
+    // last N redacted frames kept per connection for diagnostics, 0 disables the wire trace
+    @Min(value = 0, message = "Wire trace capacity cannot be negative")
+    private int wireTraceCapacity = 64;
+    // record 1 in N frames into the wire trace
+    @Min(value = 1, message = "Wire trace sample rate must be at least 1")
+    private int wireTraceSampleRate = 1;
+
+    // traffic share of a node that was added or recovered grows from slowStartMinWeight to full over this period, 0 disables
+    @Min(value = 0, message = "Slow start window cannot be negative")
+    private long slowStartWindowSeconds = 30;
+    private SlowStart.Mode slowStartMode = SlowStart.Mode.LINEAR;
+    private double slowStartMinWeight = 0.05;
+    // how long a drained node waits for in-flight commands before its connections are closed
+    @Min(value = 0, message = "Node drain timeout cannot be negative")
+    private long nodeDrainTimeoutSeconds = 30;
+
+    // how long shutdown waits for in-flight commands before closing connections, 0 closes immediately
+    @Min(value = 0, message = "Shutdown drain timeout cannot be negative")
+    private long shutdownDrainTimeoutSeconds = 10;
+
+    // shed requests that would queue for a connection once queueing delay stays above target for an interval
+    private boolean admissionControlEnabled = false;
+    @Min(value = 1, message = "Admission target delay must be at least 1ms")
+    private long admissionTargetDelayMillis = 5;
+    // also the longest an admitted request waits for a connection
+    @Min(value = 1, message = "Admission interval must be at least 1ms")
+    private long admissionIntervalMillis = 100;
+    @Min(value = 1, message = "Admission max queue depth must be at least 1")
+    private int admissionMaxQueueDepth = 1024;
+    @Min(value = 1, message = "Admission max node queue depth must be at least 1")
+    private int admissionMaxNodeQueueDepth = 256;
+
+    // HMAC results for these key names are cached, empty disables the cache
+    private Set<String> hmacCacheKeyNames = Set.of();
+    @Min(value = 1, message = "HMAC cache max entries must be at least 1")
+    private long hmacCacheMaxEntries = 100_000;
+    @Min(value = 1, message = "HMAC cache ttl must be at least 1 second")
+    private long hmacCacheTtlSeconds = 300;
+    // keep cached results in a direct buffer instead of on the heap
+    private boolean hmacCacheOffHeap = false;
+    // longest result the off-heap cache stores, longer results are not cached
+    @Min(value = 1, message = "HMAC cache max value bytes must be at least 1")
+    @Max(value = 65535, message = "HMAC cache max value bytes cannot exceed 65535")
+    private int hmacCacheMaxValueBytes = 128;
+
+    // TLS to the HSM nodes, plain TCP when disabled
+    private boolean tlsEnabled = false;
+    // trust store with the HSM certificates or their CA, the JVM default trust store when not set
+    private String tlsTrustStore;
+    private String tlsTrustStorePassword;
+    private String tlsTrustStoreType = "PKCS12";
+    // client certificate, only needed when the HSMs require mutual TLS
+    private String tlsKeyStore;
+    private String tlsKeyStorePassword;
+    private String tlsKeyStoreType = "PKCS12";
+    private List<String> tlsProtocols = List.of("TLSv1.3", "TLSv1.2");
+    // empty uses the JVM defaults for the enabled protocols
+    private List<String> tlsCipherSuites = List.of();
+    // checks the node ip or host against the certificate, disable only for certificates without matching SANs
+    private boolean tlsHostnameVerification = true;
+    @Min(value = 1, message = "TLS handshake timeout must be at least 1ms")
+    private int tlsHandshakeTimeoutMillis = 5000;
+    // sessions kept for resumption, shared by all connections of the client
+    @Min(value = 0, message = "TLS session cache size cannot be negative")
+    private int tlsSessionCacheSize = 1024;
+    @Min(value = 0, message = "TLS session timeout cannot be negative")
+    private int tlsSessionTimeoutSeconds = 3600;
+
+    // every command sent to the HSMs, without its data, is appended to a memory-mapped journal in auditDirectory
+    private boolean auditEnabled = false;
+    private String auditDirectory;
+    @Min(value = 1, message = "Audit segment size must be at least 1 MB")
+    @Max(value = 2047, message = "Audit segment size cannot exceed 2047 MB")
+    private int auditSegmentSizeMb = 64;
+    // oldest segments beyond this count are deleted, 0 keeps all of them
+    @Min(value = 0, message = "Audit max segments cannot be negative")
+    private int auditMaxSegments = 0;
+    // entries waiting for the writer, rounded up to a power of two, entries beyond it are dropped and logged as a gap
+    @Min(value = 2, message = "Audit buffer capacity must be at least 2")
+    private int auditBufferCapacity = 65536;
+    @Min(value = 1, message = "Audit flush interval must be at least 1ms")
+    private long auditFlushIntervalMillis = 1000;
+
+    // how often the cached health snapshot served to health probes is rebuilt, also the window of its latency percentiles
+    @Min(value = 100, message = "Health snapshot interval must be at least 100ms")
+    private long healthSnapshotIntervalMillis = 5000;
 
     @PostConstruct
     public void validate() {
@@ -61,7 +160,8 @@ public class HSMConfig {
             if (hsmNodes != null && !hsmNodes.isEmpty()) {
                 log.warn("HSM Nodes configuration will be ignored for NETWORK_LEVEL load balancing");
             }
-        } else if (loadBalancingType == LoadBalancingType.CLIENT_SIDE_ROUND_ROBIN || loadBalancingType == LoadBalancingType.CLIENT_SIDE_FAILOVER) {
+        } else if (loadBalancingType == LoadBalancingType.CLIENT_SIDE_ROUND_ROBIN || loadBalancingType == LoadBalancingType.CLIENT_SIDE_FAILOVER
+                || loadBalancingType == LoadBalancingType.CLIENT_SIDE_WEIGHTED || loadBalancingType == LoadBalancingType.CLIENT_SIDE_KEY_AFFINITY) {
             if (hsmNodes == null || hsmNodes.isEmpty()) {
                 throw new IllegalArgumentException("HSM nodes must be configured for CLIENT_SIDE load balancing");
             }
@@ -72,9 +172,31 @@ public class HSMConfig {
                 if (node.getPort() <= 0 || node.getPort() > 65535) {
                     throw new IllegalArgumentException("Invalid port number for node: " + node.getIp());
                 }
+                if (node.getWeight() < 1 || node.getWeight() > HSMNode.MAX_WEIGHT) {
+                    throw new IllegalArgumentException("Weight must be between 1 and " + HSMNode.MAX_WEIGHT + " for node: " + node.getIp());
+                }
+                if (node.getMaxTps() < 0 || node.getBurst() < 0) {
+                    throw new IllegalArgumentException("Max TPS and burst cannot be negative for node: " + node.getIp());
+                }
             }
         }
 
+        if (keyAffinityLoadFactor < 1.0) {
+            throw new IllegalArgumentException("Key affinity load factor must be at least 1.0");
+        }
+
+        if (slowStartMinWeight <= 0 || slowStartMinWeight > 1) {
+            throw new IllegalArgumentException("Slow start min weight must be in (0, 1]");
+        }
+
+        if (tlsEnabled && (tlsProtocols == null || tlsProtocols.isEmpty())) {
+            throw new IllegalArgumentException("At least one TLS protocol must be enabled");
+        }
+
+        if (auditEnabled && (auditDirectory == null || auditDirectory.isBlank())) {
+            throw new IllegalArgumentException("Audit directory is mandatory when the audit journal is enabled");
+        }
+
         if (idleConnections > maxConnections) {
             throw new IllegalArgumentException("Idle connections cannot exceed max connections");
         }
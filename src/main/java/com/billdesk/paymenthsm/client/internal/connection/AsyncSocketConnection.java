@@ -2,40 +2,71 @@ package com.billdesk.paymenthsm.client.internal.connection;
 
 import com.billdesk.paymenthsm.client.internal.config.HSMConfig;
 import com.billdesk.paymenthsm.client.internal.core.CommandBuilder;
+import com.billdesk.paymenthsm.client.internal.core.CommandTemplate;
+import com.billdesk.paymenthsm.client.internal.core.CorrelationIdGenerator;
+import com.billdesk.paymenthsm.client.internal.core.HSMResultView;
+import com.billdesk.paymenthsm.client.internal.core.PendingCommand;
 import com.billdesk.paymenthsm.client.internal.core.ResponseDispatcher;
 import com.billdesk.paymenthsm.client.internal.exception.*;
 import com.billdesk.paymenthsm.client.internal.model.HSMNode;
+import com.billdesk.paymenthsm.client.internal.trace.WireTraceBuffer;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.nio.charset.StandardCharsets;
-import java.util.UUID;
+import java.util.Arrays;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Slf4j
 public class AsyncSocketConnection {
     private final Socket socket;
-    private final PrintWriter writer;
+    // null for plain TCP connections
+    private final TlsEngineStreams tls;
+    private final InputStream input;
+    private final OutputStream output;
+    // a ReentrantLock rather than PrintWriter's monitor, so a virtual thread blocked on a write does not pin its carrier
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // template commands are encoded here, guarded by writeLock
+    private byte[] sendBuffer = new byte[512];
     private final ResponseDispatcher responseDispatcher;
     private final CommandBuilder commandBuilder;
     private volatile boolean running = true;
     private final Thread listenerThread;
+    private final WireTraceBuffer wireTrace;
+    // only touched by the listener thread, handed to result view handlers for the duration of their callback
+    private final HSMResultView resultView = new HSMResultView();
+    // ConnectionBag state of this connection
+    private final AtomicInteger poolState = new AtomicInteger(ConnectionBag.NOT_IN_USE);
     private static final Long PING_HSM_TIMEOUT = 100L;
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
 
     public AsyncSocketConnection(Socket socket, ResponseDispatcher responseDispatcher,
                                  CommandBuilder commandBuilder, HSMConfig config, HSMNode hsmNode) throws IOException {
+        this(socket, null, responseDispatcher, commandBuilder, config, hsmNode);
+    }
+
+    /**
+     * @param tls streams of the completed TLS handshake on {@code socket}, null for plain TCP
+     */
+    AsyncSocketConnection(Socket socket, TlsEngineStreams tls, ResponseDispatcher responseDispatcher,
+                          CommandBuilder commandBuilder, HSMConfig config, HSMNode hsmNode) throws IOException {
         try {
             this.socket = socket;
+            this.tls = tls;
             this.responseDispatcher = responseDispatcher;
             this.commandBuilder = commandBuilder;
-            this.writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            this.wireTrace = WireTraceBuffer.create("HSM " + hsmNode.getIp() + ":" + hsmNode.getPort() + " local port " + socket.getLocalPort(),
+                    config.getWireTraceCapacity(), config.getWireTraceSampleRate());
+            this.input = tls != null ? tls.getInputStream() : socket.getInputStream();
+            this.output = tls != null ? tls.getOutputStream() : socket.getOutputStream();
 
             //TODO: kill this daemon thread later when socket closes??
-            this.listenerThread = new Thread(this::listenForResponses);
-            this.listenerThread.setName("HSM-Listener-" + socket.getPort());
-            this.listenerThread.setDaemon(true);
+            this.listenerThread = ListenerThreads.newThread(this::listenForResponses, "HSM-Listener-" + socket.getPort(),
+                    config.isListenerVirtualThreads());
             this.listenerThread.start();
         } catch (IOException e) {
             log.warn("Exception occured while connecting to socket listener to HSM {}:{}", hsmNode.getIp(), hsmNode.getPort(),e);
@@ -50,21 +81,37 @@ public class AsyncSocketConnection {
 
     private void listenForResponses() {
         try (BufferedReader reader = new BufferedReader(
-                new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                new InputStreamReader(input, StandardCharsets.UTF_8))) {
 
-            StringBuilder responseBuilder = new StringBuilder();
+            // frames are parsed in place, chars[start, end) is what has been read but not yet dispatched
             char[] buffer = new char[1024];
-            int bytesRead;
+            int start = 0;
+            int end = 0;
+            int charsRead;
 
-            while (running && (bytesRead = reader.read(buffer)) != -1) {
-                responseBuilder.append(buffer, 0, bytesRead);
-                String data = responseBuilder.toString();
-                log.info("Data received from HSM : {}", data);
+            while (running && (charsRead = reader.read(buffer, end, buffer.length - end)) != -1) {
+                int scanFrom = end;
+                end += charsRead;
 
                 //TODO: this seems specific to utimaco. check if can be made generic
-                if (data.trim().endsWith(">")) {
-                    processHsmResponse(data.trim());
-                    responseBuilder.setLength(0);
+                int frameEnd;
+                while ((frameEnd = indexOf(buffer, '>', scanFrom, end)) >= 0) {
+                    processFrame(buffer, start, frameEnd + 1);
+                    start = frameEnd + 1;
+                    scanFrom = start;
+                }
+                if (start == end) {
+                    start = 0;
+                    end = 0;
+                } else if (end == buffer.length) {
+                    int pending = end - start;
+                    if (start == 0) {
+                        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                    } else {
+                        System.arraycopy(buffer, start, buffer, 0, pending);
+                    }
+                    start = 0;
+                    end = pending;
                 }
             }
         } catch (SocketTimeoutException e) {
@@ -74,23 +121,57 @@ public class AsyncSocketConnection {
         } catch (IOException e) {
             log.error("Closing listener for socket {}:{}", socket.getInetAddress().getHostAddress(), socket.getPort(), e);
             if (running) {
+                dumpWireTraceOnError();
                 responseDispatcher.completeAllWithError(new HSMConnectionException("Socket connection closed"));
             }
         }
     }
 
-    private void processHsmResponse(String fullResponse) {
+    private void processFrame(char[] chars, int from, int to) {
+        while (from < to && Character.isWhitespace(chars[from])) {
+            from++;
+        }
+        while (to > from && Character.isWhitespace(chars[to - 1])) {
+            to--;
+        }
+        if (from < to) {
+            wireTrace.record(WireTraceBuffer.Direction.IN, chars, from, to - from);
+            processHsmResponse(chars, from, to);
+        }
+    }
+
+    private void processHsmResponse(char[] frame, int from, int to) {
+        String contextTag = null;
         try {
-            String contextTag = commandBuilder.extractContextTag(fullResponse);
-            log.info("Context Tag : {}", contextTag);
-            String responseData = commandBuilder.parseResponse(fullResponse);
-            log.info("Important Value from hsm : {}", responseData);
-            if (contextTag != null) {
-                responseDispatcher.completeResponse(contextTag, responseData);
+            contextTag = commandBuilder.extractContextTag(frame, from, to);
+            if (log.isDebugEnabled()) {
+                log.debug("Response received from HSM for context tag {}", contextTag);
+            }
+            if (contextTag == null) {
+                return;
+            }
+            if (responseDispatcher.acceptsView(contextTag)) {
+                commandBuilder.parseResponse(frame, from, to, resultView);
+                responseDispatcher.completeResponse(contextTag, resultView);
+            } else {
+                responseDispatcher.completeResponse(contextTag, commandBuilder.parseResponse(frame, from, to));
             }
         } catch (Exception e) {
-            log.error("Error processing response: {}", e.getMessage());
+            log.error("Error processing response {}: {}", WireTraceBuffer.redact(new String(frame, from, to - from)), e.getMessage());
+            // an error reply or one that cannot be parsed fails its command now instead of at the timeout
+            if (contextTag != null) {
+                responseDispatcher.completeWithError(contextTag, e);
+            }
+        }
+    }
+
+    private static int indexOf(char[] chars, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (chars[i] == c) {
+                return i;
+            }
         }
+        return -1;
     }
 
     public CompletableFuture<String> pingHsm() {
@@ -98,7 +179,7 @@ public class AsyncSocketConnection {
     }
 
     private String generatePingCorrelationId() {
-        return "PING_" + System.currentTimeMillis() + "_" + UUID.randomUUID().toString().substring(0, 8);
+        return CorrelationIdGenerator.pingId();
     }
 
     public CompletableFuture<String> sendCommandToHSM(String command, String contextTag) {
@@ -107,37 +188,122 @@ public class AsyncSocketConnection {
 
     public CompletableFuture<String> sendCommandToHSM(String command, String contextTag, Long timeoutMs) {
         CompletableFuture<String> future = new CompletableFuture<>();
+        sendCommandToHSM(command, contextTag, PendingCommand.of(future), timeoutMs);
+        return future;
+    }
+
+    /**
+     * Sends a command whose outcome is reported to {@code pending}, which is completed on the listener thread.
+     * A send failure fails it on the calling thread.
+     */
+    public void sendCommandToHSM(String command, String contextTag, PendingCommand pending, Long timeoutMs) {
         try {
-            log.info("Command to HSM -> {}", command);
             if (timeoutMs != null) {
-                responseDispatcher.registerRequest(contextTag, future, timeoutMs);
+                responseDispatcher.registerRequest(contextTag, pending, timeoutMs);
             } else {
-                responseDispatcher.registerRequest(contextTag, future);
+                responseDispatcher.registerRequest(contextTag, pending);
             }
             String formattedCommand = commandBuilder.embedContextTag(command, contextTag);
-            log.info("Formatted command to HSM -> {}", formattedCommand);
+            if (log.isDebugEnabled()) {
+                log.debug("Sending command to HSM with context tag {}", contextTag);
+            }
             if (!isConnected()) {
                 throw new HSMConnectionException("Socket is not connected");
             }
-            writer.println(formattedCommand);
-            writer.flush();
-            if (writer.checkError()) {
-                throw new HSMIOException("Failed to write command to HSM output stream");
-            }
+            write(formattedCommand);
+            wireTrace.record(WireTraceBuffer.Direction.OUT, formattedCommand);
         } catch (Exception e) {
+            dumpWireTraceOnError();
             responseDispatcher.completeHSMCommandSendFailureWithError(command, contextTag, e);
         }
-        return future;
+    }
+
+    /**
+     * Sends {@code template} with {@code data}, encoded straight into the send buffer with the context tag in the
+     * template's slot. Templates without a tag slot go through {@link CommandBuilder#embedContextTag}.
+     */
+    public void sendCommandToHSM(CommandTemplate template, String data, String contextTag, PendingCommand pending) {
+        if (!template.hasTagSlot()) {
+            sendCommandToHSM(template.render(data), contextTag, pending, null);
+            return;
+        }
+        try {
+            responseDispatcher.registerRequest(contextTag, pending);
+            if (log.isDebugEnabled()) {
+                log.debug("Sending command to HSM with context tag {}", contextTag);
+            }
+            if (!isConnected()) {
+                throw new HSMConnectionException("Socket is not connected");
+            }
+            write(template, data, contextTag);
+        } catch (Exception e) {
+            dumpWireTraceOnError();
+            responseDispatcher.completeHSMCommandSendFailureWithError(template.render(data), contextTag, e);
+        }
+    }
+
+    private void write(CommandTemplate template, String data, String contextTag) {
+        writeLock.lock();
+        try {
+            int length = template.maxEncodedLength(data, contextTag) + LINE_SEPARATOR.length;
+            if (sendBuffer.length < length) {
+                sendBuffer = new byte[Math.max(length, sendBuffer.length * 2)];
+            }
+            int end = template.encode(data, contextTag, sendBuffer, 0);
+            if (end < 0) {
+                String formattedCommand = commandBuilder.embedContextTag(template.render(data), contextTag);
+                write(formattedCommand);
+                wireTrace.record(WireTraceBuffer.Direction.OUT, formattedCommand);
+                return;
+            }
+            System.arraycopy(LINE_SEPARATOR, 0, sendBuffer, end, LINE_SEPARATOR.length);
+            output.write(sendBuffer, 0, end + LINE_SEPARATOR.length);
+            output.flush();
+            // still under the lock, the next command reuses the buffer
+            wireTrace.record(WireTraceBuffer.Direction.OUT, sendBuffer, 0, end);
+        } catch (IOException e) {
+            throw new HSMIOException("Failed to write command to HSM output stream", e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void write(String formattedCommand) {
+        // line terminated like the PrintWriter.println this replaced
+        byte[] frame = (formattedCommand + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+        writeLock.lock();
+        try {
+            output.write(frame);
+            output.flush();
+        } catch (IOException e) {
+            throw new HSMIOException("Failed to write command to HSM output stream", e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public WireTraceBuffer getWireTrace() {
+        return wireTrace;
+    }
+
+    private void dumpWireTraceOnError() {
+        if (wireTrace.isEnabled()) {
+            log.warn(wireTrace.dump());
+        }
     }
 
     public void close() {
         running = false;
         try {
+            log.debug("Closing socket and associated response dispatcher");
+            if (tls != null) {
+                tls.close();
+            }
+            // closing the socket is what unblocks the listener's read, interrupt alone does not
+            socket.close();
             listenerThread.interrupt();
             listenerThread.join(5000);
-            log.debug("Closing socket and associated response dispatcher");
             responseDispatcher.shutdown();
-            socket.close();
         } catch (IOException e) {
             log.warn("Exception occurred while closing socket!", e);
         } catch (InterruptedException e) {
@@ -146,6 +312,14 @@ public class AsyncSocketConnection {
         }
     }
 
+    boolean compareAndSetPoolState(int expect, int update) {
+        return poolState.compareAndSet(expect, update);
+    }
+
+    int getPoolState() {
+        return poolState.get();
+    }
+
     public boolean isConnected() {
         return socket != null && !socket.isClosed() && socket.isConnected();
     }
@@ -2,46 +2,67 @@ package com.billdesk.paymenthsm.client.internal.connection;
 
 import com.billdesk.paymenthsm.client.internal.core.CommandBuilder;
 import com.billdesk.paymenthsm.client.internal.config.HSMConfig;
+import com.billdesk.paymenthsm.client.internal.jfr.ConnectionLifecycleEvent;
 import com.billdesk.paymenthsm.client.internal.model.HSMNode;
 import com.billdesk.paymenthsm.client.internal.core.ResponseDispatcher;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.pool2.PooledObject;
-import org.apache.commons.pool2.PooledObjectFactory;
-import org.apache.commons.pool2.impl.DefaultPooledObject;
 
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
 @Slf4j
-public class AsyncSocketFactory implements PooledObjectFactory<AsyncSocketConnection> {
+public class AsyncSocketFactory {
     public static final int HSM_SOCKET_CONNECT_TIMEOUT = 5000;
     public static final int HSM_SOCKET_READ_TIMEOUT = 45000;
     private final HSMNode hsmNode;
     private final HSMConfig hsmConfig;
     private final CommandBuilder commandBuilder;
+    private final String nodeAddress;
+    private final Set<AsyncSocketConnection> liveConnections = ConcurrentHashMap.newKeySet();
+    // null unless hsm.client.tls-enabled
+    private final TlsTransport tlsTransport;
 
     public AsyncSocketFactory(HSMNode hsmNode, HSMConfig hsmConfig,
                               CommandBuilder commandBuilder) {
         this.hsmNode = hsmNode;
         this.hsmConfig = hsmConfig;
         this.commandBuilder = commandBuilder;
+        this.nodeAddress = hsmNode.getIp() + ":" + hsmNode.getPort();
+        this.tlsTransport = hsmConfig.isTlsEnabled() ? TlsTransport.forConfig(hsmConfig) : null;
     }
 
-    @Override
-    public PooledObject<AsyncSocketConnection> makeObject() throws IOException {
+    public AsyncSocketConnection makeObject() throws IOException {
+        ConnectionLifecycleEvent openEvent = ConnectionLifecycleEvent.beginIfEnabled(nodeAddress, ConnectionLifecycleEvent.OPEN);
+        try {
+            AsyncSocketConnection connection = openConnection();
+            ConnectionLifecycleEvent.commit(openEvent, null);
+            return connection;
+        } catch (IOException e) {
+            ConnectionLifecycleEvent.commit(openEvent, e);
+            throw e;
+        }
+    }
+
+    private AsyncSocketConnection openConnection() throws IOException {
         try {
             Socket socket = new Socket();
             socket.connect(new InetSocketAddress(hsmNode.getIp(), hsmNode.getPort()), HSM_SOCKET_CONNECT_TIMEOUT);
             socket.setSoTimeout(HSM_SOCKET_READ_TIMEOUT);
             socket.setKeepAlive(true);
             socket.setTcpNoDelay(true);
+            TlsEngineStreams tls = tlsTransport == null ? null : handshake(socket);
             ResponseDispatcher responseDispatcher = new ResponseDispatcher(hsmNode);
             log.debug("Creating socket connection to {}:{}", hsmNode.getIp(), hsmNode.getPort());
-            AsyncSocketConnection asyncConn = new AsyncSocketConnection(socket, responseDispatcher, commandBuilder, hsmConfig, hsmNode);
-            return new DefaultPooledObject<>(asyncConn);
+            AsyncSocketConnection asyncConn = new AsyncSocketConnection(socket, tls, responseDispatcher, commandBuilder, hsmConfig, hsmNode);
+            liveConnections.add(asyncConn);
+            return asyncConn;
         } catch (SocketTimeoutException ste) {
             throw new IOException("Timeout while connecting to HSM " + hsmNode.getIp() + ":" + hsmNode.getPort(), ste);
         } catch (ConnectException ce) {
@@ -54,24 +75,42 @@ public class AsyncSocketFactory implements PooledObjectFactory<AsyncSocketConnec
         }
     }
 
-    @Override
-    public void destroyObject(PooledObject<AsyncSocketConnection> p) {
-        p.getObject().close();
+    private TlsEngineStreams handshake(Socket socket) throws IOException {
+        try {
+            return tlsTransport.handshake(socket, hsmNode.getIp(), hsmNode.getPort());
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException closeError) {
+                log.debug("Failed to close socket after TLS handshake failure", closeError);
+            }
+            throw new IOException("TLS handshake with HSM " + nodeAddress + " failed", e);
+        }
     }
 
-    @Override
-    public boolean validateObject(PooledObject<AsyncSocketConnection> p) {
-        return p.getObject().isConnected();
+    public boolean isTls() {
+        return tlsTransport != null;
+    }
 
+    public void destroyObject(AsyncSocketConnection connection) {
+        ConnectionLifecycleEvent closeEvent = ConnectionLifecycleEvent.beginIfEnabled(nodeAddress, ConnectionLifecycleEvent.CLOSE);
+        try {
+            liveConnections.remove(connection);
+            connection.close();
+            ConnectionLifecycleEvent.commit(closeEvent, null);
+        } catch (RuntimeException e) {
+            ConnectionLifecycleEvent.commit(closeEvent, e);
+            throw e;
+        }
     }
 
-    @Override
-    public void activateObject(PooledObject<AsyncSocketConnection> p) {
-        // kept it blank intentionally
+    public List<String> dumpWireTrace() {
+        return liveConnections.stream()
+                .map(connection -> connection.getWireTrace().dump())
+                .collect(Collectors.toList());
     }
 
-    @Override
-    public void passivateObject(PooledObject<AsyncSocketConnection> p) {
-        // kept it blank intentionally
+    public String getNodeAddress() {
+        return nodeAddress;
     }
-}
\ No newline at end of file
+}
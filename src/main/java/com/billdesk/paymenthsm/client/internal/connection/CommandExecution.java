@@ -0,0 +1,93 @@
+package com.billdesk.paymenthsm.client.internal.connection;
+
+import com.billdesk.paymenthsm.client.internal.core.CommandTemplate;
+import com.billdesk.paymenthsm.client.internal.core.HSMResultView;
+import com.billdesk.paymenthsm.client.internal.core.PendingCommand;
+import com.billdesk.paymenthsm.client.internal.jfr.HSMCommandEvent;
+
+/**
+ * One command travelling through {@link HSMConnectionPool#execute(CommandExecution)}. The pool attaches the
+ * borrowed connection to it and the dispatcher completes it directly, so the connection goes back to the pool
+ * and the subclass sees the outcome without any future stages in between. An execution may be handed to
+ * another pool again from {@link #onFailure(Throwable)}.
+ */
+public abstract class CommandExecution extends PendingCommand {
+
+    private HSMConnectionPool pool;
+    private AsyncSocketConnection socket;
+    private HSMCommandEvent commandEvent;
+    private long sentNanos;
+
+    public abstract String getCommand();
+
+    /**
+     * Template the command is built from, null for a ready made command. Template commands are encoded straight
+     * into the connection's send buffer, {@link #getCommand()} is then only rendered for logs.
+     */
+    public CommandTemplate getTemplate() {
+        return null;
+    }
+
+    /**
+     * Data for the slot of {@link #getTemplate()}.
+     */
+    public String getData() {
+        return null;
+    }
+
+    public abstract String getCorrelationId();
+
+    protected abstract void onSuccess(String response);
+
+    protected abstract void onFailure(Throwable error);
+
+    protected void onSuccess(HSMResultView result) {
+        onSuccess(result.toString());
+    }
+
+    /**
+     * True for a second or later attempt. Retries run on listener and timeout threads, so they only take an idle
+     * connection and fail fast otherwise, never waiting for one or connecting on that thread.
+     */
+    protected boolean isRetry() {
+        return false;
+    }
+
+    void attach(HSMConnectionPool pool, AsyncSocketConnection socket, HSMCommandEvent commandEvent, long sentNanos) {
+        this.pool = pool;
+        this.socket = socket;
+        this.commandEvent = commandEvent;
+        this.sentNanos = sentNanos;
+    }
+
+    @Override
+    public final void complete(String response) {
+        release(null);
+        onSuccess(response);
+    }
+
+    @Override
+    public final void complete(HSMResultView result) {
+        release(null);
+        onSuccess(result);
+    }
+
+    @Override
+    public final void fail(Throwable error) {
+        release(error);
+        onFailure(error);
+    }
+
+    private void release(Throwable error) {
+        HSMConnectionPool attachedPool = pool;
+        if (attachedPool == null) {
+            // rejected before a connection was borrowed
+            return;
+        }
+        AsyncSocketConnection attachedSocket = socket;
+        HSMCommandEvent event = commandEvent;
+        long sent = sentNanos;
+        attach(null, null, null, 0);
+        attachedPool.release(attachedSocket, event, sent, error);
+    }
+}
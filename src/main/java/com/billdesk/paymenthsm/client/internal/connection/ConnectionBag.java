@@ -0,0 +1,391 @@
+package com.billdesk.paymenthsm.client.internal.connection;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connection pool for one HSM node, in place of commons-pool2's GenericObjectPool whose lock protected idle
+ * deque showed up as contention at high thread counts. Modelled on a concurrent bag:
+ * <ul>
+ *     <li>every connection carries its own state and is claimed with a single CAS, there is no idle queue</li>
+ *     <li>a thread first tries the connection it borrowed last, which is usually free again by then: replies
+ *     return connections on the listener threads, so this is tracked per borrowing thread</li>
+ *     <li>otherwise it scans the copy-on-write list of all connections, creates one if below the maximum,
+ *     and only then waits for a connection handed over directly by a returning thread</li>
+ * </ul>
+ * Validation on borrow is {@link AsyncSocketConnection#isConnected()}, which only reads socket state.
+ * Method names follow GenericObjectPool so the pool semantics read the same as before.
+ * <p>
+ * TLS pools open connections in the background instead: a borrower that finds nothing idle starts an open on
+ * the opener thread and waits for the handshaken connection to be handed over, and an invalidated connection
+ * is replaced in the background while the pool is below minIdle. A reconnect storm then never runs handshakes
+ * on request threads, and a connection only becomes borrowable once its handshake is done.
+ */
+@Slf4j
+public class ConnectionBag {
+
+    static final int NOT_IN_USE = 0;
+    static final int IN_USE = 1;
+    static final int REMOVED = -1;
+    // borrowed when the pool was cleared, closed instead of reused once returned
+    static final int RETIRING = 2;
+
+    // threads waiting for a connection re-check the bag at least this often
+    private static final long WAIT_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    // a waiter that is not polling yet finds the returned connection on its next scan instead
+    private static final int HANDOFF_ATTEMPTS = 16;
+
+    private static final ExecutorService OPENER = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "HSM-Connection-Opener");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AsyncSocketFactory factory;
+    private final int maxTotal;
+    private final int minIdle;
+    private final List<AsyncSocketConnection> connections = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<AsyncSocketConnection> lastBorrowed = new ThreadLocal<>();
+    private final SynchronousQueue<AsyncSocketConnection> handoff = new SynchronousQueue<>(true);
+    // connections open or being opened, bounded by maxTotal
+    private final AtomicInteger total = new AtomicInteger();
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final boolean openInBackground;
+    private final AtomicInteger opening = new AtomicInteger();
+    // borrowers waiting for a background open fail with the error of an open that failed while they waited
+    private final AtomicLong openFailures = new AtomicLong();
+    private volatile Exception lastOpenFailure;
+    private volatile boolean closed;
+
+    public ConnectionBag(AsyncSocketFactory factory, int maxTotal, int minIdle) {
+        this(factory, maxTotal, minIdle, false);
+    }
+
+    /**
+     * @param openInBackground open connections on the opener thread rather than the borrowing one
+     */
+    public ConnectionBag(AsyncSocketFactory factory, int maxTotal, int minIdle, boolean openInBackground) {
+        this.factory = factory;
+        this.maxTotal = maxTotal;
+        this.minIdle = minIdle;
+        this.openInBackground = openInBackground;
+    }
+
+    public AsyncSocketConnection borrowObject() throws Exception {
+        return borrow(Long.MAX_VALUE);
+    }
+
+    /**
+     * @throws NoSuchElementException if no connection became free within {@code maxWait}
+     */
+    public AsyncSocketConnection borrowObject(Duration maxWait) throws Exception {
+        return borrow(maxWait.toNanos());
+    }
+
+    /**
+     * Claims an idle connection without waiting and without connecting on the calling thread, for callers
+     * that must not block, e.g. retries on listener threads. Below the maximum a connection is opened in
+     * the background for the borrowers after it.
+     *
+     * @throws NoSuchElementException if no connection is idle
+     */
+    public AsyncSocketConnection borrowIdleObject() throws Exception {
+        ensureOpen();
+        AsyncSocketConnection connection = claimLast();
+        if (connection != null) {
+            return connection;
+        }
+        connection = claimIdle();
+        if (connection == null) {
+            if (opening.get() == 0) {
+                openAsync();
+            }
+            throw new NoSuchElementException("No idle connection to HSM " + factory.getNodeAddress());
+        }
+        lastBorrowed.set(connection);
+        return connection;
+    }
+
+    private AsyncSocketConnection borrow(long timeoutNanos) throws Exception {
+        ensureOpen();
+        AsyncSocketConnection connection = claimLast();
+        if (connection != null) {
+            return connection;
+        }
+        connection = await(timeoutNanos);
+        lastBorrowed.set(connection);
+        return connection;
+    }
+
+    private AsyncSocketConnection claimLast() {
+        AsyncSocketConnection last = lastBorrowed.get();
+        if (last != null && last.compareAndSetPoolState(NOT_IN_USE, IN_USE)) {
+            if (last.isConnected()) {
+                return last;
+            }
+            invalidateObject(last);
+        }
+        return null;
+    }
+
+    private AsyncSocketConnection await(long timeoutNanos) throws Exception {
+        long deadline = timeoutNanos == Long.MAX_VALUE ? Long.MAX_VALUE : System.nanoTime() + timeoutNanos;
+        long failuresSeen = openFailures.get();
+        waiters.incrementAndGet();
+        try {
+            while (true) {
+                AsyncSocketConnection connection = claimIdle();
+                if (connection != null) {
+                    return connection;
+                }
+                if (openInBackground) {
+                    if (openFailures.get() != failuresSeen) {
+                        throw lastOpenFailure;
+                    }
+                    if (opening.get() < waiters.get()) {
+                        openAsync();
+                    }
+                } else {
+                    connection = tryCreate();
+                    if (connection != null) {
+                        return connection;
+                    }
+                }
+                long remaining = deadline == Long.MAX_VALUE ? WAIT_SLICE_NANOS : deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new NoSuchElementException("Timeout waiting for an idle connection to HSM " + factory.getNodeAddress());
+                }
+                connection = handoff.poll(Math.min(remaining, WAIT_SLICE_NANOS), TimeUnit.NANOSECONDS);
+                if (connection != null && connection.compareAndSetPoolState(NOT_IN_USE, IN_USE)) {
+                    if (connection.isConnected()) {
+                        return connection;
+                    }
+                    invalidateObject(connection);
+                }
+                ensureOpen();
+            }
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    private AsyncSocketConnection claimIdle() throws Exception {
+        for (AsyncSocketConnection connection : connections) {
+            if (connection.compareAndSetPoolState(NOT_IN_USE, IN_USE)) {
+                if (connection.isConnected()) {
+                    return connection;
+                }
+                invalidateObject(connection);
+            }
+        }
+        return null;
+    }
+
+    private boolean reserve() {
+        int current;
+        do {
+            current = total.get();
+            if (current >= maxTotal) {
+                return false;
+            }
+        } while (!total.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    private AsyncSocketConnection tryCreate() throws Exception {
+        if (!reserve()) {
+            return null;
+        }
+        try {
+            AsyncSocketConnection connection = factory.makeObject();
+            connection.compareAndSetPoolState(NOT_IN_USE, IN_USE);
+            connections.add(connection);
+            if (closed) {
+                invalidateObject(connection);
+                ensureOpen();
+            }
+            return connection;
+        } catch (Exception e) {
+            total.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private void openAsync() {
+        if (closed || !reserve()) {
+            return;
+        }
+        opening.incrementAndGet();
+        OPENER.execute(() -> {
+            try {
+                AsyncSocketConnection connection = factory.makeObject();
+                connections.add(connection);
+                if (closed) {
+                    connection.compareAndSetPoolState(NOT_IN_USE, IN_USE);
+                    invalidateObject(connection);
+                    return;
+                }
+                handOff(connection);
+            } catch (Exception e) {
+                total.decrementAndGet();
+                lastOpenFailure = e;
+                openFailures.incrementAndGet();
+                log.warn("Failed to open connection to HSM {}: {}", factory.getNodeAddress(), e.getMessage());
+            } finally {
+                opening.decrementAndGet();
+            }
+        });
+    }
+
+    public void returnObject(AsyncSocketConnection connection) {
+        if (!connection.compareAndSetPoolState(IN_USE, NOT_IN_USE)) {
+            int state = connection.getPoolState();
+            if (state == RETIRING) {
+                invalidateObject(connection);
+                return;
+            }
+            if (state == REMOVED) {
+                // evicted by abort() while borrowed
+                return;
+            }
+            throw new IllegalStateException("Returned connection is not borrowed from this pool");
+        }
+        if (closed) {
+            invalidateObject(connection);
+            return;
+        }
+        handOff(connection);
+    }
+
+    private void handOff(AsyncSocketConnection connection) {
+        // hand over to a waiting borrower while the connection is still free, otherwise it is found by a scan
+        for (int attempt = 0; attempt < HANDOFF_ATTEMPTS && waiters.get() > 0; attempt++) {
+            if (connection.getPoolState() != NOT_IN_USE || handoff.offer(connection)) {
+                return;
+            }
+            Thread.yield();
+        }
+    }
+
+    public void invalidateObject(AsyncSocketConnection connection) {
+        // retried, clear() may retire the connection concurrently
+        int state;
+        do {
+            state = connection.getPoolState();
+            if (state == REMOVED) {
+                return;
+            }
+        } while (!connection.compareAndSetPoolState(state, REMOVED));
+        if (connections.remove(connection)) {
+            total.decrementAndGet();
+        }
+        factory.destroyObject(connection);
+        if (openInBackground && !closed && total.get() < minIdle) {
+            openAsync();
+        }
+    }
+
+    /**
+     * Closes all idle connections now and retires borrowed ones, which are closed instead of reused once
+     * returned, so the commands in flight on them still complete.
+     */
+    public void clear() {
+        for (AsyncSocketConnection connection : connections) {
+            while (true) {
+                int state = connection.getPoolState();
+                if (state == NOT_IN_USE && connection.compareAndSetPoolState(NOT_IN_USE, IN_USE)) {
+                    invalidateObject(connection);
+                    break;
+                }
+                if (state == IN_USE && connection.compareAndSetPoolState(IN_USE, RETIRING) || state == RETIRING || state == REMOVED) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens connections until at least minIdle are idle.
+     */
+    public void preparePool() throws Exception {
+        while (!closed && getNumIdle() < minIdle) {
+            AsyncSocketConnection connection = tryCreate();
+            if (connection == null) {
+                return;
+            }
+            returnObject(connection);
+        }
+    }
+
+    /**
+     * Closes idle connections and fails further borrows, borrowed connections are closed when returned.
+     */
+    public void close() {
+        closed = true;
+        clear();
+    }
+
+    /**
+     * Closes the pool and every connection in it, including borrowed ones, whose pending commands fail.
+     */
+    public void abort() {
+        closed = true;
+        for (AsyncSocketConnection connection : connections) {
+            invalidateObject(connection);
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Pool not open");
+        }
+    }
+
+    public int getNumActive() {
+        return count(IN_USE) + count(RETIRING);
+    }
+
+    public int getNumRetiring() {
+        return count(RETIRING);
+    }
+
+    public int getNumIdle() {
+        return count(NOT_IN_USE);
+    }
+
+    public int getNumWaiters() {
+        return waiters.get();
+    }
+
+    public int getMaxTotal() {
+        return maxTotal;
+    }
+
+    public int getMinIdle() {
+        return minIdle;
+    }
+
+    private int count(int state) {
+        int count = 0;
+        for (AsyncSocketConnection connection : connections) {
+            if (connection.getPoolState() == state) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -1,19 +1,28 @@
 package com.billdesk.paymenthsm.client.internal.connection;
 
+import com.billdesk.paymenthsm.client.internal.admission.AdmissionController;
 import com.billdesk.paymenthsm.client.internal.config.HSMConfig;
 import com.billdesk.paymenthsm.client.internal.core.CommandBuilder;
+import com.billdesk.paymenthsm.client.internal.core.CommandTemplate;
 import com.billdesk.paymenthsm.client.internal.exception.*;
+import com.billdesk.paymenthsm.client.internal.health.LatencyHistogram;
+import com.billdesk.paymenthsm.client.internal.jfr.ConnectionLifecycleEvent;
+import com.billdesk.paymenthsm.client.internal.jfr.HSMCommandEvent;
+import com.billdesk.paymenthsm.client.internal.jfr.PoolAcquireEvent;
 import com.billdesk.paymenthsm.client.internal.model.HSMNode;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.pool2.impl.GenericObjectPool;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 @Slf4j
 public class HSMConnectionPool {
@@ -22,8 +31,28 @@ public class HSMConnectionPool {
     private final HSMNode node;
     private final HSMConfig config;
     @Getter
-    private final GenericObjectPool<AsyncSocketConnection> internalConnectionPool;
+    private final ConnectionBag internalConnectionPool;
     private final AtomicBoolean healthy = new AtomicBoolean(true);
+    // set once the pool is being drained, new commands are refused while those already in flight finish
+    private volatile boolean draining;
+    @Getter
+    private final String nodeAddress;
+    private final AsyncSocketFactory socketFactory;
+    private final LongAdder commandsExecuted = new LongAdder();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // from borrowing a connection to the answer, of every command that got one
+    @Getter
+    private final LatencyHistogram latency = new LatencyHistogram();
+    // wall clock of the last successful ping, 0 before the first
+    private volatile long lastPingMillis;
+    private final SlowStart slowStart;
+    // null when the node has no maxTps
+    private final TokenBucket rateLimit;
+    private final LongAdder rateLimited = new LongAdder();
+    // both null unless hsm.client.admission-control-enabled
+    private final AdmissionController globalAdmission;
+    @Getter
+    private final AdmissionController admission;
 
     public void printPoolStats() {
         int active = internalConnectionPool.getNumActive();
@@ -37,16 +66,27 @@ public class HSMConnectionPool {
 
     public HSMConnectionPool(HSMNode node, HSMConfig config,
                              CommandBuilder commandBuilder) {
+        this(node, config, commandBuilder, null);
+    }
+
+    /**
+     * @param globalAdmission controller shared by all pools of the client, null disables admission control
+     */
+    public HSMConnectionPool(HSMNode node, HSMConfig config,
+                             CommandBuilder commandBuilder, AdmissionController globalAdmission) {
         this.node = node;
         this.config = config;
-        this.internalConnectionPool = new GenericObjectPool<>(
-                new AsyncSocketFactory(node, config, commandBuilder)
-        );
-        internalConnectionPool.setMaxTotal(config.getMaxConnections());
-        internalConnectionPool.setMinIdle(config.getIdleConnections());
-        internalConnectionPool.setTestOnBorrow(true);
-        internalConnectionPool.setTestOnReturn(false);
-        internalConnectionPool.setTestWhileIdle(false);
+        this.nodeAddress = node.getIp() + ":" + node.getPort();
+        this.slowStart = new SlowStart(TimeUnit.SECONDS.toMillis(config.getSlowStartWindowSeconds()),
+                config.getSlowStartMode(), config.getSlowStartMinWeight());
+        this.rateLimit = node.getMaxTps() > 0
+                ? new TokenBucket(node.getMaxTps(), node.getBurst() > 0 ? node.getBurst() : Math.max(1, node.getMaxTps() / 10)) : null;
+        this.globalAdmission = globalAdmission;
+        this.admission = globalAdmission == null ? null : new AdmissionController("HSM " + nodeAddress,
+                config.getAdmissionTargetDelayMillis(), config.getAdmissionIntervalMillis(), config.getAdmissionMaxNodeQueueDepth());
+        this.socketFactory = new AsyncSocketFactory(node, config, commandBuilder);
+        this.internalConnectionPool = new ConnectionBag(socketFactory, config.getMaxConnections(), config.getIdleConnections(),
+                socketFactory.isTls());
         try {
             // prepares the idle connections also at startup else lazy loading is done
             internalConnectionPool.preparePool();
@@ -81,53 +121,241 @@ public class HSMConnectionPool {
     }
 
     public CompletableFuture<String> executeCommand(String command, String correlationId) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        execute(new CommandExecution() {
+            @Override
+            public String getCommand() {
+                return command;
+            }
+
+            @Override
+            public String getCorrelationId() {
+                return correlationId;
+            }
+
+            @Override
+            protected void onSuccess(String response) {
+                future.complete(response);
+            }
+
+            @Override
+            protected void onFailure(Throwable error) {
+                future.completeExceptionally(error);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Sends the command on a borrowed connection. The execution is completed exactly once, on the listener
+     * thread once the HSM answers, or on the calling thread when the command cannot be sent.
+     */
+    public void execute(CommandExecution execution) {
+        // counted before the draining check, so a drain either refuses the command or waits for it, a command
+        // never reaches a pool that was shut down after awaitIdle saw it idle
+        int queued = inFlight.incrementAndGet();
+        if (draining) {
+            refuse(execution, new HSMUnhealthyNodeException("HSM " + nodeAddress + " is draining"));
+            return;
+        }
         if (!isHealthy()) {
-            CompletableFuture<String> failed = new CompletableFuture<>();
             String errorMsg = String.format("HSM node si %s:%d is unhealthy", node.getIp(), node.getPort());
-            failed.completeExceptionally(new HSMUnhealthyNodeException(errorMsg));
-            return failed;
+            refuse(execution, new HSMUnhealthyNodeException(errorMsg));
+            return;
         }
-        AsyncSocketConnection socket = null;
+        if (rateLimit != null && !rateLimit.tryAcquire()) {
+            rateLimited.increment();
+            refuse(execution, new HSMOverloadedException("HSM " + nodeAddress + " is at its rate limit of " + node.getMaxTps() + " TPS"));
+            return;
+        }
+        if (admission != null) {
+            boolean wouldQueue = queued > config.getMaxConnections();
+            if (!globalAdmission.tryAcquire(wouldQueue)) {
+                refundRate();
+                refuse(execution, new HSMOverloadedException("HSM client is overloaded, request rejected"));
+                return;
+            }
+            if (!admission.tryAcquire(wouldQueue)) {
+                globalAdmission.cancel();
+                refundRate();
+                refuse(execution, new HSMOverloadedException("HSM " + nodeAddress + " is overloaded, request rejected"));
+                return;
+            }
+        }
+        AsyncSocketConnection socket;
+        PoolAcquireEvent acquireEvent = PoolAcquireEvent.beginIfEnabled(nodeAddress);
         try {
-            socket = internalConnectionPool.borrowObject();
-            final AsyncSocketConnection finalSocket = socket;
-            return socket.sendCommandToHSM(command, correlationId)
-                    .whenComplete((hsmResult, ex) -> {
-                        try {
-                            if (ex != null) {
-                                if (ex.getCause() instanceof HSMConnectionException || ex.getCause() instanceof HSMSocketTimeoutException || ex.getCause() instanceof HSMIOException) {
-                                    log.warn("Command failed  due to connection issue, invalidating socker for {}:{}", node.getIp(), node.getPort());
-                                    invalidateConnectionSafely(finalSocket);
-                                } else {
-                                    returnConnectionSafely(finalSocket);
-                                }
-                            } else {
-                                returnConnectionSafely(finalSocket);
-                            }
-                        } catch (Exception poolError) {
-                            log.error("Unwarranted exception occurred to socket to {}:{}", node.getIp(), node.getPort(), poolError);
-                            // Last resort can be to try to invalidate
-                            invalidateConnectionSafely(finalSocket);
-                        }
-                    });
+            socket = borrow(execution.isRetry());
+            if (acquireEvent != null) {
+                PoolAcquireEvent.commit(acquireEvent, true, internalConnectionPool.getNumActive(), internalConnectionPool.getNumIdle());
+            }
         } catch (Exception e) {
+            inFlight.decrementAndGet();
+            refundRate();
+            if (acquireEvent != null) {
+                PoolAcquireEvent.commit(acquireEvent, false, internalConnectionPool.getNumActive(), internalConnectionPool.getNumIdle());
+            }
+            if ((admission != null || execution.isRetry()) && e instanceof NoSuchElementException) {
+                // every connection stayed busy for the whole wait, the node is slow rather than broken
+                execution.fail(new HSMOverloadedException("Timed out waiting for a connection to HSM " + nodeAddress));
+                return;
+            }
             log.error("Failed to borrow connection from pool for {}:{}", node.getIp(), node.getPort(), e);
-            //safety mesaure
-            invalidateConnectionSafely(socket);
             if (e instanceof IllegalStateException || (internalConnectionPool.getNumActive() == 0)) {
                 markUnhealthy();
             }
-            CompletableFuture<String> failed = new CompletableFuture<>();
             String errorMsg = String.format("Failed to borrow socket for command on HSM %s:%s", node.getIp(), node.getPort());
-            failed.completeExceptionally(new HSMConnectionException(errorMsg, e));
-            return failed;
+            execution.fail(new HSMConnectionException(errorMsg, e));
+            return;
         }
+        commandsExecuted.increment();
+        String correlationId = execution.getCorrelationId();
+        CommandTemplate template = execution.getTemplate();
+        if (template != null) {
+            // the operation code is at the start of the prefix
+            execution.attach(this, socket, HSMCommandEvent.beginIfEnabled(nodeAddress, template.getPrefix(), correlationId), System.nanoTime());
+            socket.sendCommandToHSM(template, execution.getData(), correlationId, execution);
+            return;
+        }
+        String command = execution.getCommand();
+        execution.attach(this, socket, HSMCommandEvent.beginIfEnabled(nodeAddress, command, correlationId), System.nanoTime());
+        socket.sendCommandToHSM(command, correlationId, execution, null);
+    }
+
+    // the token is taken first so a node at its limit is refused cheaply, commands that are not sent give it back
+    private void refundRate() {
+        if (rateLimit != null) {
+            rateLimit.refund();
+        }
+    }
+
+    private void refuse(CommandExecution execution, Throwable error) {
+        inFlight.decrementAndGet();
+        execution.fail(error);
+    }
+
+    void release(AsyncSocketConnection socket, HSMCommandEvent commandEvent, long sentNanos, Throwable ex) {
+        inFlight.decrementAndGet();
+        latency.record(System.nanoTime() - sentNanos);
+        slowStart.recordResult(ex == null);
+        HSMCommandEvent.commit(commandEvent, ex);
+        try {
+            if (ex != null && isConnectionFailure(ex)) {
+                log.warn("Command failed  due to connection issue, invalidating socker for {}:{}", node.getIp(), node.getPort());
+                invalidateConnectionSafely(socket);
+            } else {
+                returnConnectionSafely(socket);
+            }
+        } catch (Exception poolError) {
+            log.error("Unwarranted exception occurred to socket to {}:{}", node.getIp(), node.getPort(), poolError);
+            // Last resort can be to try to invalidate
+            invalidateConnectionSafely(socket);
+        }
+    }
+
+    private static boolean isConnectionFailure(Throwable ex) {
+        // the dispatcher fails with the exception itself, futures further up may have wrapped it
+        return isConnectionException(ex) || isConnectionException(ex.getCause());
+    }
+
+    private static boolean isConnectionException(Throwable ex) {
+        return ex instanceof HSMConnectionException || ex instanceof HSMSocketTimeoutException || ex instanceof HSMIOException;
+    }
+
+    private AsyncSocketConnection borrow(boolean retry) throws Exception {
+        if (admission == null) {
+            return retry ? internalConnectionPool.borrowIdleObject() : internalConnectionPool.borrowObject();
+        }
+        long queuedAt = System.nanoTime();
+        try {
+            return retry ? internalConnectionPool.borrowIdleObject()
+                    : internalConnectionPool.borrowObject(Duration.ofNanos(admission.getMaxQueueWaitNanos()));
+        } finally {
+            long queueDelay = System.nanoTime() - queuedAt;
+            admission.release(queueDelay);
+            globalAdmission.release(queueDelay);
+        }
+    }
+
+    public long getCommandsExecuted() {
+        return commandsExecuted.sum();
+    }
+
+    /**
+     * Commands sent and not yet answered, or waiting for a connection.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Every connection is busy with a command, a new one would have to wait in borrowObject.
+     */
+    public boolean isSaturated() {
+        return inFlight.get() >= config.getMaxConnections();
+    }
+
+    public int getFreeSlots() {
+        int free = Math.max(0, config.getMaxConnections() - inFlight.get());
+        return rateLimit == null ? free : Math.min(free, rateLimit.availableTokens());
+    }
+
+    /**
+     * False while the node's rate limit is used up, a command sent now would be rejected.
+     */
+    public boolean hasRateCapacity() {
+        return rateLimit == null || rateLimit.hasToken();
+    }
+
+    /**
+     * Commands rejected because the node was at its rate limit.
+     */
+    public long getRateLimited() {
+        return rateLimited.sum();
+    }
+
+    public boolean awaitIdle(long timeoutMs) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (inFlight.get() > 0) {
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void startSlowStart() {
+        slowStart.start();
+    }
+
+    /**
+     * Share of its normal traffic this node should take, below 1 while slow start is in progress.
+     */
+    public double getTrafficWeight() {
+        return slowStart.weight();
     }
 
     public boolean isHealthy() {
         return healthy.get();
     }
 
+    public void recordPingSuccess() {
+        lastPingMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Wall clock time of the last successful ping, 0 if none succeeded yet.
+     */
+    public long getLastPingMillis() {
+        return lastPingMillis;
+    }
+
     public void markUnhealthy() {
         healthy.set(false);
     }
@@ -136,8 +364,28 @@ public class HSMConnectionPool {
         healthy.set(true);
     }
 
+    public List<String> dumpWireTrace() {
+        return socketFactory.dumpWireTrace();
+    }
+
+    /**
+     * Refuses new commands from now on. Commands already in flight or waiting for a connection still complete,
+     * see {@link #awaitIdle(long)}.
+     */
+    public void drain() {
+        draining = true;
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Closes every connection, commands still in flight fail. Drain first for a graceful shutdown.
+     */
     public void shutdown() {
-        internalConnectionPool.close();
+        draining = true;
+        internalConnectionPool.abort();
     }
 
     public boolean performHealthCheckOnAllSockets() {
@@ -200,7 +448,11 @@ public class HSMConnectionPool {
 //                return false;
 //            }
 
-            return successfulPings > 0;
+            if (successfulPings > 0) {
+                recordPingSuccess();
+                return true;
+            }
+            return false;
         } catch (Exception poolError) {
             log.error("Unexpected error during health check for pool {}:{}",
                     node.getIp(), node.getPort(), poolError);
@@ -215,10 +467,13 @@ public class HSMConnectionPool {
 
     private void invalidateConnectionSafely(AsyncSocketConnection socket) {
         if (socket == null) return;
+        ConnectionLifecycleEvent invalidateEvent = ConnectionLifecycleEvent.beginIfEnabled(nodeAddress, ConnectionLifecycleEvent.INVALIDATE);
         try {
             internalConnectionPool.invalidateObject(socket);
+            ConnectionLifecycleEvent.commit(invalidateEvent, null);
             log.debug("Invalidated connection for {}:{}", node.getIp(), node.getPort());
         } catch (Exception e) {
+            ConnectionLifecycleEvent.commit(invalidateEvent, e);
             log.warn("Failed to invalidate connection for {}:{}: {}",
                     node.getIp(), node.getPort(), e.getMessage());
             try {
@@ -0,0 +1,52 @@
+package com.billdesk.paymenthsm.client.internal.connection;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.Method;
+
+/**
+ * Creates socket listener threads, virtual ones when asked for and the JVM has them. The client is built for
+ * Java 17, so the Java 21 builder API is looked up reflectively once, on the public {@code Thread.Builder}
+ * interface: the builder implementation classes are not accessible.
+ */
+@Slf4j
+final class ListenerThreads {
+
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            // before Java 21
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        UNSTARTED = unstarted;
+    }
+
+    private ListenerThreads() {
+    }
+
+    static Thread newThread(Runnable task, String name, boolean virtual) {
+        if (virtual && OF_VIRTUAL != null) {
+            try {
+                Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                return (Thread) UNSTARTED.invoke(builder, task);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                log.warn("Could not create virtual listener thread, using a platform thread", e);
+            }
+        }
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
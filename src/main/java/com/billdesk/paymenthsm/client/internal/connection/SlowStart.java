@@ -0,0 +1,81 @@
+package com.billdesk.paymenthsm.client.internal.connection;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Traffic ramp for a node that just joined or recovered. Its selection weight grows from {@code minWeight}
+ * to 1 over the window, linearly or exponentially, and is capped by the success rate observed since the ramp
+ * started, so a node that keeps failing while ramping does not get more traffic just because time passed.
+ */
+public class SlowStart {
+
+    public enum Mode {
+        LINEAR, EXPONENTIAL
+    }
+
+    // below this many results the success rate is not trusted yet
+    private static final int MIN_SAMPLES = 20;
+    private static final double COMPLETE_SUCCESS_RATE = 0.9;
+
+    private final long windowNanos;
+    private final Mode mode;
+    private final double minWeight;
+    private final LongAdder successes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private volatile long startNanos;
+    private volatile boolean active;
+
+    public SlowStart(long windowMs, Mode mode, double minWeight) {
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+        this.mode = mode;
+        this.minWeight = Math.min(1.0, Math.max(0.001, minWeight));
+    }
+
+    public void start() {
+        if (windowNanos <= 0) {
+            return;
+        }
+        successes.reset();
+        failures.reset();
+        startNanos = System.nanoTime();
+        active = true;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    public void recordResult(boolean success) {
+        if (!active) {
+            return;
+        }
+        if (success) {
+            successes.increment();
+        } else {
+            failures.increment();
+        }
+    }
+
+    public double weight() {
+        if (!active) {
+            return 1.0;
+        }
+        double progress = Math.min(1.0, (double) (System.nanoTime() - startNanos) / windowNanos);
+        double successRate = successRate();
+        if (progress >= 1.0 && successRate >= COMPLETE_SUCCESS_RATE) {
+            active = false;
+            return 1.0;
+        }
+        double weight = mode == Mode.EXPONENTIAL
+                ? minWeight * Math.pow(1.0 / minWeight, progress)
+                : minWeight + (1.0 - minWeight) * progress;
+        return Math.max(minWeight, weight * successRate);
+    }
+
+    private double successRate() {
+        long ok = successes.sum();
+        long total = ok + failures.sum();
+        return total < MIN_SAMPLES ? 1.0 : (double) ok / total;
+    }
+}
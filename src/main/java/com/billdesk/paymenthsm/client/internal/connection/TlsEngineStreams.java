@@ -0,0 +1,267 @@
+package com.billdesk.paymenthsm.client.internal.connection;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Application streams over a socket whose bytes are encrypted by an {@link SSLEngine}. The engine only works on
+ * buffers and socket I/O stays in this class, so the same wrap/unwrap handling fits a selector based transport.
+ * <p>
+ * Buffers are allocated once per connection and only grow if the peer sends larger records. A frame is encrypted
+ * straight from the caller's array into the reused network buffer and written from its backing array.
+ * The connection's listener is the only reader and writers are serialized by the wrap lock; the engine allows a
+ * wrap and an unwrap to run at the same time.
+ */
+final class TlsEngineStreams {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final Socket socket;
+    private final SSLEngine engine;
+    private final InputStream netInput;
+    private final OutputStream netOutput;
+    // the reader also wraps, when the peer asks for a key update
+    private final ReentrantLock wrapLock = new ReentrantLock();
+    // all three stay in write mode between calls
+    private ByteBuffer netIn;
+    private ByteBuffer appIn;
+    private ByteBuffer netOut;
+    private final InputStream input = new AppInput();
+    private final OutputStream output = new AppOutput();
+    // System.nanoTime() by which the handshake has to finish, 0 once it has
+    private long handshakeDeadline;
+
+    TlsEngineStreams(Socket socket, SSLEngine engine) throws IOException {
+        this.socket = socket;
+        this.engine = engine;
+        this.netInput = socket.getInputStream();
+        this.netOutput = socket.getOutputStream();
+        SSLSession session = engine.getSession();
+        this.netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        this.appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+        this.netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+    }
+
+    /**
+     * Runs the handshake within the timeout as a whole: every read gets only the time that is left, so a peer
+     * that trickles records cannot stretch it. The caller restores the socket's read timeout.
+     */
+    void handshake(long timeoutMillis) throws IOException {
+        handshakeDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try {
+            runHandshake();
+        } finally {
+            handshakeDeadline = 0;
+        }
+    }
+
+    private void runHandshake() throws IOException {
+        engine.beginHandshake();
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        while (status != SSLEngineResult.HandshakeStatus.FINISHED && status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            switch (status) {
+                case NEED_WRAP -> status = wrap(EMPTY);
+                case NEED_UNWRAP, NEED_UNWRAP_AGAIN -> {
+                    SSLEngineResult result = unwrap();
+                    if (result == null) {
+                        throw new EOFException("HSM closed the connection during the TLS handshake");
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new SSLException("HSM closed the TLS session during the handshake");
+                    }
+                    status = result.getHandshakeStatus();
+                }
+                case NEED_TASK -> status = runDelegatedTasks();
+                default -> throw new SSLException("Unexpected TLS handshake status " + status);
+            }
+        }
+    }
+
+    InputStream getInputStream() {
+        return input;
+    }
+
+    OutputStream getOutputStream() {
+        return output;
+    }
+
+    /**
+     * Sends close_notify, best effort. Closing the socket is left to the caller.
+     */
+    void close() {
+        engine.closeOutbound();
+        try {
+            wrap(EMPTY);
+        } catch (IOException ignored) {
+            // the socket is closed right after, the HSM sees a reset instead
+        }
+    }
+
+    private SSLEngineResult.HandshakeStatus wrap(ByteBuffer src) throws IOException {
+        wrapLock.lock();
+        try {
+            while (true) {
+                netOut.clear();
+                SSLEngineResult result = engine.wrap(src, netOut);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    netOut = ByteBuffer.allocate(Math.max(netOut.capacity() * 2, engine.getSession().getPacketBufferSize()));
+                    continue;
+                }
+                if (netOut.position() > 0) {
+                    netOutput.write(netOut.array(), netOut.arrayOffset(), netOut.position());
+                }
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    if (src.hasRemaining()) {
+                        throw new SSLException("TLS session to HSM is closed");
+                    }
+                    return result.getHandshakeStatus();
+                }
+                if (!src.hasRemaining()) {
+                    netOutput.flush();
+                    return result.getHandshakeStatus();
+                }
+            }
+        } finally {
+            wrapLock.unlock();
+        }
+    }
+
+    /**
+     * Unwraps one record, reading from the socket as long as no complete record is buffered.
+     *
+     * @return null at end of stream
+     */
+    private SSLEngineResult unwrap() throws IOException {
+        while (true) {
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+            }
+            switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW -> {
+                    if (!readFromSocket()) {
+                        return null;
+                    }
+                }
+                case BUFFER_OVERFLOW -> appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                default -> {
+                    return result;
+                }
+            }
+        }
+    }
+
+    private boolean readFromSocket() throws IOException {
+        if (!netIn.hasRemaining()) {
+            netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+        }
+        if (handshakeDeadline != 0) {
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(handshakeDeadline - System.nanoTime());
+            if (remainingMillis <= 0) {
+                throw new SocketTimeoutException("TLS handshake with HSM timed out");
+            }
+            socket.setSoTimeout((int) Math.min(remainingMillis, Integer.MAX_VALUE));
+        }
+        int read = netInput.read(netIn.array(), netIn.arrayOffset() + netIn.position(), netIn.remaining());
+        if (read < 0) {
+            return false;
+        }
+        netIn.position(netIn.position() + read);
+        return true;
+    }
+
+    private int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        while (appIn.position() == 0) {
+            SSLEngineResult result = unwrap();
+            if (result == null || result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                return -1;
+            }
+            finishPostHandshake(result.getHandshakeStatus());
+        }
+        appIn.flip();
+        int count = Math.min(length, appIn.remaining());
+        appIn.get(bytes, offset, count);
+        appIn.compact();
+        return count;
+    }
+
+    // session tickets and key updates arrive after the handshake, a key update needs an answer
+    private void finishPostHandshake(SSLEngineResult.HandshakeStatus status) throws IOException {
+        while (true) {
+            switch (status) {
+                case NEED_TASK -> status = runDelegatedTasks();
+                case NEED_WRAP -> status = wrap(EMPTY);
+                default -> {
+                    return;
+                }
+            }
+        }
+    }
+
+    private SSLEngineResult.HandshakeStatus runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+        return engine.getHandshakeStatus();
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int minFree) {
+        ByteBuffer grown = ByteBuffer.allocate(buffer.position() + Math.max(minFree, buffer.capacity()));
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+
+    private final class AppInput extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return TlsEngineStreams.this.read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            return TlsEngineStreams.this.read(bytes, offset, length);
+        }
+
+        @Override
+        public int available() {
+            return appIn.position();
+        }
+    }
+
+    private final class AppOutput extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            wrap(ByteBuffer.wrap(bytes, offset, length));
+        }
+
+        @Override
+        public void close() {
+            TlsEngineStreams.this.close();
+        }
+    }
+}
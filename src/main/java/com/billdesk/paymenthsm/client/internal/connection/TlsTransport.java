@@ -0,0 +1,142 @@
+package com.billdesk.paymenthsm.client.internal.connection;
+
+import com.billdesk.paymenthsm.client.internal.config.HSMConfig;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The TLS settings of a client turned into one {@link SSLContext} and one set of {@link SSLParameters}, shared by
+ * every connection to every node. Sharing the context is what keeps reconnects cheap: its client session cache
+ * is keyed by host and port, so an engine created for a node that was connected before resumes the cached
+ * session instead of running a full handshake.
+ */
+@Slf4j
+final class TlsTransport {
+
+    // one context per distinct TLS configuration, pools of the same client share it; passwords are only in the
+    // key as a hash so they do not stay reachable from a static map
+    private static final Map<List<Object>, TlsTransport> TRANSPORTS = new ConcurrentHashMap<>();
+
+    private final SSLContext sslContext;
+    private final SSLParameters parameters;
+    private final int handshakeTimeoutMillis;
+
+    private TlsTransport(HSMConfig config) throws IOException, GeneralSecurityException {
+        this.sslContext = SSLContext.getInstance("TLS");
+        this.sslContext.init(keyManagers(config), trustManagers(config), null);
+        SSLSessionContext sessions = sslContext.getClientSessionContext();
+        sessions.setSessionCacheSize(config.getTlsSessionCacheSize());
+        sessions.setSessionTimeout(config.getTlsSessionTimeoutSeconds());
+
+        this.parameters = sslContext.getDefaultSSLParameters();
+        this.parameters.setProtocols(config.getTlsProtocols().toArray(new String[0]));
+        if (config.getTlsCipherSuites() != null && !config.getTlsCipherSuites().isEmpty()) {
+            this.parameters.setCipherSuites(config.getTlsCipherSuites().toArray(new String[0]));
+        }
+        if (config.isTlsHostnameVerification()) {
+            this.parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        }
+        this.handshakeTimeoutMillis = config.getTlsHandshakeTimeoutMillis();
+        log.info("TLS to HSM nodes enabled with protocols {}", config.getTlsProtocols());
+    }
+
+    /**
+     * @throws IllegalStateException if the key or trust store cannot be loaded
+     */
+    static TlsTransport forConfig(HSMConfig config) {
+        List<Object> key = Arrays.asList(config.getTlsTrustStore(), digest(config.getTlsTrustStorePassword()), config.getTlsTrustStoreType(),
+                config.getTlsKeyStore(), digest(config.getTlsKeyStorePassword()), config.getTlsKeyStoreType(),
+                config.getTlsProtocols(), config.getTlsCipherSuites(), config.isTlsHostnameVerification(),
+                config.getTlsHandshakeTimeoutMillis(), config.getTlsSessionCacheSize(), config.getTlsSessionTimeoutSeconds());
+        return TRANSPORTS.computeIfAbsent(key, k -> {
+            try {
+                return new TlsTransport(config);
+            } catch (IOException | GeneralSecurityException e) {
+                throw new IllegalStateException("Failed to initialise TLS for HSM connections", e);
+            }
+        });
+    }
+
+    /**
+     * Runs the handshake on a connected socket, the whole of it bounded by the handshake timeout. The socket's
+     * read timeout is restored afterwards. The caller closes the socket if this fails.
+     */
+    TlsEngineStreams handshake(Socket socket, String host, int port) throws IOException {
+        SSLEngine engine = sslContext.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        engine.setSSLParameters(parameters);
+        TlsEngineStreams streams = new TlsEngineStreams(socket, engine);
+        int readTimeout = socket.getSoTimeout();
+        try {
+            streams.handshake(handshakeTimeoutMillis);
+        } finally {
+            socket.setSoTimeout(readTimeout);
+        }
+        return streams;
+    }
+
+    private static KeyManager[] keyManagers(HSMConfig config) throws IOException, GeneralSecurityException {
+        if (config.getTlsKeyStore() == null || config.getTlsKeyStore().isBlank()) {
+            return null;
+        }
+        char[] password = toChars(config.getTlsKeyStorePassword());
+        KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        factory.init(load(config.getTlsKeyStore(), config.getTlsKeyStoreType(), password), password);
+        return factory.getKeyManagers();
+    }
+
+    private static TrustManager[] trustManagers(HSMConfig config) throws IOException, GeneralSecurityException {
+        if (config.getTlsTrustStore() == null || config.getTlsTrustStore().isBlank()) {
+            return null;
+        }
+        TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        factory.init(load(config.getTlsTrustStore(), config.getTlsTrustStoreType(), toChars(config.getTlsTrustStorePassword())));
+        return factory.getTrustManagers();
+    }
+
+    private static KeyStore load(String path, String type, char[] password) throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance(type);
+        try (InputStream in = Files.newInputStream(Path.of(path))) {
+            keyStore.load(in, password);
+        }
+        return keyStore;
+    }
+
+    private static String digest(String password) {
+        if (password == null) {
+            return null;
+        }
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(password.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static char[] toChars(String password) {
+        return password == null ? null : password.toCharArray();
+    }
+}
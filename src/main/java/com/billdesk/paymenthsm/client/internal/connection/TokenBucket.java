@@ -0,0 +1,67 @@
+package com.billdesk.paymenthsm.client.internal.connection;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the commands sent to one node to the rate its license allows, so excess work is routed elsewhere
+ * instead of queueing inside the HSM. A bucket of {@code burst} tokens refilled at {@code tokensPerSecond}, kept
+ * as a single theoretical arrival time (GCRA): every command moves it one emission interval forward and is
+ * allowed while it stays at most {@code burst} intervals ahead of now. One CAS per command, no refill thread.
+ */
+public class TokenBucket {
+
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final AtomicLong theoreticalArrival;
+
+    /**
+     * @param burst commands that may be sent at once after an idle period, at least 1
+     */
+    public TokenBucket(double tokensPerSecond, int burst) {
+        if (tokensPerSecond <= 0) {
+            throw new IllegalArgumentException("Token rate must be positive");
+        }
+        this.intervalNanos = Math.max(1, Math.round(TimeUnit.SECONDS.toNanos(1) / tokensPerSecond));
+        this.burstNanos = intervalNanos * Math.max(1, burst);
+        // starts full
+        this.theoreticalArrival = new AtomicLong(System.nanoTime());
+    }
+
+    public boolean tryAcquire() {
+        long now = System.nanoTime();
+        while (true) {
+            long arrival = theoreticalArrival.get();
+            long next = (arrival - now > 0 ? arrival : now) + intervalNanos;
+            if (next - now > burstNanos) {
+                return false;
+            }
+            if (theoreticalArrival.compareAndSet(arrival, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives back a token taken by {@link #tryAcquire()} for a command that was not sent after all, so
+     * rejections further down do not use up the node's rate.
+     */
+    public void refund() {
+        theoreticalArrival.addAndGet(-intervalNanos);
+    }
+
+    /**
+     * Whether {@link #tryAcquire()} would succeed now, without taking a token.
+     */
+    public boolean hasToken() {
+        long now = System.nanoTime();
+        long arrival = theoreticalArrival.get();
+        return (arrival - now > 0 ? arrival - now : 0) + intervalNanos <= burstNanos;
+    }
+
+    public int availableTokens() {
+        long now = System.nanoTime();
+        long ahead = Math.max(0, theoreticalArrival.get() - now);
+        return (int) ((burstNanos - ahead) / intervalNanos);
+    }
+}
@@ -1,5 +1,7 @@
 package com.billdesk.paymenthsm.client.internal.core;
 
+import com.billdesk.paymenthsm.client.internal.audit.AuditJournal;
+import com.billdesk.paymenthsm.client.internal.cache.HMACResultCache;
 import com.billdesk.paymenthsm.client.internal.exception.HSMException;
 import com.billdesk.paymenthsm.client.internal.config.HSMConfig;
 import com.billdesk.paymenthsm.client.internal.enums.ACS_BANK;
@@ -7,65 +9,143 @@ import com.billdesk.paymenthsm.client.internal.exception.HSMKeyNotFoundException
 import com.billdesk.paymenthsm.client.internal.loadbalancer.LoadBalancer;
 import lombok.extern.slf4j.Slf4j;
 import java.util.Map;
-import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 @Slf4j
 public abstract class AbstractHSMService implements HSMService{
 
-    public static final String VISA = "VISA";
-    public static final String CAVV_GENERATION_KEYNAME_SUFFIX = "_CAVV_GEN";
+    public static final String VISA = CommandTemplates.VISA;
+    public static final String CAVV_GENERATION_KEYNAME_SUFFIX = CommandTemplates.CAVV_GENERATION_KEYNAME_SUFFIX;
     private final HSMConfig config;
     private final LoadBalancer loadBalancer;
     private final CommandBuilder commandBuilder;
-    private final Map<String, String> keyBlocks;
+    private final KeyBlockRegistry keyBlockRegistry;
+    private final SingleFlight singleFlight;
+    private final HMACResultCache resultCache;
 
     public AbstractHSMService(HSMConfig config, LoadBalancer loadBalancer, CommandBuilder commandBuilder, Map<String, String> keyBlocks) {
+        this(config, loadBalancer, commandBuilder, new KeyBlockRegistry(commandBuilder, keyBlocks));
+    }
+
+    public AbstractHSMService(HSMConfig config, LoadBalancer loadBalancer, CommandBuilder commandBuilder, KeyBlockRegistry keyBlockRegistry) {
         this.config = config;
         this.loadBalancer = loadBalancer;
         this.commandBuilder = commandBuilder;
-        this.keyBlocks = keyBlocks;
+        this.keyBlockRegistry = keyBlockRegistry;
+        this.singleFlight = config.isSingleFlightEnabled() ? new SingleFlight(loadBalancer.getAuditJournal()) : null;
+        this.resultCache = config.getHmacCacheKeyNames() == null || config.getHmacCacheKeyNames().isEmpty()
+                ? null : new HMACResultCache(config, keyBlockRegistry.getVersion());
         log.info("Initializing {} HSM", getProvider().name());
     }
 
     @Override
     public CompletableFuture<String> generateVisaCAVV(ACS_BANK bank, String data) throws HSMException {
-        String keyBlock = getKeyBlock(buildCAVVKeyName(bank, VISA));
-        String command = commandBuilder.buildVisaCAVVCommand(keyBlock, data);
-        String correlationId = generateCorrelationId();
-        return loadBalancer.executeCommand(command, correlationId);
-    }
-
-    private String buildCAVVKeyName(ACS_BANK bank,String scheme){
-        return bank.name()+"_"+scheme.toUpperCase()+ CAVV_GENERATION_KEYNAME_SUFFIX;
+        CommandTemplate template = keyBlockRegistry.templates().visaCAVV(bank);
+        if (template == null) {
+            throw keyNotFound(CommandTemplates.cavvKeyName(bank, VISA));
+        }
+        return execute(template, data);
     }
 
     @Override
     public CompletableFuture<String> generateMasterCAVV(ACS_BANK bank, String data) throws HSMException {
-        String keyBlock = getKeyBlock(buildCAVVKeyName(bank,"MASTERCARD"));
-        String command = commandBuilder.buildMasterCAVVCommand(keyBlock, data);
-        String correlationId = generateCorrelationId();
-        return loadBalancer.executeCommand(command, correlationId);
+        CommandTemplate template = keyBlockRegistry.templates().masterCAVV(bank);
+        if (template == null) {
+            throw keyNotFound(CommandTemplates.cavvKeyName(bank, CommandTemplates.MASTERCARD));
+        }
+        return execute(template, data);
     }
 
     @Override
     public CompletableFuture<String> generateHMAC(String keyName, String data) throws HSMException {
-        String keyBlock = getKeyBlock(keyName);
-        String command = commandBuilder.buildHMACCommand(keyBlock, data);
-        String correlationId = generateCorrelationId();
-        return loadBalancer.executeCommand(command, correlationId);
+        // template and version from the same snapshot, so a cached result is always tagged with its key block
+        KeyBlockRegistry.Snapshot snapshot = keyBlockRegistry.current();
+        CommandTemplate template = snapshot.getTemplates().hmac(keyName);
+        if (template == null) {
+            throw keyNotFound(keyName);
+        }
+        if (resultCache != null && resultCache.caches(keyName)) {
+            return cachedHMAC(template, snapshot.getVersion(), keyName, data);
+        }
+        return execute(template, data);
+    }
+
+    @Override
+    public <C> void generateHMAC(String keyName, String data, HSMCompletionHandler<? super C> handler, C context) throws HSMException {
+        KeyBlockRegistry.Snapshot snapshot = keyBlockRegistry.current();
+        CommandTemplate template = snapshot.getTemplates().hmac(keyName);
+        if (template == null) {
+            throw keyNotFound(keyName);
+        }
+        if (singleFlight != null || (resultCache != null && resultCache.caches(keyName))) {
+            // both layers share futures between callers, bridge to the handler instead
+            CompletableFuture<String> future = resultCache != null && resultCache.caches(keyName)
+                    ? cachedHMAC(template, snapshot.getVersion(), keyName, data) : execute(template, data);
+            future.whenComplete((result, ex) -> {
+                if (ex == null) {
+                    handler.completed(result, context);
+                } else {
+                    handler.failed(ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex, context);
+                }
+            });
+            return;
+        }
+        loadBalancer.executeCommand(template, data, generateCorrelationId(), handler, context);
     }
 
-    private String getKeyBlock(String keyName) throws HSMException {
-        String keyBlock = keyBlocks.get(keyName);
-        if (keyBlock == null) {
-            throw new HSMKeyNotFoundException("Key not found: " + keyName);
+    private CompletableFuture<String> cachedHMAC(CommandTemplate template, long version, String keyName, String data) {
+        RequestDigest digest = RequestDigest.of(keyName, data);
+        String cached = resultCache.get(digest, version);
+        if (cached != null) {
+            AuditJournal auditJournal = loadBalancer.getAuditJournal();
+            if (auditJournal != null) {
+                auditJournal.record(System.currentTimeMillis(), 0, template.getOperation(), generateCorrelationId(), keyName,
+                        AuditJournal.NODE_CACHE, null);
+            }
+            return CompletableFuture.completedFuture(cached);
         }
-        return keyBlock;
+        return execute(template, data).thenApply(result -> {
+            resultCache.put(digest, version, result);
+            return result;
+        });
+    }
+
+    private CompletableFuture<String> execute(CommandTemplate template, String data) {
+        if (singleFlight != null) {
+            return singleFlight.execute(template, data, () -> send(template, data));
+        }
+        return send(template, data);
+    }
+
+    private CompletableFuture<String> send(CommandTemplate template, String data) {
+        return loadBalancer.executeCommand(template, data, generateCorrelationId());
+    }
+
+    /**
+     * @return the single-flight layer, or null when hsm.client.single-flight-enabled is off
+     */
+    public SingleFlight getSingleFlight() {
+        return singleFlight;
+    }
+
+    /**
+     * @return the HMAC result cache, or null when no key names are configured for it
+     */
+    public HMACResultCache getResultCache() {
+        return resultCache;
+    }
+
+    public KeyBlockRegistry getKeyBlockRegistry() {
+        return keyBlockRegistry;
+    }
+
+    private HSMKeyNotFoundException keyNotFound(String keyName) {
+        return new HSMKeyNotFoundException("Key not found: " + keyName);
     }
 
     private String generateCorrelationId() {
-        return "BD_" + System.currentTimeMillis() + "_" + UUID.randomUUID().toString().substring(0, 8);
+        return CorrelationIdGenerator.commandId();
     }
 
 }
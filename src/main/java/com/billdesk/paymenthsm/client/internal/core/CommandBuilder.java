@@ -6,8 +6,28 @@ public interface CommandBuilder {
     String buildVisaCAVVCommand(String keyBlock, String data);
     String buildMasterCAVVCommand(String keyBlock, String data);
     String buildHMACCommand(String keyBlock, String data);
+    CommandTemplate visaCAVVTemplate(String keyBlock);
+    CommandTemplate masterCAVVTemplate(String keyBlock);
+    CommandTemplate hmacTemplate(String keyBlock);
     String parseResponse(String rawResponse) throws HSMException;
     String extractContextTag(String rawResponse);
     String embedContextTag(String command, String contextTag);
     String buildHSMPingCommand();
+
+    /*
+     * Variants over a frame in the connection's receive buffer, chars[from, to). Builders that can parse in
+     * place override them, the defaults copy the frame into a String.
+     */
+    default String extractContextTag(char[] frame, int from, int to) {
+        return extractContextTag(new String(frame, from, to - from));
+    }
+
+    default String parseResponse(char[] frame, int from, int to) throws HSMException {
+        return parseResponse(new String(frame, from, to - from));
+    }
+
+    default void parseResponse(char[] frame, int from, int to, HSMResultView into) throws HSMException {
+        String result = parseResponse(frame, from, to);
+        into.wrap(result.toCharArray(), 0, result.length());
+    }
 }
@@ -0,0 +1,110 @@
+package com.billdesk.paymenthsm.client.internal.core;
+
+import com.billdesk.paymenthsm.client.internal.model.HSMRequest;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A command with its key block already formatted in, leaving only the data slot. Built once per key at
+ * startup so the per-request work is a single exact-size concatenation.
+ * <p>
+ * With a tag marker the template also knows where the context tag goes, between the data and the suffix after
+ * the marker, and keeps its parts encoded. A connection then writes the command straight into its send buffer
+ * with {@link #encode}, without building the command or the tagged frame as Strings.
+ */
+public final class CommandTemplate {
+
+    private final String prefix;
+    private final String suffix;
+    // null when the provider embeds context tags some other way, commands then go through CommandBuilder.embedContextTag
+    private final String tagMarker;
+    private final byte[] prefixBytes;
+    private final byte[] suffixBytes;
+    private final byte[] tagMarkerBytes;
+    private final String keyName;
+    private final HSMRequest.Operation operation;
+
+    public CommandTemplate(String prefix, String suffix) {
+        this(prefix, suffix, null);
+    }
+
+    public CommandTemplate(String prefix, String suffix, String tagMarker) {
+        this(prefix, suffix, tagMarker, null, null);
+    }
+
+    private CommandTemplate(String prefix, String suffix, String tagMarker, String keyName, HSMRequest.Operation operation) {
+        this.prefix = prefix;
+        this.suffix = suffix;
+        this.tagMarker = tagMarker;
+        // the same bytes the String path gets from getBytes(UTF_8)
+        this.prefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+        this.suffixBytes = suffix.getBytes(StandardCharsets.UTF_8);
+        this.tagMarkerBytes = tagMarker == null ? null : tagMarker.getBytes(StandardCharsets.UTF_8);
+        this.keyName = keyName;
+        this.operation = operation;
+    }
+
+    public CommandTemplate forKey(String keyName, HSMRequest.Operation operation) {
+        return new CommandTemplate(prefix, suffix, tagMarker, keyName, operation);
+    }
+
+    public String getKeyName() {
+        return keyName;
+    }
+
+    public HSMRequest.Operation getOperation() {
+        return operation;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public boolean hasTagSlot() {
+        return tagMarker != null;
+    }
+
+    public String render(String data) {
+        return prefix + data + suffix;
+    }
+
+    /**
+     * Upper bound of the bytes {@link #encode} writes.
+     */
+    public int maxEncodedLength(String data, String contextTag) {
+        return prefixBytes.length + data.length() + tagMarkerBytes.length + contextTag.length() + suffixBytes.length;
+    }
+
+    /**
+     * Writes the command with {@code contextTag} in its slot to {@code into} from {@code offset}, which must have
+     * {@link #maxEncodedLength} bytes free. Data and tags are hex and ids, a char outside ASCII makes it give up.
+     *
+     * @return the end of the frame, -1 if data or tag are not ASCII and the command has to be encoded as a String
+     */
+    public int encode(String data, String contextTag, byte[] into, int offset) {
+        int at = put(prefixBytes, into, offset);
+        at = putAscii(data, into, at);
+        if (at < 0) {
+            return -1;
+        }
+        at = put(tagMarkerBytes, into, at);
+        at = putAscii(contextTag, into, at);
+        return at < 0 ? -1 : put(suffixBytes, into, at);
+    }
+
+    private static int put(byte[] bytes, byte[] into, int at) {
+        System.arraycopy(bytes, 0, into, at, bytes.length);
+        return at + bytes.length;
+    }
+
+    private static int putAscii(String value, byte[] into, int at) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                return -1;
+            }
+            into[at++] = (byte) c;
+        }
+        return at;
+    }
+}
@@ -0,0 +1,76 @@
+package com.billdesk.paymenthsm.client.internal.core;
+
+import com.billdesk.paymenthsm.client.internal.enums.ACS_BANK;
+import com.billdesk.paymenthsm.client.internal.model.HSMRequest;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable lookup tables from (bank, scheme) and HMAC key name to a precompiled {@link CommandTemplate}.
+ */
+@Slf4j
+public final class CommandTemplates {
+
+    public static final String VISA = "VISA";
+    public static final String MASTERCARD = "MASTERCARD";
+    public static final String CAVV_GENERATION_KEYNAME_SUFFIX = "_CAVV_GEN";
+
+    private final EnumMap<ACS_BANK, CommandTemplate> visaCAVVTemplates;
+    private final EnumMap<ACS_BANK, CommandTemplate> masterCAVVTemplates;
+    private final Map<String, CommandTemplate> hmacTemplates;
+
+    private CommandTemplates(EnumMap<ACS_BANK, CommandTemplate> visaCAVVTemplates,
+                             EnumMap<ACS_BANK, CommandTemplate> masterCAVVTemplates,
+                             Map<String, CommandTemplate> hmacTemplates) {
+        this.visaCAVVTemplates = visaCAVVTemplates;
+        this.masterCAVVTemplates = masterCAVVTemplates;
+        this.hmacTemplates = hmacTemplates;
+    }
+
+    public static CommandTemplates compile(Map<String, String> keyBlocks, CommandBuilder commandBuilder) {
+        EnumMap<ACS_BANK, CommandTemplate> visa = new EnumMap<>(ACS_BANK.class);
+        EnumMap<ACS_BANK, CommandTemplate> master = new EnumMap<>(ACS_BANK.class);
+        List<String> missing = new ArrayList<>();
+        for (ACS_BANK bank : ACS_BANK.values()) {
+            String visaKeyBlock = keyBlocks.get(cavvKeyName(bank, VISA));
+            if (visaKeyBlock != null) {
+                visa.put(bank, commandBuilder.visaCAVVTemplate(visaKeyBlock).forKey(cavvKeyName(bank, VISA), HSMRequest.Operation.VISA_CAVV));
+            } else {
+                missing.add(cavvKeyName(bank, VISA));
+            }
+            String masterKeyBlock = keyBlocks.get(cavvKeyName(bank, MASTERCARD));
+            if (masterKeyBlock != null) {
+                master.put(bank, commandBuilder.masterCAVVTemplate(masterKeyBlock).forKey(cavvKeyName(bank, MASTERCARD), HSMRequest.Operation.MASTER_CAVV));
+            } else {
+                missing.add(cavvKeyName(bank, MASTERCARD));
+            }
+        }
+        Map<String, CommandTemplate> hmac = new HashMap<>();
+        keyBlocks.forEach((keyName, keyBlock) -> hmac.put(keyName, commandBuilder.hmacTemplate(keyBlock).forKey(keyName, HSMRequest.Operation.HMAC)));
+        if (!missing.isEmpty()) {
+            log.warn("No key block configured for {}, CAVV requests for these will fail", missing);
+        }
+        return new CommandTemplates(visa, master, Map.copyOf(hmac));
+    }
+
+    public static String cavvKeyName(ACS_BANK bank, String scheme) {
+        return bank.name() + "_" + scheme.toUpperCase() + CAVV_GENERATION_KEYNAME_SUFFIX;
+    }
+
+    public CommandTemplate visaCAVV(ACS_BANK bank) {
+        return visaCAVVTemplates.get(bank);
+    }
+
+    public CommandTemplate masterCAVV(ACS_BANK bank) {
+        return masterCAVVTemplates.get(bank);
+    }
+
+    public CommandTemplate hmac(String keyName) {
+        return hmacTemplates.get(keyName);
+    }
+}
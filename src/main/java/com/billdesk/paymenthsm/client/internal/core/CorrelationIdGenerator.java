@@ -0,0 +1,17 @@
+package com.billdesk.paymenthsm.client.internal.core;
+
+import java.util.UUID;
+
+public final class CorrelationIdGenerator {
+
+    private CorrelationIdGenerator() {
+    }
+
+    public static String commandId() {
+        return "BD_" + System.currentTimeMillis() + "_" + UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    public static String pingId() {
+        return "PING_" + System.currentTimeMillis() + "_" + UUID.randomUUID().toString().substring(0, 8);
+    }
+}
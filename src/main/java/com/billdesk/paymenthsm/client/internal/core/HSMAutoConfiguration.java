@@ -14,20 +14,30 @@ package com.billdesk.paymenthsm.client.internal.core;
 
 import com.billdesk.paymenthsm.client.HSMClient;
 import com.billdesk.paymenthsm.client.internal.config.HSMConfig;
+import com.billdesk.paymenthsm.client.internal.health.HSMEndpoint;
+import com.billdesk.paymenthsm.client.internal.health.HSMHealthIndicator;
 import com.billdesk.paymenthsm.client.internal.loadbalancer.LoadBalancer;
+import com.billdesk.paymenthsm.client.internal.loadbalancer.NodeListRefresher;
 import com.billdesk.paymenthsm.client.internal.provider.utimaco.UtimacoCommandBuilder;
 import com.billdesk.paymenthsm.client.internal.provider.utimaco.UtimacoHSMService;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.actuate.health.HealthIndicator;
 import org.springframework.boot.autoconfigure.AutoConfiguration;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.cloud.context.environment.EnvironmentChangeEvent;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 @AutoConfiguration
 //@Configuration
@@ -56,18 +66,38 @@ public class HSMAutoConfiguration {
 
     @Bean
     @ConditionalOnMissingBean
-    public HSMService hsmService(HSMConfig config, LoadBalancer loadBalancer,
-                                 CommandBuilder commandBuilder, Map<String, String> hsmKeyBlocks) {
+    public KeyBlockRegistry keyBlockRegistry(HSMConfig config, CommandBuilder commandBuilder,
+                                             Map<String, String> hsmKeyBlocks) throws IOException {
+        return new KeyBlockRegistry(commandBuilder, resolveKeyBlocks(hsmKeyBlocks, config));
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnMissingBean
+    @ConditionalOnProperty(prefix = "hsm.client", name = "key-blocks-file")
+    public KeyBlockFileWatcher keyBlockFileWatcher(HSMConfig config, KeyBlockRegistry keyBlockRegistry) throws IOException {
+        return new KeyBlockFileWatcher(Path.of(config.getKeyBlocksFile()), keyBlockRegistry);
+    }
 
-        Map<String, String> finalKeyBlocks = resolveKeyBlocks(hsmKeyBlocks, config.getKeyBlocks());
+    @Bean
+    @ConditionalOnMissingBean
+    public HSMService hsmService(HSMConfig config, LoadBalancer loadBalancer,
+                                 CommandBuilder commandBuilder, KeyBlockRegistry keyBlockRegistry) {
         switch (config.getProvider()) {
             case UTIMACO:
-                return new UtimacoHSMService(config, loadBalancer, commandBuilder, finalKeyBlocks);
+                return new UtimacoHSMService(config, loadBalancer, commandBuilder, keyBlockRegistry);
             default:
                 throw new IllegalArgumentException("Unsupported provider: " + config.getProvider());
         }
     }
 
+    public Map<String, String> resolveKeyBlocks(Map<String, String> beanKeyBlocks, HSMConfig config) throws IOException {
+        if (config.getKeyBlocksFile() != null && !config.getKeyBlocksFile().isBlank()) {
+            log.info("Using key blocks provided via file {}", config.getKeyBlocksFile());
+            return KeyBlockFileWatcher.load(Path.of(config.getKeyBlocksFile()));
+        }
+        return resolveKeyBlocks(beanKeyBlocks, config.getKeyBlocks());
+    }
+
     public Map<String, String> resolveKeyBlocks(Map<String, String> beanKeyBlocks,
                                                 Map<String, String> configKeyBlocks) {
         if (beanKeyBlocks != null && !beanKeyBlocks.isEmpty()) {
@@ -84,9 +114,47 @@ public class HSMAutoConfiguration {
     }
 
 
+    /**
+     * An Executor bean named hsmCallbackExecutor, when present, runs the callbacks of the returned futures.
+     */
     @Bean
     @ConditionalOnMissingBean
-    public HSMClient hsmClient(HSMConfig config, LoadBalancer loadBalancer, HSMService hsmService) {
-        return new HSMClient(config, loadBalancer, hsmService);
+    public HSMClient hsmClient(HSMConfig config, LoadBalancer loadBalancer, HSMService hsmService,
+                               @Qualifier("hsmCallbackExecutor") ObjectProvider<Executor> callbackExecutor) {
+        return new HSMClient(config, loadBalancer, hsmService, callbackExecutor.getIfAvailable());
+    }
+
+    /**
+     * Registered only when spring-cloud-context is on the classpath, applies refreshed node lists at runtime.
+     */
+    @Configuration(proxyBeanMethods = false)
+    @ConditionalOnClass(EnvironmentChangeEvent.class)
+    static class HSMRefreshConfiguration {
+
+        @Bean
+        @ConditionalOnMissingBean
+        public NodeListRefresher nodeListRefresher(LoadBalancer loadBalancer, HSMConfig config, Environment environment) {
+            return new NodeListRefresher(loadBalancer, config, environment);
+        }
+    }
+
+    /**
+     * Registered only when spring-boot-actuator is on the classpath, both read the cached health snapshot.
+     */
+    @Configuration(proxyBeanMethods = false)
+    @ConditionalOnClass(HealthIndicator.class)
+    static class HSMActuatorConfiguration {
+
+        @Bean
+        @ConditionalOnMissingBean(name = "hsmHealthIndicator")
+        public HSMHealthIndicator hsmHealthIndicator(LoadBalancer loadBalancer) {
+            return new HSMHealthIndicator(loadBalancer);
+        }
+
+        @Bean
+        @ConditionalOnMissingBean
+        public HSMEndpoint hsmEndpoint(LoadBalancer loadBalancer) {
+            return new HSMEndpoint(loadBalancer);
+        }
     }
 }
\ No newline at end of file
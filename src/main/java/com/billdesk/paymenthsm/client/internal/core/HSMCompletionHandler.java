@@ -0,0 +1,13 @@
+package com.billdesk.paymenthsm.client.internal.core;
+
+/**
+ * Receives the outcome of a command without a CompletableFuture in between. Called exactly once, directly
+ * on the socket listener thread, so implementations must not block. The context is passed back as is, which
+ * lets one stateless handler instance serve every request without capturing lambdas.
+ */
+public interface HSMCompletionHandler<C> {
+
+    void completed(String result, C context);
+
+    void failed(Throwable error, C context);
+}
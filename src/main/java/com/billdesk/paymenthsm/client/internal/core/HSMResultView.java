@@ -0,0 +1,122 @@
+package com.billdesk.paymenthsm.client.internal.core;
+
+import com.billdesk.paymenthsm.client.internal.exception.HSMProtocolException;
+
+/**
+ * The result field of a response, read in place from the connection's receive buffer. One instance per
+ * connection is reused for every response, so a view is only valid until the callback it was passed to
+ * returns. Copy out with {@link #getBytes(byte[], int)}, {@link #decodeHex(byte[], int)} or
+ * {@link #toString()} to keep it.
+ */
+public final class HSMResultView implements CharSequence {
+
+    private static final byte[] HEX_DIGITS = new byte[128];
+
+    static {
+        for (int c = 0; c < HEX_DIGITS.length; c++) {
+            HEX_DIGITS[c] = (byte) Character.digit(c, 16);
+        }
+    }
+
+    private char[] chars;
+    private int offset;
+    private int length;
+
+    public static HSMResultView of(String result) {
+        HSMResultView view = new HSMResultView();
+        view.wrap(result.toCharArray(), 0, result.length());
+        return view;
+    }
+
+    public void wrap(char[] chars, int offset, int length) {
+        this.chars = chars;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return chars[offset + index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new String(chars, offset + start, end - start);
+    }
+
+    /**
+     * Copies the field's characters as single bytes, the HSM's result fields are ASCII.
+     *
+     * @return number of bytes written, always {@link #length()}
+     */
+    public int getBytes(byte[] dst, int dstOffset) {
+        for (int i = 0; i < length; i++) {
+            dst[dstOffset + i] = (byte) chars[offset + i];
+        }
+        return length;
+    }
+
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[length];
+        getBytes(bytes, 0);
+        return bytes;
+    }
+
+    public int getDecodedHexLength() {
+        return length / 2;
+    }
+
+    /**
+     * Decodes the field as hex, as HMAC results are returned.
+     *
+     * @return number of bytes written, {@link #getDecodedHexLength()}
+     */
+    public int decodeHex(byte[] dst, int dstOffset) {
+        if ((length & 1) != 0) {
+            throw new HSMProtocolException("Odd length hex result");
+        }
+        for (int i = 0, j = offset; i < length / 2; i++, j += 2) {
+            dst[dstOffset + i] = (byte) (hexDigit(chars[j]) << 4 | hexDigit(chars[j + 1]));
+        }
+        return length / 2;
+    }
+
+    public byte[] decodeHex() {
+        byte[] bytes = new byte[getDecodedHexLength()];
+        decodeHex(bytes, 0);
+        return bytes;
+    }
+
+    public boolean contentEquals(CharSequence other) {
+        if (other.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (chars[offset + i] != other.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hexDigit(char c) {
+        int digit = c < HEX_DIGITS.length ? HEX_DIGITS[c] : -1;
+        if (digit < 0) {
+            throw new HSMProtocolException("Invalid hex character in result");
+        }
+        return digit;
+    }
+
+    @Override
+    public String toString() {
+        return new String(chars, offset, length);
+    }
+}
@@ -0,0 +1,18 @@
+package com.billdesk.paymenthsm.client.internal.core;
+
+/**
+ * Completion handler that takes the result as an {@link HSMResultView} over the receive buffer instead of a
+ * String, so a response is delivered without allocating for it. The view must not be kept past the call.
+ */
+public interface HSMResultViewHandler<C> extends HSMCompletionHandler<C> {
+
+    void completed(HSMResultView result, C context);
+
+    /**
+     * Results that were already materialised, from the result cache or a shared single-flight call.
+     */
+    @Override
+    default void completed(String result, C context) {
+        completed(HSMResultView.of(result), context);
+    }
+}
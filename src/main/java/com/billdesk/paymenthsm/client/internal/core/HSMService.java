@@ -10,5 +10,6 @@ public interface HSMService {
     CompletableFuture<String> generateVisaCAVV(ACS_BANK bank, String data) throws HSMException;
     CompletableFuture<String> generateMasterCAVV(ACS_BANK bank, String data) throws HSMException;
     CompletableFuture<String> generateHMAC(String keyName, String data) throws HSMException;
+    <C> void generateHMAC(String keyName, String data, HSMCompletionHandler<? super C> handler, C context) throws HSMException;
     Provider getProvider();
 }
@@ -0,0 +1,147 @@
+package com.billdesk.paymenthsm.client.internal.core;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reloads a {@code keyName=keyBlock} properties file into the {@link KeyBlockRegistry} whenever it changes.
+ * Editors and config-map mounts usually replace the file, so the parent directory is watched and any event in
+ * it compares the file's real path, modification time and size with those last loaded. A Kubernetes config
+ * map update swaps the {@code ..data} symlink and never touches the file's own name, the real path catches it.
+ * <p>
+ * Events are debounced and the file is read again until two reads one settle period apart agree, so a file
+ * caught in the middle of being written is never loaded.
+ */
+@Slf4j
+public class KeyBlockFileWatcher implements AutoCloseable {
+
+    private static final long SETTLE_MILLIS = 500;
+    private static final int MAX_READS = 10;
+
+    private record Fingerprint(Path realPath, FileTime modified, long size) {
+    }
+
+    private final Path file;
+    private final KeyBlockRegistry registry;
+    private final WatchService watchService;
+    private final Thread watcherThread;
+    private volatile boolean running = true;
+    // only touched by the watcher thread
+    private Fingerprint loaded;
+
+    public KeyBlockFileWatcher(Path file, KeyBlockRegistry registry) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.registry = registry;
+        this.loaded = fingerprint();
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        this.watcherThread = new Thread(this::watch, "HSM-KeyBlock-Watcher");
+        this.watcherThread.setDaemon(true);
+        this.watcherThread.start();
+        log.info("Watching {} for key block changes", this.file);
+    }
+
+    public static Map<String, String> load(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        Map<String, String> keyBlocks = new HashMap<>();
+        for (String name : properties.stringPropertyNames()) {
+            keyBlocks.put(name, properties.getProperty(name).trim());
+        }
+        return keyBlocks;
+    }
+
+    private void watch() {
+        while (running) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            try {
+                // a replace or a config map update comes as a burst of events, wait for the directory to go quiet
+                do {
+                    key.pollEvents();
+                    key.reset();
+                } while ((key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null);
+                if (!fingerprint().equals(loaded)) {
+                    reloadWhenStable();
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+        }
+    }
+
+    private void reloadWhenStable() throws InterruptedException {
+        try {
+            Fingerprint before = fingerprint();
+            Map<String, String> keyBlocks = load(file);
+            for (int read = 1; read < MAX_READS; read++) {
+                Thread.sleep(SETTLE_MILLIS);
+                Fingerprint after = fingerprint();
+                Map<String, String> again = load(file);
+                if (after.equals(before) && again.equals(keyBlocks)) {
+                    registry.refresh(keyBlocks);
+                    loaded = after;
+                    return;
+                }
+                before = after;
+                keyBlocks = again;
+            }
+            log.warn("Key block file {} kept changing over {} reads, keeping version {}", file, MAX_READS, registry.getVersion());
+        } catch (IOException | RuntimeException e) {
+            // keep serving the previous snapshot, a half written or invalid file must not take keys away
+            log.error("Failed to reload key blocks from {}, keeping version {}", file, registry.getVersion(), e);
+        }
+    }
+
+    /**
+     * Loads the file now, without waiting for it to settle.
+     */
+    public void reload() {
+        try {
+            registry.refresh(load(file));
+        } catch (Exception e) {
+            log.error("Failed to reload key blocks from {}, keeping version {}", file, registry.getVersion(), e);
+        }
+    }
+
+    // null fields when the file is missing, e.g. between the delete and create of a replace
+    private Fingerprint fingerprint() {
+        try {
+            return new Fingerprint(file.toRealPath(), Files.getLastModifiedTime(file), Files.size(file));
+        } catch (IOException e) {
+            return new Fingerprint(null, null, -1);
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            log.warn("Failed to close key block watcher", e);
+        }
+        watcherThread.interrupt();
+    }
+}
@@ -0,0 +1,96 @@
+package com.billdesk.paymenthsm.client.internal.core;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the key blocks in use as an immutable, versioned {@link Snapshot}. Request threads only do a
+ * volatile read of the current snapshot; a refresh compiles a complete new snapshot off to the side and
+ * swaps it in atomically, so commands already rendered from the previous one are unaffected.
+ */
+@Slf4j
+public class KeyBlockRegistry {
+
+    @Getter
+    public static final class Snapshot {
+        private final long version;
+        private final Instant loadedAt;
+        private final Map<String, String> keyBlocks;
+        private final CommandTemplates templates;
+
+        private Snapshot(long version, Map<String, String> keyBlocks, CommandTemplates templates) {
+            this.version = version;
+            this.loadedAt = Instant.now();
+            this.keyBlocks = keyBlocks;
+            this.templates = templates;
+        }
+    }
+
+    private final CommandBuilder commandBuilder;
+    private final AtomicReference<Snapshot> current = new AtomicReference<>();
+
+    public KeyBlockRegistry(CommandBuilder commandBuilder, Map<String, String> keyBlocks) {
+        this.commandBuilder = commandBuilder;
+        this.current.set(compile(1, keyBlocks));
+    }
+
+    public Snapshot current() {
+        return current.get();
+    }
+
+    public CommandTemplates templates() {
+        return current.get().getTemplates();
+    }
+
+    public long getVersion() {
+        return current.get().getVersion();
+    }
+
+    public Set<String> getKeyNames() {
+        return current.get().getKeyBlocks().keySet();
+    }
+
+    /**
+     * Replaces all key blocks. Returns the version now in effect, unchanged if the key blocks are identical.
+     */
+    public synchronized long refresh(Map<String, String> keyBlocks) {
+        Snapshot previous = current.get();
+        if (previous.getKeyBlocks().equals(keyBlocks)) {
+            return previous.getVersion();
+        }
+        Snapshot next = compile(previous.getVersion() + 1, keyBlocks);
+        current.set(next);
+        log.info("Key blocks updated to version {}: {}", next.getVersion(), describeChanges(previous.getKeyBlocks(), next.getKeyBlocks()));
+        return next.getVersion();
+    }
+
+    private Snapshot compile(long version, Map<String, String> keyBlocks) {
+        if (keyBlocks == null || keyBlocks.isEmpty()) {
+            throw new IllegalArgumentException("HSM Key blocks must be provided");
+        }
+        Map<String, String> copy = Map.copyOf(keyBlocks);
+        return new Snapshot(version, copy, CommandTemplates.compile(copy, commandBuilder));
+    }
+
+    // key names only, key blocks are never logged
+    private static String describeChanges(Map<String, String> before, Map<String, String> after) {
+        Set<String> added = new TreeSet<>(after.keySet());
+        added.removeAll(before.keySet());
+        Set<String> removed = new TreeSet<>(before.keySet());
+        removed.removeAll(after.keySet());
+        Set<String> changed = new TreeSet<>();
+        after.forEach((name, keyBlock) -> {
+            if (before.containsKey(name) && !Objects.equals(before.get(name), keyBlock)) {
+                changed.add(name);
+            }
+        });
+        return "added " + added + ", removed " + removed + ", changed " + changed;
+    }
+}
@@ -0,0 +1,43 @@
+package com.billdesk.paymenthsm.client.internal.core;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Entry for a command awaiting its response in a {@link ResponseDispatcher}. The dispatcher removes the
+ * entry before completing it, so exactly one of {@link #complete(String)} and {@link #fail(Throwable)} is
+ * called, once.
+ */
+public abstract class PendingCommand {
+
+    // set by the dispatcher on registration, read by the TimeoutSweeper
+    volatile long deadlineNanos;
+
+    public abstract void complete(String response);
+
+    public abstract void fail(Throwable error);
+
+    /**
+     * Whether the response should be delivered through {@link #complete(HSMResultView)}.
+     */
+    public boolean acceptsView() {
+        return false;
+    }
+
+    public void complete(HSMResultView result) {
+        complete(result.toString());
+    }
+
+    public static PendingCommand of(CompletableFuture<String> future) {
+        return new PendingCommand() {
+            @Override
+            public void complete(String response) {
+                future.complete(response);
+            }
+
+            @Override
+            public void fail(Throwable error) {
+                future.completeExceptionally(error);
+            }
+        };
+    }
+}
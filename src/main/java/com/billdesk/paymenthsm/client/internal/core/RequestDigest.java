@@ -0,0 +1,65 @@
+package com.billdesk.paymenthsm.client.internal.core;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Keyed digest of request data for the client side lookup structures, so raw card data or payloads are never
+ * held as map keys. HMAC-SHA256 with a random key generated per process: digests cannot be precomputed or
+ * compared across processes, and nothing derived from them outlives a restart.
+ */
+public final class RequestDigest {
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final SecretKeySpec KEY;
+
+    static {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        KEY = new SecretKeySpec(key, ALGORITHM);
+    }
+
+    private static final ThreadLocal<Mac> MAC = ThreadLocal.withInitial(() -> {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(KEY);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    });
+
+    private final byte[] bytes;
+    private final int hash;
+
+    private RequestDigest(byte[] bytes) {
+        this.bytes = bytes;
+        this.hash = Arrays.hashCode(bytes);
+    }
+
+    public static RequestDigest of(String keyName, String data) {
+        Mac mac = MAC.get();
+        mac.update(keyName.getBytes(StandardCharsets.UTF_8));
+        // separator so ("ab", "c") and ("a", "bc") do not collide
+        mac.update((byte) 0);
+        return new RequestDigest(mac.doFinal(data.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public byte[] toByteArray() {
+        return bytes.clone();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || o instanceof RequestDigest other && hash == other.hash && Arrays.equals(bytes, other.bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
@@ -2,21 +2,20 @@ package com.billdesk.paymenthsm.client.internal.core;
 
 import com.billdesk.paymenthsm.client.internal.exception.*;
 import com.billdesk.paymenthsm.client.internal.model.HSMNode;
+import com.billdesk.paymenthsm.client.internal.trace.WireTraceBuffer;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.stereotype.Component;
 
 import java.util.concurrent.*;
 
 @Slf4j
 public class ResponseDispatcher {
-    private final ConcurrentMap<String, CompletableFuture<String>> pendingRequests = new ConcurrentHashMap<>();
-    private final ScheduledExecutorService timeoutExecutor;
+    private final ConcurrentMap<String, PendingCommand> pendingRequests = new ConcurrentHashMap<>();
     private static final long defaultHSMTimeout = 100L;
     private final HSMNode hsmNode;
 
     public ResponseDispatcher(HSMNode hsmNode) {
         this.hsmNode = hsmNode;
-        this.timeoutExecutor = Executors.newScheduledThreadPool(2);
+        TimeoutSweeper.register(this);
     }
 
     public void registerRequest(String correlationId, CompletableFuture<String> future) {
@@ -24,69 +23,94 @@ public class ResponseDispatcher {
     }
 
     public void registerRequest(String correlationId, CompletableFuture<String> future, long timeoutMs) {
-        pendingRequests.put(correlationId, future);
+        registerRequest(correlationId, PendingCommand.of(future), timeoutMs);
+    }
+
+    public void registerRequest(String correlationId, PendingCommand pending) {
+        registerRequest(correlationId, pending, defaultHSMTimeout);
+    }
+
+    public void registerRequest(String correlationId, PendingCommand pending, long timeoutMs) {
+        pending.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        pendingRequests.put(correlationId, pending);
+    }
 
-        timeoutExecutor.schedule(() -> {
-            CompletableFuture<String> removedFuture = pendingRequests.remove(correlationId);
-            if (removedFuture != null && !removedFuture.isDone()) {
+    void expire(long now) {
+        if (pendingRequests.isEmpty()) {
+            return;
+        }
+        pendingRequests.forEach((correlationId, pending) -> {
+            if (now - pending.deadlineNanos >= 0 && pendingRequests.remove(correlationId, pending)) {
                 log.error("Waited too long for the hsm to responsd.");
-                removedFuture.completeExceptionally(new HSMRequestTimeoutException("HSM request response timeout for id : " + correlationId));
+                // off the sweeper thread, a retry may block borrowing a connection and hold up every other timeout
+                TimeoutSweeper.expire(() ->
+                        pending.fail(new HSMRequestTimeoutException("HSM request response timeout for id : " + correlationId)));
             }
-        }, timeoutMs, TimeUnit.MILLISECONDS);
+        });
     }
 
     public void completeResponse(String correlationId, String response) {
-        CompletableFuture<String> future = pendingRequests.remove(correlationId);
-        log.info("Marking correlation id : {} as done", correlationId);
-        if (future != null && !future.isDone()) {
-            future.complete(response);
+        PendingCommand pending = pendingRequests.remove(correlationId);
+        if (log.isDebugEnabled()) {
+            log.debug("Marking correlation id : {} as done", correlationId);
+        }
+        if (pending != null) {
+            pending.complete(response);
+        }
+    }
+
+    public boolean acceptsView(String correlationId) {
+        PendingCommand pending = pendingRequests.get(correlationId);
+        return pending != null && pending.acceptsView();
+    }
+
+    public void completeResponse(String correlationId, HSMResultView result) {
+        PendingCommand pending = pendingRequests.remove(correlationId);
+        if (pending != null) {
+            pending.complete(result);
         }
     }
 
     public void completeWithError(String correlationId, Exception error) {
-        CompletableFuture<String> future = pendingRequests.remove(correlationId);
-        if (future != null && !future.isDone()) {
-            future.completeExceptionally(error);
+        PendingCommand pending = pendingRequests.remove(correlationId);
+        if (pending != null) {
+            pending.fail(error);
         }
     }
 
     public void completeHSMCommandSendFailureWithError(String command, String correlationId, Exception e) {
-        CompletableFuture<String> future = pendingRequests.remove(correlationId);
+        PendingCommand pending = pendingRequests.remove(correlationId);
         HSMException wrappedException;
         if (e instanceof HSMConnectionException || e instanceof HSMIOException) {
             wrappedException = (HSMException) e;
         } else {
             wrappedException = new HSMException("Unexpected error sending command to HSM", e);
         }
-        log.error("Failed to send command to HSM : {}", command, wrappedException);
-        if (future != null && !future.isDone()) {
-            future.completeExceptionally(wrappedException);
+        log.error("Failed to send command to HSM : {}", WireTraceBuffer.redact(command), wrappedException);
+        if (pending != null) {
+            pending.fail(wrappedException);
         }
     }
 
+    public int getPendingCount() {
+        return pendingRequests.size();
+    }
+
     public void shutdown() {
         log.warn("Shutting down a response dispatcher for socket to {}:{}", hsmNode.getIp(), hsmNode.getPort());
         String shutdownMessage = String.format("HSMClient socket connection closing to %s:%s", hsmNode.getIp(), hsmNode.getPort());
         completeAllWithError(new HSMConnectionException(shutdownMessage));
-        timeoutExecutor.shutdown();
-        try {
-            if (!timeoutExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
-                timeoutExecutor.shutdownNow();
-            }
-        } catch (InterruptedException ie) {
-            timeoutExecutor.shutdownNow();
-            Thread.currentThread().interrupt();
-        }
+        TimeoutSweeper.unregister(this);
     }
 
     public void completeAllWithError(HSMConnectionException exception) {
         log.error("Completing all pending requests with error: {}", exception.getMessage());
-        pendingRequests.forEach((correlationId, future) -> {
-            if (!future.isDone()) {
-                future.completeExceptionally(exception);
+        // remove before failing, a response arriving concurrently must not complete the same entry again
+        pendingRequests.forEach((correlationId, pending) -> {
+            if (pendingRequests.remove(correlationId, pending)) {
+                pending.fail(exception);
                 log.warn("Completed request {} with global error", correlationId);
             }
         });
-        pendingRequests.clear();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,102 @@
+package com.billdesk.paymenthsm.client.internal.core;
+
+import com.billdesk.paymenthsm.client.internal.audit.AuditJournal;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent identical requests into one HSM command. The first caller for a (template, data) pair
+ * sends the command, callers arriving while it is in flight share its result. The entry is removed as soon as
+ * the command completes, so nothing is cached beyond the round trip.
+ * <p>
+ * Entries are keyed by the template instance, which identifies the operation and key block, and a
+ * {@link RequestDigest} of the data. A key block reload compiles new templates, so requests for the new block
+ * never join a command rendered with the old one.
+ * <p>
+ * With an audit journal, callers that joined a command get an entry of their own with node
+ * {@link AuditJournal#NODE_SINGLE_FLIGHT}; the command itself is journaled by the load balancer.
+ */
+public class SingleFlight {
+
+    private record Key(CommandTemplate template, RequestDigest digest) {
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key other && template == other.template && digest.equals(other.digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(template) + digest.hashCode();
+        }
+    }
+
+    private final Map<Key, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder executed = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    // null unless hsm.client.audit-enabled
+    private final AuditJournal auditJournal;
+
+    public SingleFlight() {
+        this(null);
+    }
+
+    public SingleFlight(AuditJournal auditJournal) {
+        this.auditJournal = auditJournal;
+    }
+
+    public CompletableFuture<String> execute(CommandTemplate template, String data, Supplier<CompletableFuture<String>> command) {
+        Key key = new Key(template, RequestDigest.of(template.getKeyName() == null ? "" : template.getKeyName(), data));
+        CompletableFuture<String> leader = new CompletableFuture<>();
+        CompletableFuture<String> existing = inFlight.putIfAbsent(key, leader);
+        if (existing != null) {
+            coalesced.increment();
+            // callers get their own copy so one of them cancelling does not affect the others
+            CompletableFuture<String> follower = existing.copy();
+            if (auditJournal != null) {
+                audit(template, follower);
+            }
+            return follower;
+        }
+        executed.increment();
+        try {
+            command.get().whenComplete((response, error) -> {
+                inFlight.remove(key, leader);
+                if (error != null) {
+                    leader.completeExceptionally(error);
+                } else {
+                    leader.complete(response);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.remove(key, leader);
+            leader.completeExceptionally(e);
+        }
+        return leader.copy();
+    }
+
+    private void audit(CommandTemplate template, CompletableFuture<String> follower) {
+        long startMillis = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        String correlationId = CorrelationIdGenerator.commandId();
+        follower.whenComplete((response, error) -> auditJournal.record(startMillis, System.nanoTime() - startNanos,
+                template.getOperation(), correlationId, template.getKeyName(), AuditJournal.NODE_SINGLE_FLIGHT,
+                error instanceof CompletionException && error.getCause() != null ? error.getCause() : error));
+    }
+
+    public long getExecuted() {
+        return executed.sum();
+    }
+
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public int getInFlight() {
+        return inFlight.size();
+    }
+}
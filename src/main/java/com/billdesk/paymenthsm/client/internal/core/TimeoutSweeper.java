@@ -0,0 +1,68 @@
+package com.billdesk.paymenthsm.client.internal.core;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One daemon thread that expires timed out commands of every dispatcher, instead of a scheduled task per
+ * command. Each dispatcher only ever has a handful of pending commands, so scanning them all every tick is
+ * cheaper than scheduling and cancelling a task per command. Timeouts fire up to one tick late.
+ */
+@Slf4j
+final class TimeoutSweeper {
+
+    static final long TICK_MILLIS = 10;
+
+    private static final Set<ResponseDispatcher> DISPATCHERS = ConcurrentHashMap.newKeySet();
+    private static final ScheduledExecutorService SWEEPER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "HSM-Timeout-Sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final int EXPIRY_THREADS = 2;
+
+    // off the sweeper thread, an expiry runs the retry on another node; retries never wait for a connection
+    // (see CommandExecution#isRetry), so a small fixed pool keeps up even when a node goes dark
+    private static final ExecutorService EXPIRY = Executors.newFixedThreadPool(EXPIRY_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "HSM-Timeout-Expiry");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        SWEEPER.scheduleWithFixedDelay(TimeoutSweeper::sweep, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private TimeoutSweeper() {
+    }
+
+    static void register(ResponseDispatcher dispatcher) {
+        DISPATCHERS.add(dispatcher);
+    }
+
+    static void unregister(ResponseDispatcher dispatcher) {
+        DISPATCHERS.remove(dispatcher);
+    }
+
+    static void expire(Runnable expiry) {
+        EXPIRY.execute(expiry);
+    }
+
+    private static void sweep() {
+        long now = System.nanoTime();
+        for (ResponseDispatcher dispatcher : DISPATCHERS) {
+            try {
+                dispatcher.expire(now);
+            } catch (RuntimeException e) {
+                log.error("Failed to expire timed out HSM commands", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.billdesk.paymenthsm.client.internal.exception;
+
+/**
+ * Request rejected without being sent because the HSMs are already at capacity. Callers can degrade or
+ * retry later, the HSM state is unaffected.
+ */
+public class HSMOverloadedException extends HSMException {
+    public HSMOverloadedException(String message) {
+        super(message);
+    }
+
+    public HSMOverloadedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
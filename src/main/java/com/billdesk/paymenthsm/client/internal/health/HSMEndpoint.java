@@ -0,0 +1,38 @@
+package com.billdesk.paymenthsm.client.internal.health;
+
+import com.billdesk.paymenthsm.client.internal.loadbalancer.LoadBalancer;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.Selector;
+
+/**
+ * Actuator endpoint {@code /actuator/hsm} with the cached snapshot of the client, {@code /actuator/hsm/{address}}
+ * with one node. Expose it with {@code management.endpoints.web.exposure.include=hsm}.
+ */
+@Endpoint(id = "hsm")
+public class HSMEndpoint {
+
+    private final LoadBalancer loadBalancer;
+
+    public HSMEndpoint(LoadBalancer loadBalancer) {
+        this.loadBalancer = loadBalancer;
+    }
+
+    @ReadOperation
+    public HSMHealthSnapshot health() {
+        return loadBalancer.getHealth();
+    }
+
+    /**
+     * @param address ip:port of the node, null (404) if it is not part of the client
+     */
+    @ReadOperation
+    public HSMHealthSnapshot.NodeHealth node(@Selector String address) {
+        for (HSMHealthSnapshot.NodeHealth node : loadBalancer.getHealth().getNodes()) {
+            if (node.getAddress().equals(address)) {
+                return node;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,31 @@
+package com.billdesk.paymenthsm.client.internal.health;
+
+import com.billdesk.paymenthsm.client.internal.loadbalancer.LoadBalancer;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+
+/**
+ * Actuator health contributor {@code hsm}, served from the cached snapshot: UP while at least one node takes
+ * traffic, with the per-node state as details.
+ */
+public class HSMHealthIndicator implements HealthIndicator {
+
+    private final LoadBalancer loadBalancer;
+
+    public HSMHealthIndicator(LoadBalancer loadBalancer) {
+        this.loadBalancer = loadBalancer;
+    }
+
+    @Override
+    public Health health() {
+        HSMHealthSnapshot snapshot = loadBalancer.getHealth();
+        Health.Builder builder = snapshot.getStatus() == HSMHealthSnapshot.Status.UP ? Health.up() : Health.down();
+        return builder
+                .withDetail("healthyNodes", snapshot.getHealthyNodes())
+                .withDetail("inFlight", snapshot.getInFlight())
+                .withDetail("overloaded", snapshot.isOverloaded())
+                .withDetail("snapshotAgeMillis", snapshot.getAgeMillis())
+                .withDetail("nodes", snapshot.getNodes())
+                .build();
+    }
+}
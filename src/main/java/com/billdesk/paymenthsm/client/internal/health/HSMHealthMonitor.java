@@ -0,0 +1,108 @@
+package com.billdesk.paymenthsm.client.internal.health;
+
+import com.billdesk.paymenthsm.client.internal.admission.AdmissionController;
+import com.billdesk.paymenthsm.client.internal.connection.ConnectionBag;
+import com.billdesk.paymenthsm.client.internal.connection.HSMConnectionPool;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Keeps an {@link HSMHealthSnapshot} of the pools, rebuilt on a background thread every interval from counters
+ * the pools maintain anyway. {@link #current()} only reads a volatile field, so health probes and metric
+ * scrapes cost nothing however often they come and never wait on an HSM.
+ */
+@Slf4j
+public class HSMHealthMonitor implements AutoCloseable {
+
+    private final Supplier<List<HSMConnectionPool>> pools;
+    private final BooleanSupplier overloaded;
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "HSM-Health-Snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // latency counts of the previous refresh, the percentiles cover the interval since
+    private final Map<HSMConnectionPool, long[]> previousLatencies = new IdentityHashMap<>();
+    private volatile HSMHealthSnapshot snapshot;
+
+    public HSMHealthMonitor(Supplier<List<HSMConnectionPool>> pools, BooleanSupplier overloaded, long intervalMillis) {
+        this.pools = pools;
+        this.overloaded = overloaded;
+        rebuild(true);
+        refresher.scheduleAtFixedRate(() -> {
+            try {
+                rebuild(true);
+            } catch (Exception e) {
+                log.warn("Failed to refresh HSM health snapshot", e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public HSMHealthSnapshot current() {
+        return snapshot;
+    }
+
+    /**
+     * Rebuilds the snapshot now, e.g. right after a health check changed the state of a node. The latency
+     * percentiles cover the interval so far; only the scheduled rebuild starts a new one, so every interval
+     * has the same length however often this is called.
+     */
+    public void refresh() {
+        rebuild(false);
+    }
+
+    private synchronized void rebuild(boolean rollLatencyWindow) {
+        List<HSMConnectionPool> current = pools.get();
+        List<HSMHealthSnapshot.NodeHealth> nodes = new ArrayList<>(current.size());
+        Map<HSMConnectionPool, long[]> latencies = new IdentityHashMap<>();
+        for (HSMConnectionPool pool : current) {
+            long[] counts = pool.getLatency().counts();
+            long[] previous = previousLatencies.get(pool);
+            latencies.put(pool, counts);
+            ConnectionBag connections = pool.getInternalConnectionPool();
+            nodes.add(new HSMHealthSnapshot.NodeHealth(pool.getNodeAddress(), state(pool), pool.getTrafficWeight(),
+                    connections.getNumActive(), connections.getNumIdle(), connections.getMaxTotal(),
+                    pool.getInFlight(), pool.getCommandsExecuted(), pool.getRateLimited(),
+                    LatencyHistogram.count(counts, previous),
+                    LatencyHistogram.percentile(counts, previous, 50),
+                    LatencyHistogram.percentile(counts, previous, 90),
+                    LatencyHistogram.percentile(counts, previous, 99),
+                    LatencyHistogram.percentile(counts, previous, 99.9),
+                    pool.getLastPingMillis()));
+        }
+        if (rollLatencyWindow) {
+            // removed pools are forgotten here
+            previousLatencies.clear();
+            previousLatencies.putAll(latencies);
+        }
+        snapshot = new HSMHealthSnapshot(System.currentTimeMillis(), overloaded.getAsBoolean(), nodes);
+    }
+
+    private static HSMHealthSnapshot.NodeHealth.State state(HSMConnectionPool pool) {
+        if (pool.isDraining()) {
+            return HSMHealthSnapshot.NodeHealth.State.DRAINING;
+        }
+        if (!pool.isHealthy()) {
+            return HSMHealthSnapshot.NodeHealth.State.DOWN;
+        }
+        AdmissionController admission = pool.getAdmission();
+        if (admission != null && admission.isOverloaded()) {
+            return HSMHealthSnapshot.NodeHealth.State.OVERLOADED;
+        }
+        return pool.getTrafficWeight() < 1.0 ? HSMHealthSnapshot.NodeHealth.State.RAMPING : HSMHealthSnapshot.NodeHealth.State.UP;
+    }
+
+    @Override
+    public void close() {
+        refresher.shutdownNow();
+    }
+}
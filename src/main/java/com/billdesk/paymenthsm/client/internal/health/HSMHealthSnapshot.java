@@ -0,0 +1,116 @@
+package com.billdesk.paymenthsm.client.internal.health;
+
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * State of the client and every node as of the last refresh of {@link HSMHealthMonitor}. Immutable, reading it
+ * never touches a connection.
+ */
+@Getter
+public final class HSMHealthSnapshot {
+
+    public enum Status {
+        // at least one node takes traffic
+        UP,
+        DOWN
+    }
+
+    private final Status status;
+    private final long takenAtMillis;
+    private final int healthyNodes;
+    private final int inFlight;
+    // client wide admission control is rejecting commands that would queue
+    private final boolean overloaded;
+    private final List<NodeHealth> nodes;
+
+    HSMHealthSnapshot(long takenAtMillis, boolean overloaded, List<NodeHealth> nodes) {
+        int healthy = 0;
+        int inFlight = 0;
+        for (NodeHealth node : nodes) {
+            if (node.getState() != NodeHealth.State.DOWN && node.getState() != NodeHealth.State.DRAINING) {
+                healthy++;
+            }
+            inFlight += node.getInFlight();
+        }
+        this.status = healthy > 0 ? Status.UP : Status.DOWN;
+        this.takenAtMillis = takenAtMillis;
+        this.healthyNodes = healthy;
+        this.inFlight = inFlight;
+        this.overloaded = overloaded;
+        this.nodes = List.copyOf(nodes);
+    }
+
+    public long getAgeMillis() {
+        return System.currentTimeMillis() - takenAtMillis;
+    }
+
+    /**
+     * One node. Latencies are in microseconds over the last refresh interval, -1 when no command completed in it.
+     */
+    @Getter
+    public static final class NodeHealth {
+
+        /**
+         * Whether the node gets traffic, the client's equivalent of a circuit breaker: DOWN is open, RAMPING
+         * half open while slow start limits its share, UP and OVERLOADED closed.
+         */
+        public enum State {
+            UP,
+            // recovered, slow start is still ramping its traffic
+            RAMPING,
+            // admission control is rejecting commands that would queue for its connections
+            OVERLOADED,
+            // failed its last health check or ran out of connections
+            DOWN,
+            // being removed, commands in flight finish but no new ones are sent
+            DRAINING
+        }
+
+        private final String address;
+        private final State state;
+        private final double trafficWeight;
+        private final int activeConnections;
+        private final int idleConnections;
+        private final int maxConnections;
+        private final int inFlight;
+        private final long commandsExecuted;
+        private final long rateLimited;
+        private final long latencySamples;
+        private final long latencyP50Micros;
+        private final long latencyP90Micros;
+        private final long latencyP99Micros;
+        private final long latencyP999Micros;
+        // 0 when no ping has succeeded yet
+        private final long lastPingMillis;
+
+        NodeHealth(String address, State state, double trafficWeight, int activeConnections, int idleConnections,
+                   int maxConnections, int inFlight, long commandsExecuted, long rateLimited, long latencySamples,
+                   long latencyP50Micros, long latencyP90Micros, long latencyP99Micros, long latencyP999Micros,
+                   long lastPingMillis) {
+            this.address = address;
+            this.state = state;
+            this.trafficWeight = trafficWeight;
+            this.activeConnections = activeConnections;
+            this.idleConnections = idleConnections;
+            this.maxConnections = maxConnections;
+            this.inFlight = inFlight;
+            this.commandsExecuted = commandsExecuted;
+            this.rateLimited = rateLimited;
+            this.latencySamples = latencySamples;
+            this.latencyP50Micros = latencyP50Micros;
+            this.latencyP90Micros = latencyP90Micros;
+            this.latencyP99Micros = latencyP99Micros;
+            this.latencyP999Micros = latencyP999Micros;
+            this.lastPingMillis = lastPingMillis;
+        }
+
+        /**
+         * Time since the last successful ping, -1 if there was none.
+         */
+        public long getLastPingAgeMillis() {
+            return lastPingMillis == 0 ? -1 : System.currentTimeMillis() - lastPingMillis;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.billdesk.paymenthsm.client.internal.health;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Command latencies of one node in microsecond buckets, four per power of two, so a percentile is off by at
+ * most a quarter of its value. Recording is one atomic increment; percentiles are read from the difference of
+ * two {@link #counts()} copies, i.e. over the interval between them.
+ */
+public class LatencyHistogram {
+
+    // values below this get a bucket each
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int BUCKETS = LINEAR_BUCKETS + (64 - 4) * (1 << SUB_BUCKET_BITS);
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void record(long latencyNanos) {
+        counts.incrementAndGet(bucket(Math.max(0, latencyNanos / 1000)));
+    }
+
+    public long[] counts() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+        }
+        return copy;
+    }
+
+    /**
+     * Percentile in microseconds of the commands recorded between {@code previous} and {@code current}, the upper
+     * bound of its bucket. -1 when nothing was recorded in between.
+     *
+     * @param previous null for everything since the start
+     */
+    public static long percentile(long[] current, long[] previous, double percentile) {
+        long total = count(current, previous);
+        if (total == 0) {
+            return -1;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < current.length; i++) {
+            seen += current[i] - (previous == null ? 0 : previous[i]);
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(current.length - 1);
+    }
+
+    public static long count(long[] current, long[] previous) {
+        long total = 0;
+        for (int i = 0; i < current.length; i++) {
+            total += current[i] - (previous == null ? 0 : previous[i]);
+        }
+        return total;
+    }
+
+    static int bucket(long micros) {
+        if (micros < LINEAR_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+        return LINEAR_BUCKETS + ((exponent - 4) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    static long upperBound(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        int exponent = ((bucket - LINEAR_BUCKETS) >> SUB_BUCKET_BITS) + 4;
+        long subBucket = (bucket - LINEAR_BUCKETS) & ((1 << SUB_BUCKET_BITS) - 1);
+        long upper = ((1L << SUB_BUCKET_BITS) + subBucket + 1) << (exponent - SUB_BUCKET_BITS);
+        return upper < 0 ? Long.MAX_VALUE : upper - 1;
+    }
+}
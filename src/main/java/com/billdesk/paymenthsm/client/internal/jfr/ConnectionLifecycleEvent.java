@@ -0,0 +1,57 @@
+package com.billdesk.paymenthsm.client.internal.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("com.billdesk.paymenthsm.ConnectionLifecycle")
+@Label("HSM Connection Lifecycle")
+@Category({"HSM Client", "Connection"})
+@Description("Open, close and invalidation of sockets to an HSM node")
+@StackTrace(false)
+public class ConnectionLifecycleEvent extends jdk.jfr.Event {
+
+    public static final String OPEN = "OPEN";
+    public static final String CLOSE = "CLOSE";
+    public static final String INVALIDATE = "INVALIDATE";
+
+    private static final EventType TYPE = EventType.getEventType(ConnectionLifecycleEvent.class);
+
+    @Label("Node")
+    public String node;
+
+    @Label("Action")
+    public String action;
+
+    @Label("Success")
+    public boolean success;
+
+    @Label("Failure")
+    public String failure;
+
+    public static ConnectionLifecycleEvent beginIfEnabled(String node, String action) {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+        ConnectionLifecycleEvent event = new ConnectionLifecycleEvent();
+        event.node = node;
+        event.action = action;
+        event.begin();
+        return event;
+    }
+
+    public static void commit(ConnectionLifecycleEvent event, Throwable error) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.success = error == null;
+            event.failure = error == null ? null : error.getClass().getSimpleName();
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.billdesk.paymenthsm.client.internal.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("com.billdesk.paymenthsm.Command")
+@Label("HSM Command")
+@Category({"HSM Client", "Command"})
+@Description("Execution of a single command on an HSM node, from pool hand-off to response")
+@StackTrace(false)
+public class HSMCommandEvent extends jdk.jfr.Event {
+
+    private static final EventType TYPE = EventType.getEventType(HSMCommandEvent.class);
+
+    @Label("Node")
+    public String node;
+
+    @Label("Operation")
+    public String operation;
+
+    @Label("Correlation Id")
+    public String correlationId;
+
+    @Label("Outcome")
+    public String outcome;
+
+    /**
+     * Returns a started event, or null when no active recording has this event enabled so callers
+     * do not allocate anything on the hot path.
+     */
+    public static HSMCommandEvent beginIfEnabled(String node, String command, String correlationId) {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+        HSMCommandEvent event = new HSMCommandEvent();
+        event.node = node;
+        event.operation = JfrSupport.operationOf(command);
+        event.correlationId = correlationId;
+        event.begin();
+        return event;
+    }
+
+    public static void commit(HSMCommandEvent event, Throwable error) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.outcome = JfrSupport.outcomeOf(error);
+            event.commit();
+        }
+    }
+}
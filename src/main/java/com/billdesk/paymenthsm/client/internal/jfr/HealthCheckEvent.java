@@ -0,0 +1,53 @@
+package com.billdesk.paymenthsm.client.internal.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("com.billdesk.paymenthsm.HealthCheck")
+@Label("HSM Health Check")
+@Category({"HSM Client", "Load Balancer"})
+@Description("Result of a periodic ping based health check of an HSM node")
+@StackTrace(false)
+public class HealthCheckEvent extends jdk.jfr.Event {
+
+    private static final EventType TYPE = EventType.getEventType(HealthCheckEvent.class);
+
+    @Label("Node")
+    public String node;
+
+    @Label("Was Healthy")
+    public boolean wasHealthy;
+
+    @Label("Healthy")
+    public boolean healthy;
+
+    @Label("Failure")
+    public String failure;
+
+    public static HealthCheckEvent beginIfEnabled(String node, boolean wasHealthy) {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+        HealthCheckEvent event = new HealthCheckEvent();
+        event.node = node;
+        event.wasHealthy = wasHealthy;
+        event.begin();
+        return event;
+    }
+
+    public static void commit(HealthCheckEvent event, Throwable error) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.healthy = error == null;
+            event.failure = error == null ? null : error.getClass().getSimpleName();
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.billdesk.paymenthsm.client.internal.jfr;
+
+import java.util.concurrent.CompletionException;
+
+final class JfrSupport {
+
+    static final String SUCCESS = "SUCCESS";
+
+    private JfrSupport() {
+    }
+
+    // Commands look like <CODE#...#>, only the code is recorded so no key or data ends up in a recording.
+    static String operationOf(String command) {
+        if (command == null || command.length() < 2 || command.charAt(0) != '<') {
+            return "UNKNOWN";
+        }
+        int end = command.indexOf('#');
+        if (end < 0) {
+            end = command.indexOf('>');
+        }
+        return end > 1 ? command.substring(1, end) : "UNKNOWN";
+    }
+
+    static String outcomeOf(Throwable error) {
+        if (error == null) {
+            return SUCCESS;
+        }
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        return cause.getClass().getSimpleName();
+    }
+}
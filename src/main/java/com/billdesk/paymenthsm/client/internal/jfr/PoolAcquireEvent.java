@@ -0,0 +1,53 @@
+package com.billdesk.paymenthsm.client.internal.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("com.billdesk.paymenthsm.PoolAcquire")
+@Label("HSM Pool Acquire")
+@Category({"HSM Client", "Connection Pool"})
+@Description("Time spent waiting to borrow a connection from an HSM node pool")
+@StackTrace(false)
+public class PoolAcquireEvent extends jdk.jfr.Event {
+
+    private static final EventType TYPE = EventType.getEventType(PoolAcquireEvent.class);
+
+    @Label("Node")
+    public String node;
+
+    @Label("Acquired")
+    public boolean acquired;
+
+    @Label("Active Connections")
+    public int active;
+
+    @Label("Idle Connections")
+    public int idle;
+
+    public static PoolAcquireEvent beginIfEnabled(String node) {
+        if (!TYPE.isEnabled()) {
+            return null;
+        }
+        PoolAcquireEvent event = new PoolAcquireEvent();
+        event.node = node;
+        event.begin();
+        return event;
+    }
+
+    public static void commit(PoolAcquireEvent event, boolean acquired, int active, int idle) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.acquired = acquired;
+            event.active = active;
+            event.idle = idle;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.billdesk.paymenthsm.client.internal.loadbalancer;
+
+import com.billdesk.paymenthsm.client.internal.connection.HSMConnectionPool;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Consistent hash ring with bounded loads for {@link LoadBalancingType#CLIENT_SIDE_KEY_AFFINITY}.
+ * <p>
+ * Every node owns {@code VIRTUAL_NODES_PER_WEIGHT * weight} points on the ring so a join or leave only moves
+ * the keys adjacent to its points. A key is served by the first node clockwise from its hash unless that
+ * node is unusable or already carries more than {@code loadFactor} times the average in-flight load, in which
+ * case the walk continues to the next distinct node. A key therefore stays on a small, stable subset of nodes.
+ */
+class ConsistentHashRing {
+
+    private static final int VIRTUAL_NODES_PER_WEIGHT = 100;
+
+    private final List<HSMConnectionPool> pools;
+    private final long[] points;
+    private final int[] owners;
+    private final double loadFactor;
+
+    ConsistentHashRing(List<HSMConnectionPool> pools, double loadFactor) {
+        this.pools = pools;
+        this.loadFactor = loadFactor;
+        int total = 0;
+        for (HSMConnectionPool pool : pools) {
+            total += VIRTUAL_NODES_PER_WEIGHT * Math.max(1, pool.getNode().getWeight());
+        }
+        long[][] entries = new long[total][2];
+        int next = 0;
+        for (int owner = 0; owner < pools.size(); owner++) {
+            String address = pools.get(owner).getNode().address();
+            int virtualNodes = VIRTUAL_NODES_PER_WEIGHT * Math.max(1, pools.get(owner).getNode().getWeight());
+            for (int i = 0; i < virtualNodes; i++) {
+                entries[next][0] = hash(address + "#" + i);
+                entries[next][1] = owner;
+                next++;
+            }
+        }
+        Arrays.sort(entries, (a, b) -> Long.compare(a[0], b[0]));
+        this.points = new long[total];
+        this.owners = new int[total];
+        for (int i = 0; i < total; i++) {
+            points[i] = entries[i][0];
+            owners[i] = (int) entries[i][1];
+        }
+    }
+
+    /**
+     * @param tried        nodes this command already failed on, passed over so a retry goes to the next node of
+     *                     the key; null on the first attempt
+     * @param takesTraffic false for a healthy node that should be passed over for now, e.g. while it ramps up
+     */
+    HSMConnectionPool select(String routingKey, Set<HSMConnectionPool> tried, Predicate<HSMConnectionPool> takesTraffic) {
+        if (points.length == 0) {
+            return null;
+        }
+        int size = pools.size();
+        long totalLoad = 0;
+        int healthy = 0;
+        for (HSMConnectionPool pool : pools) {
+            if (pool.isHealthy()) {
+                totalLoad += pool.getInFlight();
+                healthy++;
+            }
+        }
+        if (healthy == 0) {
+            return null;
+        }
+        double capacity = Math.ceil((totalLoad + 1) * loadFactor / healthy);
+
+        int start = Arrays.binarySearch(points, hash(routingKey));
+        if (start < 0) {
+            start = -start - 1;
+        }
+        boolean[] visited = new boolean[size];
+        int distinct = 0;
+        HSMConnectionPool fallback = null;
+        for (int i = 0; i < points.length && distinct < size; i++) {
+            int owner = owners[(start + i) % points.length];
+            if (visited[owner]) {
+                continue;
+            }
+            visited[owner] = true;
+            distinct++;
+            HSMConnectionPool candidate = pools.get(owner);
+            if (!candidate.isHealthy() || (tried != null && tried.contains(candidate))) {
+                continue;
+            }
+            if (candidate.getInFlight() < capacity && takesTraffic.test(candidate)) {
+                return candidate;
+            }
+            if (fallback == null) {
+                fallback = candidate;
+            }
+        }
+        return fallback;
+    }
+
+    // String.hashCode is cached on the instance, the finaliser from MurmurHash3 spreads it over 64 bits
+    static long hash(String value) {
+        long h = value.hashCode() * 0x9E3779B97F4A7C15L;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,126 @@
+package com.billdesk.paymenthsm.client.internal.loadbalancer;
+
+import com.billdesk.paymenthsm.client.internal.connection.CommandExecution;
+import com.billdesk.paymenthsm.client.internal.connection.HSMConnectionPool;
+import com.billdesk.paymenthsm.client.internal.core.CommandTemplate;
+import com.billdesk.paymenthsm.client.internal.core.HSMCompletionHandler;
+import com.billdesk.paymenthsm.client.internal.core.HSMResultView;
+import com.billdesk.paymenthsm.client.internal.core.HSMResultViewHandler;
+import com.billdesk.paymenthsm.client.internal.model.HSMRequest;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * A command and its retry state, handed from node to node by the {@link LoadBalancer} until it succeeds or
+ * runs out of nodes. The one object a request allocates between the caller's handler and the socket.
+ */
+final class LoadBalancedCommand<C> extends CommandExecution {
+
+    private final LoadBalancer loadBalancer;
+    // either a ready made command, or a template and its data
+    private final String command;
+    private final CommandTemplate template;
+    private final String data;
+    private final String correlationId;
+    final String routingKey;
+    // null for commands not built from a template
+    final HSMRequest.Operation operation;
+    private final HSMCompletionHandler<? super C> handler;
+    // the same handler when it takes results as views, null otherwise
+    private final HSMResultViewHandler<? super C> viewHandler;
+    private final C context;
+    int tries;
+    // nodes an attempt already failed on, null until the first failure
+    Set<HSMConnectionPool> tried;
+    // node of the current attempt
+    HSMConnectionPool pool;
+    // only set when the audit journal is enabled
+    long startMillis;
+    long startNanos;
+
+    LoadBalancedCommand(LoadBalancer loadBalancer, String command, String correlationId, String routingKey,
+                        HSMRequest.Operation operation, HSMCompletionHandler<? super C> handler, C context) {
+        this(loadBalancer, command, null, null, correlationId, routingKey, operation, handler, context);
+    }
+
+    LoadBalancedCommand(LoadBalancer loadBalancer, CommandTemplate template, String data, String correlationId,
+                        HSMCompletionHandler<? super C> handler, C context) {
+        this(loadBalancer, null, template, data, correlationId, template.getKeyName(), template.getOperation(), handler, context);
+    }
+
+    @SuppressWarnings("unchecked")
+    private LoadBalancedCommand(LoadBalancer loadBalancer, String command, CommandTemplate template, String data, String correlationId,
+                                String routingKey, HSMRequest.Operation operation, HSMCompletionHandler<? super C> handler, C context) {
+        this.loadBalancer = loadBalancer;
+        this.command = command;
+        this.template = template;
+        this.data = data;
+        this.correlationId = correlationId;
+        this.routingKey = routingKey;
+        this.operation = operation;
+        this.handler = handler;
+        this.viewHandler = handler instanceof HSMResultViewHandler ? (HSMResultViewHandler<? super C>) handler : null;
+        this.context = context;
+    }
+
+    @Override
+    public String getCommand() {
+        return command != null ? command : template.render(data);
+    }
+
+    @Override
+    public CommandTemplate getTemplate() {
+        return template;
+    }
+
+    @Override
+    public String getData() {
+        return data;
+    }
+
+    @Override
+    public String getCorrelationId() {
+        return correlationId;
+    }
+
+    @Override
+    protected void onSuccess(String response) {
+        loadBalancer.audit(this, null);
+        handler.completed(response, context);
+    }
+
+    @Override
+    protected boolean isRetry() {
+        return tries > 0;
+    }
+
+    @Override
+    public boolean acceptsView() {
+        return viewHandler != null;
+    }
+
+    @Override
+    protected void onSuccess(HSMResultView result) {
+        loadBalancer.audit(this, null);
+        viewHandler.completed(result, context);
+    }
+
+    @Override
+    protected void onFailure(Throwable error) {
+        loadBalancer.onAttemptFailed(this, error);
+    }
+
+    void markTried(HSMConnectionPool failedPool) {
+        if (tried == null) {
+            tried = Collections.newSetFromMap(new IdentityHashMap<>());
+        }
+        tried.add(failedPool);
+    }
+
+    void failed(Throwable error) {
+        loadBalancer.audit(this, error);
+        handler.failed(error, context);
+    }
+}
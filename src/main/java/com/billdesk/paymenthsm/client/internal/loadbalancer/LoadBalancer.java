@@ -1,30 +1,76 @@
 package com.billdesk.paymenthsm.client.internal.loadbalancer;
 
+import com.billdesk.paymenthsm.client.internal.admission.AdmissionController;
+import com.billdesk.paymenthsm.client.internal.audit.AuditJournal;
 import com.billdesk.paymenthsm.client.internal.config.HSMConfig;
 import com.billdesk.paymenthsm.client.internal.connection.AsyncSocketConnection;
 import com.billdesk.paymenthsm.client.internal.connection.HSMConnectionPool;
 import com.billdesk.paymenthsm.client.internal.core.CommandBuilder;
+import com.billdesk.paymenthsm.client.internal.core.CommandTemplate;
+import com.billdesk.paymenthsm.client.internal.core.HSMCompletionHandler;
 import com.billdesk.paymenthsm.client.internal.exception.*;
+import com.billdesk.paymenthsm.client.internal.health.HSMHealthMonitor;
+import com.billdesk.paymenthsm.client.internal.health.HSMHealthSnapshot;
+import com.billdesk.paymenthsm.client.internal.jfr.HealthCheckEvent;
+import com.billdesk.paymenthsm.client.internal.model.HSMNode;
+import com.billdesk.paymenthsm.client.internal.model.HSMRequest;
+import com.billdesk.paymenthsm.client.internal.trace.WireTraceBuffer;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 @Slf4j
 public class LoadBalancer {
-    private final List<HSMConnectionPool> nodePools;
+    // immutable snapshot, replaced as a whole on membership changes so selection never locks
+    private volatile List<HSMConnectionPool> nodePools;
+    // rebuilt with every snapshot, only used for CLIENT_SIDE_WEIGHTED
+    private volatile WeightedSelector weightedSelector;
+    // rebuilt with every snapshot, only used for CLIENT_SIDE_KEY_AFFINITY
+    private volatile ConsistentHashRing hashRing;
     private final AtomicInteger currentIndex = new AtomicInteger(0);
     private final LoadBalancingType loadBalancingType;
+    private final HSMConfig config;
+    private final CommandBuilder commandBuilder;
     private final ScheduledExecutorService healthChecker = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService membershipExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "HSM-Membership");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // drains wait for in-flight commands, up to nodeDrainTimeoutSeconds each, so they do not hold up adds
+    private final ExecutorService drainExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "HSM-Drain");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Object membershipLock = new Object();
+    private final Set<String> pendingNodes = ConcurrentHashMap.newKeySet();
+    // shared by all pools, null unless hsm.client.admission-control-enabled
+    private final AdmissionController admission;
+    // null unless hsm.client.audit-enabled
+    private final AuditJournal auditJournal;
+    private final HSMHealthMonitor healthMonitor;
 
     public LoadBalancer(HSMConfig config,
                         CommandBuilder commandBuilder) {
         this.loadBalancingType = config.getLoadBalancingType();
-        this.nodePools = config.getHsmNodes().stream()
-                .map(node -> new HSMConnectionPool(node, config, commandBuilder))
-                .collect(Collectors.toList());
+        this.config = config;
+        this.commandBuilder = commandBuilder;
+        this.admission = config.isAdmissionControlEnabled() ? new AdmissionController("HSM client",
+                config.getAdmissionTargetDelayMillis(), config.getAdmissionIntervalMillis(), config.getAdmissionMaxQueueDepth()) : null;
+        this.auditJournal = config.isAuditEnabled() ? openAuditJournal(config) : null;
+        log.info("Using {} load balancing!", loadBalancingType);
+        publish(config.getHsmNodes().stream()
+                .map(node -> new HSMConnectionPool(node, config, commandBuilder, admission))
+                .collect(Collectors.toUnmodifiableList()));
 
         // Validate and warm up pools at startup
         nodePools.forEach(pool -> {
@@ -40,50 +86,212 @@ public class LoadBalancer {
         if (!anyHealthy) {
             throw new HSMNoHealthyNodeException("No HSM nodes available at startup!");
         }
+        this.healthMonitor = new HSMHealthMonitor(this::getNodePools, this::isOverloaded, config.getHealthSnapshotIntervalMillis());
 
         // kept it 30 seconds because socket timeout we have kept 45.
         healthChecker.scheduleAtFixedRate(this::runHealthCheck, 30, 30, TimeUnit.SECONDS);
     }
 
     public CompletableFuture<String> executeCommand(String command, String correlationId) {
-        return tryExecute(command, correlationId, 0);
+        return executeCommand(command, correlationId, null);
+    }
+
+    /**
+     * @param routingKey key name the command uses, only consulted by CLIENT_SIDE_KEY_AFFINITY
+     */
+    public CompletableFuture<String> executeCommand(String command, String correlationId, String routingKey) {
+        return executeCommand(command, correlationId, routingKey, null);
+    }
+
+    /**
+     * @param operation recorded in the audit journal, null when unknown
+     */
+    public CompletableFuture<String> executeCommand(String command, String correlationId, String routingKey,
+                                                    HSMRequest.Operation operation) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        executeCommand(command, correlationId, routingKey, operation, COMPLETE_FUTURE, future);
+        return future;
+    }
+
+    public <C> void executeCommand(String command, String correlationId, String routingKey,
+                                   HSMCompletionHandler<? super C> handler, C context) {
+        executeCommand(command, correlationId, routingKey, null, handler, context);
     }
 
-    private CompletableFuture<String> tryExecute(String command, String correlationId, int tries) {
+    /**
+     * Runs the command with the same retries as the future variant but reports the outcome straight to
+     * {@code handler}, on the listener thread that read the response or on the calling thread when no node
+     * could take the command.
+     */
+    public <C> void executeCommand(String command, String correlationId, String routingKey, HSMRequest.Operation operation,
+                                   HSMCompletionHandler<? super C> handler, C context) {
+        start(new LoadBalancedCommand<>(this, command, correlationId, routingKey, operation, handler, context));
+    }
+
+    /**
+     * Runs {@code template} with {@code data}, routed by the template's key name and audited with its operation.
+     * The command is encoded straight from the template into the connection's send buffer.
+     */
+    public CompletableFuture<String> executeCommand(CommandTemplate template, String data, String correlationId) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        executeCommand(template, data, correlationId, COMPLETE_FUTURE, future);
+        return future;
+    }
+
+    public <C> void executeCommand(CommandTemplate template, String data, String correlationId,
+                                   HSMCompletionHandler<? super C> handler, C context) {
+        start(new LoadBalancedCommand<>(this, template, data, correlationId, handler, context));
+    }
+
+    private void start(LoadBalancedCommand<?> execution) {
+        if (auditJournal != null) {
+            execution.startMillis = System.currentTimeMillis();
+            execution.startNanos = System.nanoTime();
+        }
+        tryExecute(execution);
+    }
+
+    private void tryExecute(LoadBalancedCommand<?> execution) {
+        List<HSMConnectionPool> nodePools = this.nodePools;
+        int tries = execution.tries;
         if (tries >= nodePools.size()) {
-            CompletableFuture<String> failed = new CompletableFuture<>();
-            failed.completeExceptionally(new HSMAllNodesFailedException("All HSM nodes failed after trying " + tries + " HSMs. Last command tried " + command));
-            return failed;
+            execution.failed(new HSMAllNodesFailedException("All HSM nodes failed after trying " + tries + " HSMs. Last command tried "
+                    + WireTraceBuffer.redact(execution.getCommand())));
+            return;
         }
 
-        HSMConnectionPool pool = getNextHealthyPool();
+        // commands without a key, e.g. from the proxy, would all hash to one node, they are spread round robin
+        HSMConnectionPool pool = loadBalancingType == LoadBalancingType.CLIENT_SIDE_KEY_AFFINITY && execution.routingKey != null
+                ? hashRing.select(execution.routingKey, execution.tried, this::acceptsTraffic)
+                : selectPool(nodePools, execution.tried);
         if (pool == null) {
-            CompletableFuture<String> failed = new CompletableFuture<>();
-            failed.completeExceptionally(new HSMNoHealthyNodeException("No healthy HSM nodes available out of " + nodePools.size() + " nodes!"));
-            return failed;
+            if (anyRateLimited(nodePools)) {
+                execution.failed(new HSMOverloadedException("All healthy HSM nodes are at their rate limit"));
+                return;
+            }
+            execution.failed(new HSMNoHealthyNodeException("No healthy HSM nodes available out of " + nodePools.size() + " nodes!"));
+            return;
         }
 
         log.debug("Executing command on node {}:{} as attempt {}", pool.getNode().getIp(), pool.getNode().getPort(), tries);
+        execution.pool = pool;
+        pool.execute(execution);
+    }
 
-        return pool.executeCommand(command, correlationId)
-                .exceptionallyCompose(ex -> {
-                    log.error("Command to HSM Failed on node {}:{}", pool.getNode().getIp(), pool.getNode().getPort(), ex);
-                    Throwable cause = ex instanceof CompletionException ? ex.getCause() : ex;
-                    if (cause instanceof HSMConnectionException || cause instanceof HSMSocketTimeoutException || cause instanceof HSMUnhealthyNodeException) {
-                        log.error("Connection error encountered to HSM {}:{}. Marking it unhealthy! ", pool.getNode().getIp(), pool.getNode().getPort());
-                        pool.markUnhealthy();
-                        ;
-                    }
-                    return tryExecute(command, correlationId, tries + 1);
-                });
+    void onAttemptFailed(LoadBalancedCommand<?> execution, Throwable ex) {
+        HSMConnectionPool pool = execution.pool;
+        Throwable cause = ex instanceof CompletionException ? ex.getCause() : ex;
+        if (cause instanceof HSMOverloadedException) {
+            // a busy node is worth a try elsewhere, a client wide overload is not
+            if (isOverloaded() || execution.tries + 1 >= this.nodePools.size()) {
+                execution.failed(cause);
+                return;
+            }
+            log.debug("HSM {}:{} overloaded, trying next node", pool.getNode().getIp(), pool.getNode().getPort());
+        } else {
+            log.error("Command to HSM Failed on node {}:{}", pool.getNode().getIp(), pool.getNode().getPort(), ex);
+            if (cause instanceof HSMConnectionException || cause instanceof HSMSocketTimeoutException || cause instanceof HSMUnhealthyNodeException) {
+                log.error("Connection error encountered to HSM {}:{}. Marking it unhealthy! ", pool.getNode().getIp(), pool.getNode().getPort());
+                pool.markUnhealthy();
+            }
+        }
+        execution.tries++;
+        execution.markTried(pool);
+        tryExecute(execution);
     }
 
-    private HSMConnectionPool getNextHealthyPool() {
-        log.info("Using {} load balancing!", loadBalancingType);
+    // on the final outcome only, retries on other nodes are part of one entry
+    void audit(LoadBalancedCommand<?> execution, Throwable error) {
+        if (auditJournal != null) {
+            HSMConnectionPool pool = execution.pool;
+            auditJournal.record(execution.startMillis, System.nanoTime() - execution.startNanos, execution.operation,
+                    execution.getCorrelationId(), execution.routingKey, pool == null ? null : pool.getNodeAddress(), error);
+        }
+    }
+
+    private static AuditJournal openAuditJournal(HSMConfig config) {
+        try {
+            return new AuditJournal(Path.of(config.getAuditDirectory()), config.getAuditBufferCapacity(),
+                    Math.toIntExact(config.getAuditSegmentSizeMb() * 1024L * 1024), config.getAuditMaxSegments(), config.getAuditFlushIntervalMillis());
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to open HSM audit journal in " + config.getAuditDirectory(), e);
+        }
+    }
+
+    /**
+     * The audit journal, null when hsm.client.audit-enabled is off.
+     */
+    public AuditJournal getAuditJournal() {
+        return auditJournal;
+    }
+
+    private static final HSMCompletionHandler<CompletableFuture<String>> COMPLETE_FUTURE = new HSMCompletionHandler<>() {
+        @Override
+        public void completed(String result, CompletableFuture<String> future) {
+            future.complete(result);
+        }
+
+        @Override
+        public void failed(Throwable error, CompletableFuture<String> future) {
+            future.completeExceptionally(error);
+        }
+    };
+
+    /**
+     * Client wide admission controller, null when admission control is disabled. {@code isOverloaded()} is
+     * the signal for callers to degrade before requests start failing.
+     */
+    public AdmissionController getAdmission() {
+        return admission;
+    }
+
+    public boolean isOverloaded() {
+        return admission != null && admission.isOverloaded();
+    }
+
+    /**
+     * Commands that can be sent right now without waiting for a connection, across all healthy nodes.
+     */
+    public int getAvailableCapacity() {
+        int free = 0;
+        for (HSMConnectionPool pool : nodePools) {
+            if (pool.isHealthy()) {
+                free += pool.getFreeSlots();
+            }
+        }
+        return free;
+    }
+
+    HSMConnectionPool getNextHealthyPool() {
+        return selectPool(nodePools, null);
+    }
+
+    /**
+     * @param tried nodes the command already failed on, never selected again; null on the first attempt
+     */
+    private HSMConnectionPool selectPool(List<HSMConnectionPool> nodePools, Set<HSMConnectionPool> tried) {
+        if (loadBalancingType == LoadBalancingType.CLIENT_SIDE_WEIGHTED) {
+            return weightedSelector.select(candidate -> candidate.isHealthy() && notTried(candidate, tried), this::acceptsTraffic,
+                    HSMConnectionPool::isSaturated);
+        }
         if (loadBalancingType == LoadBalancingType.NETWORK_LEVEL || loadBalancingType == LoadBalancingType.CLIENT_SIDE_FAILOVER) {
-            return nodePools.stream().filter(HSMConnectionPool::isHealthy).findFirst().orElse(null);
+            // a recovering primary takes traffic back gradually, the rest stays on the next healthy node
+            HSMConnectionPool firstHealthy = null;
+            for (HSMConnectionPool candidate : nodePools) {
+                if (!candidate.isHealthy() || !notTried(candidate, tried)) {
+                    continue;
+                }
+                if (acceptsTraffic(candidate)) {
+                    return candidate;
+                }
+                if (firstHealthy == null) {
+                    firstHealthy = candidate;
+                }
+            }
+            return firstHealthy;
         }
         int size = nodePools.size();
+        HSMConnectionPool rampingFallback = null;
         for (int i = 0; i < size; i++) {
             int index = currentIndex.getAndIncrement() % size;
             if (currentIndex.get() >= Integer.MAX_VALUE - 100000) {
@@ -91,8 +299,155 @@ public class LoadBalancer {
                 index = 0;
             }
             HSMConnectionPool candidate = nodePools.get(index);
-            if (candidate.isHealthy()) {
-                return candidate;
+            if (candidate.isHealthy() && notTried(candidate, tried)) {
+                // a node still ramping up only takes its current share, the rest moves on to the next node
+                if (acceptsTraffic(candidate)) {
+                    return candidate;
+                }
+                if (rampingFallback == null) {
+                    rampingFallback = candidate;
+                }
+            }
+        }
+        return rampingFallback;
+    }
+
+    private static boolean notTried(HSMConnectionPool candidate, Set<HSMConnectionPool> tried) {
+        return tried == null || !tried.contains(candidate);
+    }
+
+    private boolean acceptsTraffic(HSMConnectionPool candidate) {
+        // a node at its rate limit is passed over, it is only a fallback when no other node can take the command
+        if (!candidate.hasRateCapacity()) {
+            return false;
+        }
+        double weight = candidate.getTrafficWeight();
+        return weight >= 1.0 || ThreadLocalRandom.current().nextDouble() < weight;
+    }
+
+    private static boolean anyRateLimited(List<HSMConnectionPool> nodePools) {
+        for (HSMConnectionPool candidate : nodePools) {
+            if (candidate.isHealthy() && !candidate.hasRateCapacity()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds a node at runtime. The pool is created and warmed up in the background and only then published
+     * to selection, after which its traffic share ramps up through slow start.
+     */
+    public CompletableFuture<Void> addNode(HSMNode node) {
+        String address = node.address();
+        if (findPool(address) != null || !pendingNodes.add(address)) {
+            log.info("HSM {} is already a member, ignoring add", address);
+            return CompletableFuture.completedFuture(null);
+        }
+        return CompletableFuture.runAsync(() -> {
+            HSMConnectionPool pool = new HSMConnectionPool(node, config, commandBuilder, admission);
+            try {
+                pool.warmupPoolAndMarkHealthyNodes();
+            } catch (Exception e) {
+                pool.shutdown();
+                throw new HSMConnectionException("Failed to warm up new HSM node " + address, e);
+            }
+            pool.startSlowStart();
+            synchronized (membershipLock) {
+                List<HSMConnectionPool> updated = new ArrayList<>(nodePools);
+                updated.add(pool);
+                publish(List.copyOf(updated));
+            }
+            pool.printPoolStats();
+            log.info("HSM {} added, {} nodes in rotation", address, nodePools.size());
+        }, membershipExecutor).whenComplete((ignored, ex) -> pendingNodes.remove(address));
+    }
+
+    /**
+     * Stops sending new commands to a node, waits up to {@code nodeDrainTimeoutSeconds} for its in-flight
+     * commands to finish and then closes its connections.
+     */
+    public CompletableFuture<Void> drainNode(String ip, int port) {
+        HSMConnectionPool pool = detach(ip + ":" + port);
+        if (pool == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        long timeoutMs = TimeUnit.SECONDS.toMillis(config.getNodeDrainTimeoutSeconds());
+        return CompletableFuture.runAsync(() -> {
+            pool.drain();
+            log.info("Draining HSM {}:{} with {} commands in flight", ip, port, pool.getInFlight());
+            if (!pool.awaitIdle(timeoutMs)) {
+                log.warn("HSM {}:{} still had {} commands in flight after {} ms, closing anyway", ip, port, pool.getInFlight(), timeoutMs);
+            }
+            pool.shutdown();
+            log.info("HSM {}:{} drained and removed", ip, port);
+        }, drainExecutor);
+    }
+
+    /**
+     * Removes a node immediately, failing whatever is still in flight on it.
+     */
+    public void removeNode(String ip, int port) {
+        HSMConnectionPool pool = detach(ip + ":" + port);
+        if (pool != null) {
+            pool.shutdown();
+            log.info("HSM {}:{} removed", ip, port);
+        }
+    }
+
+    /**
+     * Reconciles membership with a refreshed node list: new nodes are added, then nodes no longer listed are
+     * drained, so replacing every node never leaves the client without one. Called by {@link NodeListRefresher}.
+     */
+    public CompletableFuture<Void> updateNodes(List<HSMNode> nodes) {
+        Set<String> wanted = new HashSet<>();
+        List<CompletableFuture<Void>> adds = new ArrayList<>();
+        for (HSMNode node : nodes) {
+            wanted.add(node.address());
+            if (findPool(node.address()) == null) {
+                adds.add(addNode(node));
+            }
+        }
+        CompletableFuture<Void> added = CompletableFuture.allOf(adds.toArray(new CompletableFuture[0]));
+        // drain even if an add failed, the node was removed from the configuration either way
+        CompletableFuture<Void> drained = added.handle((ignored, ex) -> null).thenCompose(ignored -> {
+            List<CompletableFuture<Void>> drains = new ArrayList<>();
+            for (HSMConnectionPool pool : nodePools) {
+                if (!wanted.contains(pool.getNode().address())) {
+                    drains.add(drainNode(pool.getNode().getIp(), pool.getNode().getPort()));
+                }
+            }
+            return CompletableFuture.allOf(drains.toArray(new CompletableFuture[0]));
+        });
+        return drained.thenCombine(added, (ignored, alsoIgnored) -> null);
+    }
+
+    private HSMConnectionPool detach(String address) {
+        synchronized (membershipLock) {
+            HSMConnectionPool pool = findPool(address);
+            if (pool == null) {
+                log.info("HSM {} is not a member, nothing to remove", address);
+                return null;
+            }
+            if (nodePools.size() == 1) {
+                throw new IllegalStateException("Cannot remove " + address + ", it is the last HSM node");
+            }
+            publish(nodePools.stream().filter(candidate -> candidate != pool).collect(Collectors.toUnmodifiableList()));
+            return pool;
+        }
+    }
+
+    // selectors first, so a reader that sees the new list also sees the matching selectors
+    private void publish(List<HSMConnectionPool> pools) {
+        weightedSelector = new WeightedSelector(pools, config.getLocalZone());
+        hashRing = new ConsistentHashRing(pools, config.getKeyAffinityLoadFactor());
+        nodePools = pools;
+    }
+
+    private HSMConnectionPool findPool(String address) {
+        for (HSMConnectionPool pool : nodePools) {
+            if (pool.getNode().address().equals(address)) {
+                return pool;
             }
         }
         return null;
@@ -108,6 +463,7 @@ public class LoadBalancer {
                 boolean isHealthy = hsmConnectionPool.performHealthCheckOnAllSockets();
                 if (isHealthy && !hsmConnectionPool.isHealthy()) {
                     hsmConnectionPool.markHealthy();
+                    hsmConnectionPool.startSlowStart();
                     log.info("HSM {}:{} recovered and marked healthy", hsmConnectionPool.getNode().getIp(), hsmConnectionPool.getNode().getPort());
                 }
                 hsmConnectionPool.printPoolStats();
@@ -124,14 +480,24 @@ public class LoadBalancer {
     private void runHealthCheck() {
         for (HSMConnectionPool pool : nodePools) {
             AsyncSocketConnection testSocket = null;
+            HealthCheckEvent healthCheckEvent = HealthCheckEvent.beginIfEnabled(
+                    pool.getNode().getIp() + ":" + pool.getNode().getPort(), pool.isHealthy());
             try {
                 testSocket = pool.getInternalConnectionPool().borrowObject();
                 CompletableFuture<String> ping = testSocket.pingHsm();
                 String resp = ping.get(1, TimeUnit.SECONDS);
+                HealthCheckEvent.commit(healthCheckEvent, null);
+                pool.recordPingSuccess();
                 pool.printPoolStats();
-                pool.markHealthy();
+                if (!pool.isHealthy()) {
+                    // its connections were just cleared, ramp it back up instead of sending it a full share at once
+                    pool.markHealthy();
+                    pool.startSlowStart();
+                    log.info("HSM {}:{} recovered, slow start for {}s", pool.getNode().getIp(), pool.getNode().getPort(), config.getSlowStartWindowSeconds());
+                }
                 log.info("HSM {}:{} is up", pool.getNode().getIp(), pool.getNode().getPort());
             } catch (Exception e) {
+                HealthCheckEvent.commit(healthCheckEvent, e);
                 pool.markUnhealthy();
                 log.warn("HSM {}:{} ping failed", pool.getNode().getIp(), pool.getNode().getPort());
                 try {
@@ -147,11 +513,69 @@ public class LoadBalancer {
                 }
             }
         }
+        // so probes see a node go down or recover without waiting for the next refresh
+        healthMonitor.refresh();
+    }
+
+    /**
+     * Cached state of every node, see {@link HSMHealthMonitor}. Never blocks and never touches the network.
+     */
+    public HSMHealthSnapshot getHealth() {
+        return healthMonitor.current();
+    }
+
+    public List<HSMConnectionPool> getNodePools() {
+        return nodePools;
+    }
+
+    public String dumpWireTrace() {
+        StringBuilder sb = new StringBuilder();
+        for (HSMConnectionPool pool : nodePools) {
+            for (String trace : pool.dumpWireTrace()) {
+                sb.append(trace).append(System.lineSeparator());
+            }
+        }
+        return sb.toString();
     }
 
+    /**
+     * Commands in flight or waiting for a connection, across all nodes.
+     */
+    public int getInFlight() {
+        int inFlight = 0;
+        for (HSMConnectionPool pool : nodePools) {
+            inFlight += pool.getInFlight();
+        }
+        return inFlight;
+    }
+
+    /**
+     * Stops taking commands, waits up to {@code shutdownDrainTimeoutSeconds} for those in flight to finish and
+     * then closes all connections, failing whatever is still pending.
+     */
     public void shutdown() {
 
         healthChecker.shutdown();
-        nodePools.forEach(HSMConnectionPool::shutdown);
+        membershipExecutor.shutdownNow();
+        drainExecutor.shutdownNow();
+        List<HSMConnectionPool> pools = nodePools;
+        pools.forEach(HSMConnectionPool::drain);
+        // the last snapshot stays, every node in it draining
+        healthMonitor.refresh();
+        healthMonitor.close();
+        long timeoutMs = TimeUnit.SECONDS.toMillis(config.getShutdownDrainTimeoutSeconds());
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        log.info("Draining {} commands in flight before shutdown", getInFlight());
+        for (HSMConnectionPool pool : pools) {
+            long remainingMs = Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+            if (!pool.awaitIdle(remainingMs)) {
+                log.warn("HSM {}:{} still had {} commands in flight after {} ms, closing anyway",
+                        pool.getNode().getIp(), pool.getNode().getPort(), pool.getInFlight(), timeoutMs);
+            }
+        }
+        pools.forEach(HSMConnectionPool::shutdown);
+        if (auditJournal != null) {
+            auditJournal.close();
+        }
     }
 }
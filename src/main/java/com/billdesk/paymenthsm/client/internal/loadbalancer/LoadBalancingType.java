@@ -1,5 +1,5 @@
 package com.billdesk.paymenthsm.client.internal.loadbalancer;
 
 public enum LoadBalancingType {
-    CLIENT_SIDE_ROUND_ROBIN,CLIENT_SIDE_FAILOVER, NETWORK_LEVEL
+    CLIENT_SIDE_ROUND_ROBIN,CLIENT_SIDE_FAILOVER, NETWORK_LEVEL, CLIENT_SIDE_WEIGHTED, CLIENT_SIDE_KEY_AFFINITY
 }
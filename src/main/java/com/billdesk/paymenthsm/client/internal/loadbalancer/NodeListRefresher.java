@@ -0,0 +1,60 @@
+package com.billdesk.paymenthsm.client.internal.loadbalancer;
+
+import com.billdesk.paymenthsm.client.internal.config.HSMConfig;
+import com.billdesk.paymenthsm.client.internal.model.HSMNode;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.cloud.context.environment.EnvironmentChangeEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.core.env.Environment;
+
+import java.util.List;
+
+/**
+ * Applies a refreshed {@code hsm.client.hsm-nodes} to the running {@link LoadBalancer}, e.g. after
+ * {@code /actuator/refresh} or a config server push. The node list is bound again from the environment and
+ * reconciled with {@link LoadBalancer#updateNodes(List)}: new nodes are warmed up and added, removed ones drained.
+ */
+@Slf4j
+public class NodeListRefresher implements ApplicationListener<EnvironmentChangeEvent> {
+
+    static final String NODES_PROPERTY = "hsm.client.hsm-nodes";
+
+    private final LoadBalancer loadBalancer;
+    private final HSMConfig config;
+    private final Environment environment;
+
+    public NodeListRefresher(LoadBalancer loadBalancer, HSMConfig config, Environment environment) {
+        this.loadBalancer = loadBalancer;
+        this.config = config;
+        this.environment = environment;
+    }
+
+    @Override
+    public void onApplicationEvent(EnvironmentChangeEvent event) {
+        // NETWORK_LEVEL has the vip as its only node
+        if (config.getLoadBalancingType() == LoadBalancingType.NETWORK_LEVEL
+                || event.getKeys().stream().noneMatch(key -> key.startsWith(NODES_PROPERTY))) {
+            return;
+        }
+        List<HSMNode> nodes = Binder.get(environment).bind(NODES_PROPERTY, Bindable.listOf(HSMNode.class)).orElse(List.of());
+        for (HSMNode node : nodes) {
+            if (node.getIp() == null || node.getIp().isBlank() || node.getPort() <= 0 || node.getPort() > 65535 || node.getWeight() < 1
+                    || node.getWeight() > HSMNode.MAX_WEIGHT) {
+                log.error("Ignoring refreshed HSM node list, invalid node {}:{}", node.getIp(), node.getPort());
+                return;
+            }
+        }
+        if (nodes.isEmpty()) {
+            log.error("Ignoring refreshed HSM node list, it is empty");
+            return;
+        }
+        log.info("HSM node list refreshed, reconciling with {} nodes", nodes.size());
+        loadBalancer.updateNodes(nodes).whenComplete((ignored, ex) -> {
+            if (ex != null) {
+                log.error("Failed to apply refreshed HSM node list", ex);
+            }
+        });
+    }
+}
@@ -0,0 +1,103 @@
+package com.billdesk.paymenthsm.client.internal.loadbalancer;
+
+import com.billdesk.paymenthsm.client.internal.connection.HSMConnectionPool;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Zone and weight aware selection for {@link LoadBalancingType#CLIENT_SIDE_WEIGHTED}.
+ * <p>
+ * Nodes are split into priority groups: same zone before other zones, and within that lower tier first.
+ * Each group is expanded once into its smooth weighted round robin sequence (the nginx algorithm), so at
+ * request time selection is an atomic increment and an array walk, no locking. A group is only skipped in
+ * favour of the next one when none of its nodes is healthy and unsaturated.
+ * <p>
+ * Like the other strategies, a node that is healthy but ramping up or at its rate limit is the last resort:
+ * when no node accepts traffic, the first such node is returned rather than none.
+ */
+class WeightedSelector {
+
+    private final List<HSMConnectionPool[]> groups;
+    private final AtomicInteger position = new AtomicInteger();
+
+    WeightedSelector(List<HSMConnectionPool> pools, String localZone) {
+        Map<Long, List<HSMConnectionPool>> byPriority = new TreeMap<>();
+        for (HSMConnectionPool pool : pools) {
+            boolean remote = localZone != null && !Objects.equals(localZone, pool.getNode().getZone());
+            long priority = ((remote ? 1L : 0L) << 32) | (pool.getNode().getTier() & 0xFFFFFFFFL);
+            byPriority.computeIfAbsent(priority, key -> new ArrayList<>()).add(pool);
+        }
+        this.groups = new ArrayList<>();
+        byPriority.values().forEach(group -> groups.add(smoothWeightedSequence(group)));
+    }
+
+    /**
+     * @param usable          healthy and not tried yet
+     * @param acceptsTraffic  takes its share now, false while ramping up or rate limited
+     */
+    HSMConnectionPool select(Predicate<HSMConnectionPool> usable, Predicate<HSMConnectionPool> acceptsTraffic,
+                             Predicate<HSMConnectionPool> saturated) {
+        int start = position.getAndIncrement() & Integer.MAX_VALUE;
+        HSMConnectionPool saturatedFallback = null;
+        HSMConnectionPool rampingFallback = null;
+        for (HSMConnectionPool[] sequence : groups) {
+            for (int i = 0; i < sequence.length; i++) {
+                HSMConnectionPool candidate = sequence[(start + i) % sequence.length];
+                if (!usable.test(candidate)) {
+                    continue;
+                }
+                if (!acceptsTraffic.test(candidate)) {
+                    if (rampingFallback == null) {
+                        rampingFallback = candidate;
+                    }
+                    continue;
+                }
+                if (!saturated.test(candidate)) {
+                    return candidate;
+                }
+                if (saturatedFallback == null) {
+                    saturatedFallback = candidate;
+                }
+            }
+        }
+        return saturatedFallback != null ? saturatedFallback : rampingFallback;
+    }
+
+    static HSMConnectionPool[] smoothWeightedSequence(List<HSMConnectionPool> pools) {
+        List<HSMConnectionPool> ordered = new ArrayList<>(pools);
+        ordered.sort(Comparator.comparing(pool -> pool.getNode().address()));
+        int[] weights = new int[ordered.size()];
+        int gcd = 0;
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = Math.max(1, ordered.get(i).getNode().getWeight());
+            gcd = BigInteger.valueOf(gcd).gcd(BigInteger.valueOf(weights[i])).intValue();
+        }
+        int total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] /= gcd;
+            total += weights[i];
+        }
+        HSMConnectionPool[] sequence = new HSMConnectionPool[total];
+        int[] current = new int[weights.length];
+        for (int step = 0; step < total; step++) {
+            int best = 0;
+            for (int i = 0; i < weights.length; i++) {
+                current[i] += weights[i];
+                if (current[i] > current[best]) {
+                    best = i;
+                }
+            }
+            current[best] -= total;
+            sequence[step] = ordered.get(best);
+        }
+        return sequence;
+    }
+}
@@ -1,11 +1,36 @@
 package com.billdesk.paymenthsm.client.internal.model;
 
+import jakarta.validation.constraints.Max;
+import jakarta.validation.constraints.Min;
 import lombok.Getter;
 import lombok.Setter;
 
 @Getter
 @Setter
 public class HSMNode {
+    // CLIENT_SIDE_WEIGHTED expands every group into a sequence as long as its summed weights
+    public static final int MAX_WEIGHT = 1000;
+
     private String ip;
     private int port;
+    // relative share of traffic within its zone and tier for CLIENT_SIDE_WEIGHTED
+    @Min(value = 1, message = "Node weight must be at least 1")
+    @Max(value = MAX_WEIGHT, message = "Node weight cannot exceed 1000")
+    private int weight = 1;
+    // data center / availability zone, nodes in HSMConfig.localZone are preferred
+    private String zone;
+    // priority group within a zone, lower tiers are used first and higher ones only when those are unhealthy or saturated
+    @Min(value = 0, message = "Node tier cannot be negative")
+    private int tier;
+    // commands per second this client instance may send to the HSM, its licensed TPS divided by the number of
+    // replicas; commands beyond it go to other nodes, 0 is unlimited
+    @Min(value = 0, message = "Node max TPS cannot be negative")
+    private int maxTps;
+    // commands that may be sent at once after an idle period, 0 allows a tenth of a second of maxTps
+    @Min(value = 0, message = "Node burst cannot be negative")
+    private int burst;
+
+    public String address() {
+        return ip + ":" + port;
+    }
 }
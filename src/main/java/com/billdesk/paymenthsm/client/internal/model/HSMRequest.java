@@ -0,0 +1,39 @@
+package com.billdesk.paymenthsm.client.internal.model;
+
+import com.billdesk.paymenthsm.client.internal.enums.ACS_BANK;
+import lombok.Getter;
+
+/**
+ * One item of a request stream passed to {@code HSMClient.stream}.
+ */
+@Getter
+public final class HSMRequest {
+
+    public enum Operation {
+        VISA_CAVV, MASTER_CAVV, HMAC
+    }
+
+    private final Operation operation;
+    private final ACS_BANK bank;
+    private final String keyName;
+    private final String data;
+
+    private HSMRequest(Operation operation, ACS_BANK bank, String keyName, String data) {
+        this.operation = operation;
+        this.bank = bank;
+        this.keyName = keyName;
+        this.data = data;
+    }
+
+    public static HSMRequest visaCAVV(ACS_BANK bank, String data) {
+        return new HSMRequest(Operation.VISA_CAVV, bank, null, data);
+    }
+
+    public static HSMRequest masterCAVV(ACS_BANK bank, String data) {
+        return new HSMRequest(Operation.MASTER_CAVV, bank, null, data);
+    }
+
+    public static HSMRequest hmac(String keyName, String data) {
+        return new HSMRequest(Operation.HMAC, null, keyName, data);
+    }
+}
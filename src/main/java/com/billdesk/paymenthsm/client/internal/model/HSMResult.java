@@ -0,0 +1,25 @@
+package com.billdesk.paymenthsm.client.internal.model;
+
+import lombok.Getter;
+
+/**
+ * Outcome of one {@link HSMRequest} of a stream. A failed request is delivered as a result with an error
+ * rather than terminating the stream.
+ */
+@Getter
+public final class HSMResult {
+
+    private final HSMRequest request;
+    private final String value;
+    private final Throwable error;
+
+    public HSMResult(HSMRequest request, String value, Throwable error) {
+        this.request = request;
+        this.value = value;
+        this.error = error;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+}
@@ -1,7 +1,10 @@
 package com.billdesk.paymenthsm.client.internal.provider.utimaco;
 
 import com.billdesk.paymenthsm.client.internal.core.CommandBuilder;
+import com.billdesk.paymenthsm.client.internal.core.CommandTemplate;
+import com.billdesk.paymenthsm.client.internal.core.HSMResultView;
 import com.billdesk.paymenthsm.client.internal.exception.HSMException;
+import com.billdesk.paymenthsm.client.internal.exception.HSMExecutionException;
 import com.billdesk.paymenthsm.client.internal.exception.HSMProtocolException;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
@@ -15,6 +18,8 @@ public class UtimacoCommandBuilder implements CommandBuilder {
 
     private static final Pattern RESPONSE_PATTERN = Pattern.compile("<([A-Z0-9]+)#([^#]+)#.*?(?:\\^([^#]+)#)?>");
     private static final Pattern CONTEXT_TAG_PATTERN = Pattern.compile("#\\^([^#]+)#>$");
+    // the context tag goes before the closing #>, as embedContextTag puts it
+    private static final String TAG_MARKER = "#^";
 
     @Override
     public String buildVisaCAVVCommand(String keyBlock, String data) {
@@ -31,16 +36,33 @@ public class UtimacoCommandBuilder implements CommandBuilder {
         return String.format("<39B#%s##2#%s#>", keyBlock, data);
     }
 
+    @Override
+    public CommandTemplate visaCAVVTemplate(String keyBlock) {
+        return new CommandTemplate("<5D#3#" + keyBlock + "##", "#>", TAG_MARKER);
+    }
+
+    @Override
+    public CommandTemplate masterCAVVTemplate(String keyBlock) {
+        return new CommandTemplate("<5D#3#" + keyBlock + "##", "#>", TAG_MARKER);
+    }
+
+    @Override
+    public CommandTemplate hmacTemplate(String keyBlock) {
+        return new CommandTemplate("<39B#" + keyBlock + "##2#", "#>", TAG_MARKER);
+    }
+
     @Override
     public String parseResponse(String rawResponse) throws HSMException {
         Matcher matcher = RESPONSE_PATTERN.matcher(rawResponse.trim());
         if (matcher.find()) {
             String commandCode = matcher.group(1);
             String firstField = matcher.group(2);
-            String correlationId = matcher.group(3);
-            log.info("Parsing for correlation id -> {}", correlationId);
+            if (log.isTraceEnabled()) {
+                log.trace("Parsing response for correlation id -> {}", matcher.group(3));
+            }
 
             return switch (commandCode) {
+                case "ER" -> throw new HSMExecutionException("HSM returned error " + firstField);
                 case "6D" -> firstField; // CAVV
                 case "49B" -> firstField; // HMAC
                 case "00" -> firstField; // ECHO? PING
@@ -56,9 +78,83 @@ public class UtimacoCommandBuilder implements CommandBuilder {
         return matcher.find() ? matcher.group(1) : null;
     }
 
+    @Override
+    public String extractContextTag(char[] frame, int from, int to) {
+        // #^tag#> at the end of the frame
+        if (to - from < 4 || frame[to - 1] != '>' || frame[to - 2] != '#') {
+            return null;
+        }
+        int tagEnd = to - 2;
+        int hash = lastIndexOf(frame, '#', from, tagEnd);
+        if (hash < 0 || hash + 2 >= tagEnd || frame[hash + 1] != '^') {
+            return null;
+        }
+        return new String(frame, hash + 2, tagEnd - hash - 2);
+    }
+
+    @Override
+    public String parseResponse(char[] frame, int from, int to) throws HSMException {
+        int start = resultStart(frame, from, to);
+        return new String(frame, start, indexOf(frame, '#', start, to) - start);
+    }
+
+    @Override
+    public void parseResponse(char[] frame, int from, int to, HSMResultView into) throws HSMException {
+        int start = resultStart(frame, from, to);
+        into.wrap(frame, start, indexOf(frame, '#', start, to) - start);
+    }
+
+    // first field of a reply that is not an <ER#code#...> error
+    private static int resultStart(char[] frame, int from, int to) {
+        int start = fieldStart(frame, from, to);
+        if (start == from + 4 && frame[from + 1] == 'E' && frame[from + 2] == 'R') {
+            throw new HSMExecutionException("HSM returned error " + new String(frame, start, indexOf(frame, '#', start, to) - start));
+        }
+        return start;
+    }
+
+    // start of the first field of <CODE#field#...>, the same field RESPONSE_PATTERN captures
+    private static int fieldStart(char[] frame, int from, int to) {
+        if (from < to && frame[from] == '<') {
+            int i = from + 1;
+            while (i < to && (frame[i] >= 'A' && frame[i] <= 'Z' || frame[i] >= '0' && frame[i] <= '9')) {
+                i++;
+            }
+            if (i > from + 1 && i < to && frame[i] == '#') {
+                int end = indexOf(frame, '#', i + 1, to);
+                if (end > i + 1) {
+                    return i + 1;
+                }
+            }
+        }
+        throw new HSMProtocolException("Failed to parse Utimaco response");
+    }
+
+    private static int indexOf(char[] chars, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (chars[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lastIndexOf(char[] chars, char c, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (chars[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     @Override
     public String embedContextTag(String command, String contextTag) {
-        return command.replaceFirst("#>", "#^" + contextTag + "#>");
+        int end = command.indexOf("#>");
+        if (end < 0) {
+            return command;
+        }
+        return command.substring(0, end) + "#^" + contextTag + command.substring(end);
     }
 
     @Override
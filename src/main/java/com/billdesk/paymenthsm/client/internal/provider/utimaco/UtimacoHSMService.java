@@ -3,6 +3,7 @@ package com.billdesk.paymenthsm.client.internal.provider.utimaco;
 import com.billdesk.paymenthsm.client.internal.config.HSMConfig;
 import com.billdesk.paymenthsm.client.internal.core.AbstractHSMService;
 import com.billdesk.paymenthsm.client.internal.core.CommandBuilder;
+import com.billdesk.paymenthsm.client.internal.core.KeyBlockRegistry;
 import com.billdesk.paymenthsm.client.internal.enums.Provider;
 import com.billdesk.paymenthsm.client.internal.loadbalancer.LoadBalancer;
 import lombok.extern.slf4j.Slf4j;
@@ -16,7 +17,12 @@ public class UtimacoHSMService extends AbstractHSMService {
 
     public UtimacoHSMService(HSMConfig config, LoadBalancer loadBalancer, CommandBuilder commandBuilder, Map<String, String> keyBlocks) {
         super(config, loadBalancer, commandBuilder, keyBlocks);
-        log.info(keyBlocks.toString());
+        log.info("Loaded key blocks for keys {}", keyBlocks.keySet());
+    }
+
+    public UtimacoHSMService(HSMConfig config, LoadBalancer loadBalancer, CommandBuilder commandBuilder, KeyBlockRegistry keyBlockRegistry) {
+        super(config, loadBalancer, commandBuilder, keyBlockRegistry);
+        log.info("Loaded key blocks version {} for keys {}", keyBlockRegistry.getVersion(), keyBlockRegistry.getKeyNames());
     }
 
     @Override
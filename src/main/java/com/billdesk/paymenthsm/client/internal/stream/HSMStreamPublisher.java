@@ -0,0 +1,39 @@
+package com.billdesk.paymenthsm.client.internal.stream;
+
+import com.billdesk.paymenthsm.client.internal.model.HSMRequest;
+import com.billdesk.paymenthsm.client.internal.model.HSMResult;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+
+/**
+ * Publisher of the results of a request stream. Every subscriber gets its own subscription to the request
+ * publisher, see {@link HSMStreamSubscription} for how demand is bounded.
+ */
+public class HSMStreamPublisher implements Flow.Publisher<HSMResult> {
+
+    private final Flow.Publisher<HSMRequest> requests;
+    private final Function<HSMRequest, CompletableFuture<String>> executor;
+    private final IntSupplier freeCapacity;
+    private final boolean ordered;
+
+    /**
+     * @param executor     sends one request to the HSM
+     * @param freeCapacity in-flight slots currently free across healthy nodes
+     * @param ordered      emit results in request order rather than completion order
+     */
+    public HSMStreamPublisher(Flow.Publisher<HSMRequest> requests, Function<HSMRequest, CompletableFuture<String>> executor,
+                              IntSupplier freeCapacity, boolean ordered) {
+        this.requests = requests;
+        this.executor = executor;
+        this.freeCapacity = freeCapacity;
+        this.ordered = ordered;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super HSMResult> subscriber) {
+        requests.subscribe(new HSMStreamSubscription(subscriber, executor, freeCapacity, ordered));
+    }
+}
@@ -0,0 +1,211 @@
+package com.billdesk.paymenthsm.client.internal.stream;
+
+import com.billdesk.paymenthsm.client.internal.model.HSMRequest;
+import com.billdesk.paymenthsm.client.internal.model.HSMResult;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+
+/**
+ * Subscribes to the request stream on behalf of one result subscriber. Requests are only pulled from
+ * upstream while both the downstream has demand for their results and the HSM nodes have free in-flight
+ * slots, so a fast publisher cannot flood the pools. One request is always allowed when none of this
+ * stream's requests are in flight, otherwise a stream sharing busy pools with other callers could stall.
+ * <p>
+ * All signals to the downstream and to upstream demand go through {@link #drain()}, which is serialized
+ * with a work-in-progress counter, so it may be called from any thread.
+ */
+final class HSMStreamSubscription implements Flow.Subscriber<HSMRequest>, Flow.Subscription {
+
+    private static final class Pending {
+        private volatile HSMResult result;
+    }
+
+    private final Flow.Subscriber<? super HSMResult> downstream;
+    private final Function<HSMRequest, CompletableFuture<String>> executor;
+    private final IntSupplier freeCapacity;
+    private final boolean ordered;
+
+    // ordered mode: every request in arrival order, emitted once the head has its result
+    private final Queue<Pending> pending = new ConcurrentLinkedQueue<>();
+    // unordered mode: results in completion order
+    private final Queue<HSMResult> completed = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicLong requested = new AtomicLong();
+    // requested from upstream but not received yet
+    private final AtomicInteger awaitingUpstream = new AtomicInteger();
+    // received from upstream but result not emitted yet
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private volatile Flow.Subscription upstream;
+    private volatile boolean upstreamDone;
+    private volatile Throwable upstreamError;
+    private volatile boolean cancelled;
+    // a non-positive request, signalled to the downstream from drain like every other signal
+    private volatile Throwable invalidRequest;
+    // only touched inside drain
+    private boolean terminated;
+    private long emitted;
+
+    HSMStreamSubscription(Flow.Subscriber<? super HSMResult> downstream, Function<HSMRequest, CompletableFuture<String>> executor,
+                          IntSupplier freeCapacity, boolean ordered) {
+        this.downstream = downstream;
+        this.executor = executor;
+        this.freeCapacity = freeCapacity;
+        this.ordered = ordered;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (upstream != null) {
+            subscription.cancel();
+            return;
+        }
+        upstream = subscription;
+        downstream.onSubscribe(this);
+    }
+
+    @Override
+    public void onNext(HSMRequest request) {
+        awaitingUpstream.decrementAndGet();
+        inFlight.incrementAndGet();
+        Pending entry = new Pending();
+        if (ordered) {
+            pending.add(entry);
+        }
+        CompletableFuture<String> future;
+        try {
+            future = executor.apply(request);
+        } catch (RuntimeException e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+        future.whenComplete((value, error) -> {
+            HSMResult result = new HSMResult(request, value, unwrap(error));
+            if (ordered) {
+                entry.result = result;
+            } else {
+                completed.add(result);
+            }
+            drain();
+        });
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        upstreamError = throwable;
+        upstreamDone = true;
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        upstreamDone = true;
+        drain();
+    }
+
+    @Override
+    public void request(long n) {
+        if (n <= 0) {
+            if (invalidRequest == null) {
+                invalidRequest = new IllegalArgumentException("Requested " + n + " results, must be positive");
+            }
+            cancel();
+            return;
+        }
+        requested.accumulateAndGet(n, (current, added) -> current + added < 0 ? Long.MAX_VALUE : current + added);
+        drain();
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+        upstream.cancel();
+        drain();
+    }
+
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        while (true) {
+            if (invalidRequest != null && !terminated) {
+                terminated = true;
+                pending.clear();
+                completed.clear();
+                downstream.onError(invalidRequest);
+            } else if (cancelled) {
+                pending.clear();
+                completed.clear();
+            } else if (!terminated) {
+                emit();
+                requestMore();
+            }
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                return;
+            }
+        }
+    }
+
+    private void emit() {
+        while (emitted < requested.get() && !cancelled) {
+            HSMResult next = poll();
+            if (next == null) {
+                break;
+            }
+            inFlight.decrementAndGet();
+            emitted++;
+            downstream.onNext(next);
+        }
+        if (upstreamDone && inFlight.get() == 0 && !cancelled) {
+            terminated = true;
+            if (upstreamError != null) {
+                downstream.onError(upstreamError);
+            } else {
+                downstream.onComplete();
+            }
+        }
+    }
+
+    private void requestMore() {
+        if (terminated || upstreamDone || cancelled) {
+            return;
+        }
+        int awaiting = awaitingUpstream.get();
+        int active = inFlight.get();
+        long demand = requested.get() - emitted - active - awaiting;
+        long free = (long) freeCapacity.getAsInt() - awaiting;
+        if (active == 0 && awaiting == 0) {
+            free = Math.max(free, 1);
+        }
+        long want = Math.min(demand, free);
+        if (want > 0) {
+            awaitingUpstream.addAndGet((int) want);
+            upstream.request(want);
+        }
+    }
+
+    private HSMResult poll() {
+        if (!ordered) {
+            return completed.poll();
+        }
+        Pending head = pending.peek();
+        if (head == null || head.result == null) {
+            return null;
+        }
+        pending.poll();
+        return head.result;
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+}
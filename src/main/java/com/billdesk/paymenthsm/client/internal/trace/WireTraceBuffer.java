@@ -0,0 +1,169 @@
+package com.billdesk.paymenthsm.client.internal.trace;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free ring of the last N frames seen on one connection. Frames are redacted before they are
+ * stored so key blocks, data and HSM outputs never stay on the heap or reach a dump. Writers only do a
+ * getAndIncrement and an array store; readers take a best effort snapshot.
+ */
+public class WireTraceBuffer {
+
+    public enum Direction {
+        OUT, IN
+    }
+
+    private static final WireTraceBuffer DISABLED = new WireTraceBuffer("disabled", 0, 1);
+
+    private final String name;
+    private final AtomicReferenceArray<Frame> slots;
+    private final int mask;
+    private final int sampleRate;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong sampleCounter = new AtomicLong();
+
+    private WireTraceBuffer(String name, int capacity, int sampleRate) {
+        this.name = name;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+        this.sampleRate = Math.max(1, sampleRate);
+    }
+
+    public static WireTraceBuffer create(String name, int capacity, int sampleRate) {
+        if (capacity <= 0) {
+            return DISABLED;
+        }
+        return new WireTraceBuffer(name, roundUpToPowerOfTwo(capacity), sampleRate);
+    }
+
+    public boolean isEnabled() {
+        return this != DISABLED;
+    }
+
+    public void record(Direction direction, String frame) {
+        if (frame == null || !sampled()) {
+            return;
+        }
+        store(direction, frame);
+    }
+
+    /**
+     * Records chars[offset, offset + length), only copying them out when the frame is sampled.
+     */
+    public void record(Direction direction, char[] chars, int offset, int length) {
+        if (!sampled()) {
+            return;
+        }
+        store(direction, new String(chars, offset, length));
+    }
+
+    /**
+     * Records the ASCII frame in bytes[offset, offset + length), only decoding it when the frame is sampled.
+     */
+    public void record(Direction direction, byte[] bytes, int offset, int length) {
+        if (!sampled()) {
+            return;
+        }
+        store(direction, new String(bytes, offset, length, StandardCharsets.US_ASCII));
+    }
+
+    private boolean sampled() {
+        if (this == DISABLED) {
+            return false;
+        }
+        return sampleRate <= 1 || sampleCounter.getAndIncrement() % sampleRate == 0;
+    }
+
+    private void store(Direction direction, String frame) {
+        long seq = sequence.getAndIncrement();
+        slots.set((int) (seq & mask), new Frame(seq, System.currentTimeMillis(), direction, redact(frame)));
+    }
+
+    public List<String> snapshot() {
+        List<Frame> frames = new ArrayList<>(slots.length());
+        for (int i = 0; i < slots.length(); i++) {
+            Frame frame = slots.get(i);
+            if (frame != null) {
+                frames.add(frame);
+            }
+        }
+        frames.sort(Comparator.comparingLong(frame -> frame.seq));
+        List<String> lines = new ArrayList<>(frames.size());
+        for (Frame frame : frames) {
+            lines.add(Instant.ofEpochMilli(frame.timestampMillis) + " " + frame.direction + " " + frame.redacted);
+        }
+        return lines;
+    }
+
+    public String dump() {
+        StringBuilder sb = new StringBuilder("Wire trace for ").append(name);
+        if (this == DISABLED) {
+            return sb.append(" is disabled").toString();
+        }
+        for (String line : snapshot()) {
+            sb.append(System.lineSeparator()).append("  ").append(line);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Keeps the command/response code and the context tag, every other field is replaced by its length.
+     * e.g. {@code <5D#3#KEY##DATA#^BD_1#>} becomes {@code <5D#[1]#[3]#[0]#[4]#^BD_1#>}.
+     */
+    public static String redact(String frame) {
+        int length = frame.length();
+        int open = frame.indexOf('<');
+        if (open < 0) {
+            return "[" + length + "]";
+        }
+        StringBuilder sb = new StringBuilder(Math.min(length, 64) + 16);
+        int i = open + 1;
+        while (i < length && frame.charAt(i) != '#' && frame.charAt(i) != '>') {
+            i++;
+        }
+        sb.append(frame, open, i);
+        int fieldStart = i + 1;
+        for (; i < length; i++) {
+            char c = frame.charAt(i);
+            if (c != '#' && c != '>') {
+                continue;
+            }
+            if (i > fieldStart && frame.charAt(fieldStart) == '^') {
+                sb.append(frame, fieldStart, i);
+            } else if (i >= fieldStart && (i > fieldStart || c == '#')) {
+                sb.append('[').append(i - fieldStart).append(']');
+            }
+            sb.append(c);
+            if (c == '>') {
+                break;
+            }
+            fieldStart = i + 1;
+        }
+        return sb.toString();
+    }
+
+    private static int roundUpToPowerOfTwo(int capacity) {
+        int highest = Integer.highestOneBit(capacity);
+        return highest == capacity ? capacity : highest << 1;
+    }
+
+    private static final class Frame {
+        private final long seq;
+        private final long timestampMillis;
+        private final Direction direction;
+        private final String redacted;
+
+        private Frame(long seq, long timestampMillis, Direction direction, String redacted) {
+            this.seq = seq;
+            this.timestampMillis = timestampMillis;
+            this.direction = direction;
+            this.redacted = redacted;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.billdesk.paymenthsm.client;
+
+import com.billdesk.paymenthsm.client.internal.config.HSMConfig;
+import com.billdesk.paymenthsm.client.internal.core.HSMCompletionHandler;
+import com.billdesk.paymenthsm.client.internal.core.HSMService;
+import com.billdesk.paymenthsm.client.internal.enums.ACS_BANK;
+import com.billdesk.paymenthsm.client.internal.enums.Provider;
+import com.billdesk.paymenthsm.client.internal.exception.HSMOverloadedException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class HSMClientTest {
+
+    private final ExecutorService callbacks = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "callbacks"));
+    private final StubService service = new StubService();
+
+    @AfterEach
+    void stop() {
+        callbacks.shutdownNow();
+    }
+
+    private HSMClient client(Executor executor) {
+        HSMConfig config = new HSMConfig();
+        config.setProvider(Provider.UTIMACO);
+        return new HSMClient(config, null, service, executor);
+    }
+
+    @Test
+    void callbackExecutorRunsTheDependentStages() throws Exception {
+        CompletableFuture<String> result = client(callbacks).generateHMAC("KEY", "00");
+        CompletableFuture<String> thread = result.thenApply(value -> value + "@" + Thread.currentThread().getName());
+
+        service.pending.complete("A1B2");
+        assertEquals("A1B2@callbacks", thread.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void failureReachesTheCallerUnwrappedWithAnExecutor() throws Exception {
+        HSMOverloadedException overloaded = new HSMOverloadedException("full");
+        CompletableFuture<String> result = client(callbacks).generateHMAC("KEY", "00");
+        CompletableFuture<Throwable> seen = result.handle((value, error) -> error);
+
+        service.pending.completeExceptionally(overloaded);
+        // what a dependent stage gets without an executor, not a CompletionException around it
+        assertSame(overloaded, seen.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void rejectingExecutorStillCompletesTheFuture() throws Exception {
+        CompletableFuture<String> result = client(runnable -> {
+            throw new RejectedExecutionException("shut down");
+        }).generateHMAC("KEY", "00");
+
+        service.pending.complete("A1B2");
+        assertEquals("A1B2", result.get(5, TimeUnit.SECONDS));
+    }
+
+    private static final class StubService implements HSMService {
+        private final CompletableFuture<String> pending = new CompletableFuture<>();
+
+        @Override
+        public CompletableFuture<String> generateVisaCAVV(ACS_BANK bank, String data) {
+            return pending;
+        }
+
+        @Override
+        public CompletableFuture<String> generateMasterCAVV(ACS_BANK bank, String data) {
+            return pending;
+        }
+
+        @Override
+        public CompletableFuture<String> generateHMAC(String keyName, String data) {
+            return pending;
+        }
+
+        @Override
+        public <C> void generateHMAC(String keyName, String data, HSMCompletionHandler<? super C> handler, C context) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Provider getProvider() {
+            return Provider.UTIMACO;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.billdesk.paymenthsm.client.internal.admission;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AdmissionControllerTest {
+
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // 5ms target over a 50ms interval
+    private final AdmissionController admission = new AdmissionController("test", 5, 50, 100);
+
+    private void sample(long queueDelayNanos) {
+        assertTrue(admission.tryAcquire(false));
+        admission.release(queueDelayNanos);
+    }
+
+    private void overload() throws InterruptedException {
+        sample(SLOW);
+        Thread.sleep(60);
+        sample(SLOW);
+    }
+
+    @Test
+    void delayAboveTargetForLessThanAnIntervalIsNotAnOverload() {
+        sample(SLOW);
+        sample(SLOW);
+        assertFalse(admission.isOverloaded());
+        assertTrue(admission.tryAcquire(true));
+    }
+
+    @Test
+    void delayAboveTargetForAnIntervalShedsOnlyRequestsThatWouldQueue() throws InterruptedException {
+        overload();
+        assertTrue(admission.isOverloaded());
+
+        assertFalse(admission.tryAcquire(true));
+        // a free connection is still used
+        assertTrue(admission.tryAcquire(false));
+        assertEquals(1, admission.getRejected());
+    }
+
+    @Test
+    void delayBelowTargetEndsTheOverload() throws InterruptedException {
+        overload();
+        sample(FAST);
+        assertFalse(admission.isOverloaded());
+        assertTrue(admission.tryAcquire(true));
+    }
+
+    @Test
+    void overloadExpiresWhenTrafficStops() throws InterruptedException {
+        overload();
+        Thread.sleep(60);
+        assertFalse(admission.isOverloaded());
+    }
+
+    @Test
+    void aSingleFastSampleRestartsTheInterval() throws InterruptedException {
+        sample(SLOW);
+        Thread.sleep(60);
+        sample(FAST);
+        sample(SLOW);
+        assertFalse(admission.isOverloaded());
+    }
+
+    @Test
+    void queueDepthIsCappedBeforeAnyDelayBuildsUp() {
+        AdmissionController shallow = new AdmissionController("test", 5, 50, 2);
+        assertTrue(shallow.tryAcquire(true));
+        assertTrue(shallow.tryAcquire(true));
+        assertFalse(shallow.tryAcquire(true));
+        assertEquals(2, shallow.getQueueDepth());
+
+        shallow.cancel();
+        assertTrue(shallow.tryAcquire(true));
+        shallow.release(FAST);
+        shallow.release(FAST);
+        assertEquals(0, shallow.getQueueDepth());
+        assertEquals(3, shallow.getAdmitted());
+        assertEquals(1, shallow.getRejected());
+    }
+}
@@ -0,0 +1,112 @@
+package com.billdesk.paymenthsm.client.internal.audit;
+
+import com.billdesk.paymenthsm.client.internal.exception.HSMRequestTimeoutException;
+import com.billdesk.paymenthsm.client.internal.model.HSMRequest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AuditJournalTest {
+
+    // room for about 25 entries per segment
+    private static final int SEGMENT_BYTES = 2048;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void entriesReadBackInOrderAcrossSegments() throws Exception {
+        try (AuditJournal journal = new AuditJournal(directory, 1024, SEGMENT_BYTES, 0, 10)) {
+            for (int i = 0; i < 200; i++) {
+                journal.record(1_000 + i, i * 1_000L, HSMRequest.Operation.HMAC, "BD_" + i, "KEY_" + (i % 4),
+                        "127.0.0.1:1500", i % 10 == 0 ? new HSMRequestTimeoutException("timed out") : null);
+            }
+        }
+        assertTrue(AuditJournal.segments(directory).size() > 1);
+
+        List<AuditJournalReader.Entry> entries = read();
+        assertEquals(200, entries.size());
+        for (int i = 0; i < 200; i++) {
+            AuditJournalReader.Entry entry = entries.get(i);
+            assertFalse(entry.isGap());
+            assertEquals(1_000 + i, entry.getTimestampMillis());
+            assertEquals(i * 1_000L, entry.getLatencyNanos());
+            assertEquals(HSMRequest.Operation.HMAC, entry.getOperation());
+            assertEquals("BD_" + i, entry.getCorrelationId());
+            assertEquals("KEY_" + (i % 4), entry.getKeyName());
+            assertEquals("127.0.0.1:1500", entry.getNode());
+            assertEquals(i % 10 != 0, entry.isSuccess());
+            assertEquals(i % 10 == 0 ? "HSMRequestTimeoutException" : null, entry.getError());
+        }
+    }
+
+    @Test
+    void aReopenedJournalContinuesAfterTheLastSegment() throws Exception {
+        try (AuditJournal journal = new AuditJournal(directory, 1024, SEGMENT_BYTES, 0, 10)) {
+            journal.record(1, 0, null, "BD_1", null, AuditJournal.NODE_CACHE, null);
+        }
+        try (AuditJournal journal = new AuditJournal(directory, 1024, SEGMENT_BYTES, 0, 10)) {
+            journal.record(2, 0, null, "BD_2", null, AuditJournal.NODE_CACHE, null);
+        }
+        List<AuditJournalReader.Entry> entries = read();
+        assertEquals(2, entries.size());
+        assertEquals("BD_1", entries.get(0).getCorrelationId());
+        assertEquals("BD_2", entries.get(1).getCorrelationId());
+        assertNull(entries.get(1).getOperation());
+        assertNull(entries.get(1).getKeyName());
+    }
+
+    @Test
+    void oldSegmentsAreDeletedBeyondTheLimit() throws Exception {
+        try (AuditJournal journal = new AuditJournal(directory, 1024, SEGMENT_BYTES, 2, 10)) {
+            for (int i = 0; i < 200; i++) {
+                journal.record(i, 0, HSMRequest.Operation.VISA_CAVV, "BD_" + i, "KEY", "node", null);
+            }
+        }
+        assertEquals(2, AuditJournal.segments(directory).size());
+        List<AuditJournalReader.Entry> entries = read();
+        // the newest entries are kept
+        assertEquals("BD_199", entries.get(entries.size() - 1).getCorrelationId());
+    }
+
+    @Test
+    void entriesDroppedOnAFullBufferAreRecordedAsGaps() throws Exception {
+        int recorded = 20_000;
+        // four slots, the writer cannot keep up with a tight loop
+        AuditJournal journal = new AuditJournal(directory, 2, SEGMENT_BYTES, 0, 10);
+        for (int i = 0; i < recorded; i++) {
+            journal.record(i, 0, HSMRequest.Operation.HMAC, "BD_" + i, "KEY", "node", null);
+        }
+        journal.close();
+        long dropped = journal.getDropped();
+        long written = journal.getWritten();
+        assertTrue(dropped > 0);
+        assertEquals(recorded, dropped + written);
+
+        long entries = 0;
+        long gapped = 0;
+        for (AuditJournalReader.Entry entry : read()) {
+            if (entry.isGap()) {
+                gapped += entry.getDropped();
+            } else {
+                entries++;
+            }
+        }
+        assertEquals(written, entries);
+        assertEquals(dropped, gapped);
+    }
+
+    private List<AuditJournalReader.Entry> read() throws Exception {
+        List<AuditJournalReader.Entry> entries = new ArrayList<>();
+        AuditJournalReader.read(directory, entries::add);
+        return entries;
+    }
+}
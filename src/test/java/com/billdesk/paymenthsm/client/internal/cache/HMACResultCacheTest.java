@@ -0,0 +1,70 @@
+package com.billdesk.paymenthsm.client.internal.cache;
+
+import com.billdesk.paymenthsm.client.internal.config.HSMConfig;
+import com.billdesk.paymenthsm.client.internal.core.RequestDigest;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class HMACResultCacheTest {
+
+    private static final String KEY = "CARD_HMAC";
+
+    private static HMACResultCache cache(boolean offHeap, long keyBlockVersion) {
+        HSMConfig config = new HSMConfig();
+        config.setHmacCacheKeyNames(Set.of(KEY));
+        config.setHmacCacheMaxEntries(64);
+        config.setHmacCacheOffHeap(offHeap);
+        config.setHmacCacheMaxValueBytes(65535);
+        return new HMACResultCache(config, keyBlockVersion);
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void returnsResultStoredUnderTheSameVersion(boolean offHeap) {
+        HMACResultCache cache = cache(offHeap, 1);
+        RequestDigest digest = RequestDigest.of(KEY, "4111111111111111");
+        assertNull(cache.get(digest, 1));
+        cache.put(digest, 1, "A1B2C3");
+        assertEquals("A1B2C3", cache.get(digest, 1));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void newerVersionDropsEveryEntry(boolean offHeap) {
+        HMACResultCache cache = cache(offHeap, 1);
+        RequestDigest digest = RequestDigest.of(KEY, "4111111111111111");
+        cache.put(digest, 1, "A1B2C3");
+        assertNull(cache.get(digest, 2));
+        assertNull(cache.get(digest, 2));
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void resultComputedUnderAnOlderVersionIsNotStored(boolean offHeap) {
+        HMACResultCache cache = cache(offHeap, 1);
+        RequestDigest digest = RequestDigest.of(KEY, "4111111111111111");
+        // a request started under version 1, the key block was reloaded before its result came back
+        assertNull(cache.get(RequestDigest.of(KEY, "other"), 2));
+        cache.put(digest, 1, "STALE");
+        assertNull(cache.get(digest, 2));
+        cache.put(digest, 2, "FRESH");
+        assertEquals("FRESH", cache.get(digest, 2));
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void keepsValuesLongerThanAShort(boolean offHeap) {
+        HMACResultCache cache = cache(offHeap, 1);
+        RequestDigest digest = RequestDigest.of(KEY, "large");
+        String result = "F".repeat(40_000);
+        cache.put(digest, 1, result);
+        assertEquals(result, cache.get(digest, 1));
+    }
+}
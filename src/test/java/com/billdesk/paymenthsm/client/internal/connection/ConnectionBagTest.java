@@ -0,0 +1,168 @@
+package com.billdesk.paymenthsm.client.internal.connection;
+
+import com.billdesk.paymenthsm.client.internal.config.HSMConfig;
+import com.billdesk.paymenthsm.client.internal.enums.Provider;
+import com.billdesk.paymenthsm.client.internal.model.HSMNode;
+import com.billdesk.paymenthsm.client.internal.provider.utimaco.UtimacoCommandBuilder;
+import com.billdesk.paymenthsm.simulator.SimulatorConfig;
+import com.billdesk.paymenthsm.simulator.UtimacoSimulator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConnectionBagTest {
+
+    private UtimacoSimulator hsm;
+    private AsyncSocketFactory factory;
+    private ConnectionBag bag;
+
+    @BeforeEach
+    void start() throws Exception {
+        hsm = UtimacoSimulator.start(new SimulatorConfig());
+        HSMNode node = new HSMNode();
+        node.setIp("127.0.0.1");
+        node.setPort(hsm.getPort());
+        HSMConfig config = new HSMConfig();
+        config.setProvider(Provider.UTIMACO);
+        config.setHsmNodes(List.of(node));
+        factory = new AsyncSocketFactory(node, config, new UtimacoCommandBuilder());
+        bag = new ConnectionBag(factory, 2, 0);
+    }
+
+    @AfterEach
+    void stop() {
+        bag.abort();
+        hsm.close();
+    }
+
+    @Test
+    void borrowAndReturnMoveBetweenActiveAndIdle() throws Exception {
+        AsyncSocketConnection connection = bag.borrowObject();
+        assertTrue(connection.isConnected());
+        assertEquals(ConnectionBag.IN_USE, connection.getPoolState());
+        assertEquals(1, bag.getNumActive());
+        assertEquals(0, bag.getNumIdle());
+
+        bag.returnObject(connection);
+        assertEquals(ConnectionBag.NOT_IN_USE, connection.getPoolState());
+        assertEquals(0, bag.getNumActive());
+        assertEquals(1, bag.getNumIdle());
+        assertSame(connection, bag.borrowObject());
+    }
+
+    @Test
+    void returningAConnectionThatIsNotBorrowedFails() throws Exception {
+        AsyncSocketConnection connection = bag.borrowObject();
+        bag.returnObject(connection);
+        assertThrows(IllegalStateException.class, () -> bag.returnObject(connection));
+    }
+
+    @Test
+    void invalidateClosesAndForgetsTheConnection() throws Exception {
+        AsyncSocketConnection connection = bag.borrowObject();
+        bag.invalidateObject(connection);
+        assertEquals(ConnectionBag.REMOVED, connection.getPoolState());
+        assertFalse(connection.isConnected());
+        assertEquals(0, bag.getNumActive() + bag.getNumIdle());
+        assertNotSame(connection, bag.borrowObject());
+    }
+
+    @Test
+    void clearClosesIdleAndRetiresBorrowedConnections() throws Exception {
+        AsyncSocketConnection borrowed = bag.borrowObject();
+        AsyncSocketConnection idle = bag.borrowObject();
+        bag.returnObject(idle);
+
+        bag.clear();
+        assertEquals(ConnectionBag.REMOVED, idle.getPoolState());
+        assertFalse(idle.isConnected());
+        assertEquals(ConnectionBag.RETIRING, borrowed.getPoolState());
+        assertEquals(1, bag.getNumRetiring());
+        // still usable for the command in flight, closed instead of reused on return
+        assertTrue(borrowed.isConnected());
+
+        bag.returnObject(borrowed);
+        assertEquals(ConnectionBag.REMOVED, borrowed.getPoolState());
+        assertFalse(borrowed.isConnected());
+        assertEquals(0, bag.getNumActive() + bag.getNumIdle());
+    }
+
+    @Test
+    void abortClosesBorrowedConnectionsAndFailsFurtherBorrows() throws Exception {
+        AsyncSocketConnection borrowed = bag.borrowObject();
+        bag.abort();
+        assertEquals(ConnectionBag.REMOVED, borrowed.getPoolState());
+        assertFalse(borrowed.isConnected());
+        // the listener may still return it after the abort
+        bag.returnObject(borrowed);
+        assertTrue(bag.isClosed());
+        assertThrows(IllegalStateException.class, () -> bag.borrowObject());
+    }
+
+    @Test
+    void borrowFailsOnceMaxTotalIsBorrowedAndTheWaitIsOver() throws Exception {
+        bag.borrowObject();
+        bag.borrowObject();
+        assertThrows(NoSuchElementException.class, () -> bag.borrowObject(Duration.ZERO));
+        assertThrows(NoSuchElementException.class, () -> bag.borrowObject(Duration.ofMillis(50)));
+    }
+
+    @Test
+    void borrowIdleNeverConnectsOnTheCallingThread() throws Exception {
+        assertThrows(NoSuchElementException.class, () -> bag.borrowIdleObject());
+        // the open started in the background makes the next one succeed
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (bag.getNumIdle() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        AsyncSocketConnection connection = bag.borrowIdleObject();
+        assertEquals(ConnectionBag.IN_USE, connection.getPoolState());
+        bag.borrowObject();
+        assertThrows(NoSuchElementException.class, () -> bag.borrowIdleObject());
+        assertEquals(2, bag.getNumActive());
+    }
+
+    @Test
+    void returnedConnectionIsHandedToAWaitingBorrower() throws Exception {
+        AsyncSocketConnection first = bag.borrowObject();
+        bag.borrowObject();
+        CompletableFuture<AsyncSocketConnection> waiter = CompletableFuture.supplyAsync(() -> {
+            try {
+                return bag.borrowObject(Duration.ofSeconds(5));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        while (bag.getNumWaiters() == 0) {
+            Thread.sleep(1);
+        }
+        bag.returnObject(first);
+        assertSame(first, waiter.get(5, TimeUnit.SECONDS));
+        assertEquals(ConnectionBag.IN_USE, first.getPoolState());
+    }
+
+    @Test
+    void aThreadGetsTheConnectionItBorrowedLastEvenIfReturnedElsewhere() throws Exception {
+        AsyncSocketConnection first = bag.borrowObject();
+        AsyncSocketConnection second = bag.borrowObject();
+        // replies return connections on the listener thread
+        CompletableFuture.runAsync(() -> {
+            bag.returnObject(first);
+            bag.returnObject(second);
+        }).get(5, TimeUnit.SECONDS);
+        assertSame(second, bag.borrowObject());
+    }
+}
@@ -0,0 +1,283 @@
+package com.billdesk.paymenthsm.client.internal.connection;
+
+import com.billdesk.paymenthsm.client.internal.admission.AdmissionController;
+import com.billdesk.paymenthsm.client.internal.config.HSMConfig;
+import com.billdesk.paymenthsm.client.internal.core.CorrelationIdGenerator;
+import com.billdesk.paymenthsm.client.internal.enums.Provider;
+import com.billdesk.paymenthsm.client.internal.exception.HSMOverloadedException;
+import com.billdesk.paymenthsm.client.internal.exception.HSMUnhealthyNodeException;
+import com.billdesk.paymenthsm.client.internal.model.HSMNode;
+import com.billdesk.paymenthsm.client.internal.provider.utimaco.UtimacoCommandBuilder;
+import com.billdesk.paymenthsm.simulator.LatencyDistribution;
+import com.billdesk.paymenthsm.simulator.SimulatorConfig;
+import com.billdesk.paymenthsm.simulator.UtimacoSimulator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HSMConnectionPoolTest {
+
+    private static final String KEY_BLOCK = "1A4B2C0DE0000000A1B2C3D4E5F60718293A4B5C6D7E8F90123456789ABCDEF0";
+
+    private final UtimacoCommandBuilder commandBuilder = new UtimacoCommandBuilder();
+    private UtimacoSimulator hsm;
+    private HSMConnectionPool pool;
+
+    @BeforeEach
+    void start() throws Exception {
+        SimulatorConfig simulatorConfig = new SimulatorConfig();
+        simulatorConfig.setDefaultLatency(LatencyDistribution.fixed(TimeUnit.MILLISECONDS.toMicros(60)));
+        hsm = UtimacoSimulator.start(simulatorConfig);
+        HSMNode node = new HSMNode();
+        node.setIp("127.0.0.1");
+        node.setPort(hsm.getPort());
+        HSMConfig config = new HSMConfig();
+        config.setProvider(Provider.UTIMACO);
+        config.setHsmNodes(List.of(node));
+        config.setMaxConnections(2);
+        config.setIdleConnections(1);
+        pool = new HSMConnectionPool(node, config, commandBuilder);
+        pool.warmupPoolAndMarkHealthyNodes();
+    }
+
+    @AfterEach
+    void stop() {
+        pool.shutdown();
+        hsm.close();
+    }
+
+    private CompletableFuture<String> hmac(String data) {
+        return pool.executeCommand(commandBuilder.buildHMACCommand(KEY_BLOCK, data), CorrelationIdGenerator.commandId());
+    }
+
+    @Test
+    void drainRefusesNewCommandsAndLetsThoseInFlightFinish() throws Exception {
+        CompletableFuture<String> inFlight = hmac("0011223344");
+        assertEquals(1, pool.getInFlight());
+
+        pool.drain();
+        assertTrue(pool.isDraining());
+        ExecutionException refused = assertThrows(ExecutionException.class, () -> hmac("5566778899").get(1, TimeUnit.SECONDS));
+        assertInstanceOf(HSMUnhealthyNodeException.class, refused.getCause());
+
+        assertFalse(pool.awaitIdle(0));
+        assertTrue(pool.awaitIdle(5000));
+        assertNotNull(inFlight.get(1, TimeUnit.SECONDS));
+        assertEquals(0, pool.getInFlight());
+    }
+
+    @Test
+    void refusedCommandsAreNotLeftInFlight() throws Exception {
+        pool.markUnhealthy();
+        assertThrows(ExecutionException.class, () -> hmac("0011223344").get(1, TimeUnit.SECONDS));
+        assertEquals(0, pool.getInFlight());
+
+        pool.markHealthy();
+        pool.drain();
+        assertThrows(ExecutionException.class, () -> hmac("0011223344").get(1, TimeUnit.SECONDS));
+        assertEquals(0, pool.getInFlight());
+        assertTrue(pool.awaitIdle(0));
+    }
+
+    @Test
+    void commandThatGetsNoConnectionDoesNotUseUpTheRateLimit() throws Exception {
+        HSMNode node = new HSMNode();
+        node.setIp("127.0.0.1");
+        node.setPort(hsm.getPort());
+        node.setMaxTps(1);
+        node.setBurst(2);
+        HSMConfig config = new HSMConfig();
+        config.setProvider(Provider.UTIMACO);
+        config.setHsmNodes(List.of(node));
+        config.setMaxConnections(1);
+        config.setIdleConnections(1);
+        HSMConnectionPool limited = new HSMConnectionPool(node, config, commandBuilder);
+        try {
+            limited.warmupPoolAndMarkHealthyNodes();
+            CompletableFuture<String> sent = limited.executeCommand(commandBuilder.buildHMACCommand(KEY_BLOCK, "0011223344"),
+                    CorrelationIdGenerator.commandId());
+            // the only connection is busy, the retry is rejected after it took the second token
+            CompletableFuture<String> retry = new CompletableFuture<>();
+            limited.execute(new RetriedCommand(commandBuilder.buildHMACCommand(KEY_BLOCK, "5566778899"), retry));
+            ExecutionException failure = assertThrows(ExecutionException.class, () -> retry.get(0, TimeUnit.SECONDS));
+            assertInstanceOf(HSMOverloadedException.class, failure.getCause());
+
+            assertTrue(limited.hasRateCapacity());
+            assertNotNull(sent.get(5, TimeUnit.SECONDS));
+        } finally {
+            limited.shutdown();
+        }
+    }
+
+    @Test
+    void commandRejectedByAdmissionGivesBackItsSlotAndToken() throws Exception {
+        HSMNode node = new HSMNode();
+        node.setIp("127.0.0.1");
+        node.setPort(hsm.getPort());
+        node.setMaxTps(1);
+        node.setBurst(1);
+        HSMConfig config = new HSMConfig();
+        config.setProvider(Provider.UTIMACO);
+        config.setHsmNodes(List.of(node));
+        config.setMaxConnections(1);
+        config.setIdleConnections(1);
+        // the node queue takes nothing, every command is rejected after the client-wide controller admitted it
+        config.setAdmissionMaxNodeQueueDepth(0);
+        AdmissionController global = new AdmissionController("HSM client", 5, 100, 100);
+        HSMConnectionPool admitted = new HSMConnectionPool(node, config, commandBuilder, global);
+        try {
+            admitted.warmupPoolAndMarkHealthyNodes();
+            ExecutionException failure = assertThrows(ExecutionException.class, () -> admitted.executeCommand(
+                    commandBuilder.buildHMACCommand(KEY_BLOCK, "0011223344"), CorrelationIdGenerator.commandId()).get(1, TimeUnit.SECONDS));
+            assertInstanceOf(HSMOverloadedException.class, failure.getCause());
+
+            assertEquals(0, admitted.getInFlight());
+            assertEquals(0, global.getQueueDepth());
+            assertTrue(admitted.hasRateCapacity());
+        } finally {
+            admitted.shutdown();
+        }
+    }
+
+    @Test
+    void fullClientQueueRejectsCommandsUntilASlotFrees() throws Exception {
+        HSMNode node = new HSMNode();
+        node.setIp("127.0.0.1");
+        node.setPort(hsm.getPort());
+        HSMConfig config = new HSMConfig();
+        config.setProvider(Provider.UTIMACO);
+        config.setHsmNodes(List.of(node));
+        config.setMaxConnections(1);
+        config.setIdleConnections(1);
+        // a client-wide queue of one, the only slot is held by a command waiting for a connection
+        AdmissionController global = new AdmissionController("HSM client", 5, 100, 1);
+        assertTrue(global.tryAcquire(true));
+        HSMConnectionPool admitted = new HSMConnectionPool(node, config, commandBuilder, global);
+        try {
+            admitted.warmupPoolAndMarkHealthyNodes();
+            ExecutionException failure = assertThrows(ExecutionException.class, () -> admitted.executeCommand(
+                    commandBuilder.buildHMACCommand(KEY_BLOCK, "0011223344"), CorrelationIdGenerator.commandId()).get(1, TimeUnit.SECONDS));
+            assertInstanceOf(HSMOverloadedException.class, failure.getCause());
+            assertEquals(1, global.getRejected());
+            assertEquals(0, admitted.getInFlight());
+
+            global.cancel();
+            assertNotNull(admitted.executeCommand(commandBuilder.buildHMACCommand(KEY_BLOCK, "0011223344"),
+                    CorrelationIdGenerator.commandId()).get(5, TimeUnit.SECONDS));
+            assertEquals(0, global.getQueueDepth());
+        } finally {
+            admitted.shutdown();
+        }
+    }
+
+    @Test
+    void awaitIdleReturnsAtOnceWithNothingInFlight() {
+        pool.drain();
+        assertTrue(pool.awaitIdle(0));
+    }
+
+    @Test
+    void retryFailsFastInsteadOfConnectingToANodeThatDoesNotAnswer() throws Exception {
+        List<Socket> backlog = new ArrayList<>();
+        // never accepts, once the backlog is full connects hang until their timeout
+        try (ServerSocket blackHole = new ServerSocket(0, 1)) {
+            HSMNode node = new HSMNode();
+            node.setIp("127.0.0.1");
+            node.setPort(blackHole.getLocalPort());
+            HSMConfig config = new HSMConfig();
+            config.setProvider(Provider.UTIMACO);
+            config.setHsmNodes(List.of(node));
+            config.setMaxConnections(2);
+            config.setIdleConnections(1);
+            HSMConnectionPool silent = new HSMConnectionPool(node, config, commandBuilder);
+            try {
+                silent.warmupPoolAndMarkHealthyNodes();
+                fillBacklog(blackHole, backlog);
+                // takes the only connection, the HSM never answers it
+                silent.executeCommand(commandBuilder.buildHMACCommand(KEY_BLOCK, "0011223344"), CorrelationIdGenerator.commandId());
+
+                CompletableFuture<String> retry = new CompletableFuture<>();
+                long start = System.nanoTime();
+                silent.execute(new RetriedCommand(commandBuilder.buildHMACCommand(KEY_BLOCK, "5566778899"), retry));
+                long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+                ExecutionException failure = assertThrows(ExecutionException.class, () -> retry.get(0, TimeUnit.SECONDS));
+                assertInstanceOf(HSMOverloadedException.class, failure.getCause());
+                assertTrue(elapsedMillis < 1000, "retry blocked for " + elapsedMillis + " ms");
+                assertTrue(silent.isHealthy());
+            } finally {
+                silent.shutdown();
+                for (Socket socket : backlog) {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    private static void fillBacklog(ServerSocket server, List<Socket> backlog) throws IOException {
+        for (int i = 0; i < 16; i++) {
+            Socket socket = new Socket();
+            backlog.add(socket);
+            try {
+                socket.connect(new InetSocketAddress("127.0.0.1", server.getLocalPort()), 200);
+            } catch (SocketTimeoutException full) {
+                return;
+            }
+        }
+        throw new IllegalStateException("Listen backlog never filled up");
+    }
+
+    private static final class RetriedCommand extends CommandExecution {
+        private final String command;
+        private final String correlationId = CorrelationIdGenerator.commandId();
+        private final CompletableFuture<String> result;
+
+        RetriedCommand(String command, CompletableFuture<String> result) {
+            this.command = command;
+            this.result = result;
+        }
+
+        @Override
+        public String getCommand() {
+            return command;
+        }
+
+        @Override
+        public String getCorrelationId() {
+            return correlationId;
+        }
+
+        @Override
+        protected void onSuccess(String response) {
+            result.complete(response);
+        }
+
+        @Override
+        protected void onFailure(Throwable error) {
+            result.completeExceptionally(error);
+        }
+
+        @Override
+        protected boolean isRetry() {
+            return true;
+        }
+    }
+}
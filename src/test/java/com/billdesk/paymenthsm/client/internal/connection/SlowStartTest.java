@@ -0,0 +1,93 @@
+package com.billdesk.paymenthsm.client.internal.connection;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SlowStartTest {
+
+    private static final double MIN_WEIGHT = 0.05;
+
+    @Test
+    void zeroWindowNeverRamps() {
+        SlowStart slowStart = new SlowStart(0, SlowStart.Mode.LINEAR, MIN_WEIGHT);
+        slowStart.start();
+        assertFalse(slowStart.isActive());
+        assertEquals(1.0, slowStart.weight());
+    }
+
+    @Test
+    void rampStartsAtTheMinimumWeight() {
+        for (SlowStart.Mode mode : SlowStart.Mode.values()) {
+            SlowStart slowStart = new SlowStart(60_000, mode, MIN_WEIGHT);
+            slowStart.start();
+            assertTrue(slowStart.isActive());
+            double weight = slowStart.weight();
+            assertTrue(weight >= MIN_WEIGHT && weight < 0.1, mode + " starts at " + weight);
+        }
+    }
+
+    @Test
+    void weightGrowsWithTimeAndTheRampEndsAfterTheWindow() throws InterruptedException {
+        SlowStart slowStart = new SlowStart(400, SlowStart.Mode.LINEAR, MIN_WEIGHT);
+        slowStart.start();
+        double first = slowStart.weight();
+        Thread.sleep(200);
+        double half = slowStart.weight();
+        assertTrue(half > first && half > 0.3, "halfway weight " + half);
+
+        Thread.sleep(250);
+        assertEquals(1.0, slowStart.weight());
+        assertFalse(slowStart.isActive());
+    }
+
+    @Test
+    void exponentialRampStaysBelowLinearHalfway() throws InterruptedException {
+        SlowStart linear = new SlowStart(400, SlowStart.Mode.LINEAR, MIN_WEIGHT);
+        SlowStart exponential = new SlowStart(400, SlowStart.Mode.EXPONENTIAL, MIN_WEIGHT);
+        exponential.start();
+        linear.start();
+        Thread.sleep(200);
+        // exponential is read first, so it has seen no more of the window than linear
+        double exponentialWeight = exponential.weight();
+        assertTrue(exponentialWeight < linear.weight(), "exponential weight " + exponentialWeight);
+    }
+
+    @Test
+    void failuresWhileRampingHoldTheWeightDown() throws InterruptedException {
+        SlowStart slowStart = new SlowStart(100, SlowStart.Mode.LINEAR, MIN_WEIGHT);
+        slowStart.start();
+        for (int i = 0; i < 20; i++) {
+            slowStart.recordResult(false);
+        }
+        Thread.sleep(150);
+        // the window is over, but a node that only failed stays at the minimum
+        assertEquals(MIN_WEIGHT, slowStart.weight());
+        assertTrue(slowStart.isActive());
+    }
+
+    @Test
+    void fewResultsAreNotTrustedYet() throws InterruptedException {
+        SlowStart slowStart = new SlowStart(100, SlowStart.Mode.LINEAR, MIN_WEIGHT);
+        slowStart.start();
+        for (int i = 0; i < 19; i++) {
+            slowStart.recordResult(false);
+        }
+        Thread.sleep(150);
+        assertEquals(1.0, slowStart.weight());
+    }
+
+    @Test
+    void restartForgetsEarlierFailures() throws InterruptedException {
+        SlowStart slowStart = new SlowStart(100, SlowStart.Mode.LINEAR, MIN_WEIGHT);
+        slowStart.start();
+        for (int i = 0; i < 20; i++) {
+            slowStart.recordResult(false);
+        }
+        slowStart.start();
+        Thread.sleep(150);
+        assertEquals(1.0, slowStart.weight());
+    }
+}
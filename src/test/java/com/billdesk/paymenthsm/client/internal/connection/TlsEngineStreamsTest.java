@@ -0,0 +1,152 @@
+package com.billdesk.paymenthsm.client.internal.connection;
+
+import com.billdesk.paymenthsm.client.internal.config.HSMConfig;
+import com.billdesk.paymenthsm.client.internal.core.CorrelationIdGenerator;
+import com.billdesk.paymenthsm.client.internal.enums.Provider;
+import com.billdesk.paymenthsm.client.internal.model.HSMNode;
+import com.billdesk.paymenthsm.client.internal.provider.utimaco.UtimacoCommandBuilder;
+import com.billdesk.paymenthsm.simulator.SelfSignedTls;
+import com.billdesk.paymenthsm.simulator.SimulatorConfig;
+import com.billdesk.paymenthsm.simulator.UtimacoSimulator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TlsEngineStreamsTest {
+
+    private static final String KEY_BLOCK = "1A4B2C0DE0000000A1B2C3D4E5F60718293A4B5C6D7E8F90123456789ABCDEF0";
+
+    private static SelfSignedTls tls;
+
+    private final UtimacoCommandBuilder commandBuilder = new UtimacoCommandBuilder();
+    private UtimacoSimulator hsm;
+    private AsyncSocketFactory factory;
+    private AsyncSocketConnection connection;
+
+    @BeforeAll
+    static void certificate() throws IOException {
+        tls = SelfSignedTls.create();
+    }
+
+    @AfterEach
+    void stop() {
+        if (connection != null) {
+            factory.destroyObject(connection);
+        }
+        if (hsm != null) {
+            hsm.close();
+        }
+    }
+
+    private HSMConfig config(int port, String protocol) {
+        HSMNode node = new HSMNode();
+        node.setIp("127.0.0.1");
+        node.setPort(port);
+        HSMConfig config = new HSMConfig();
+        config.setProvider(Provider.UTIMACO);
+        config.setHsmNodes(List.of(node));
+        config.setTlsEnabled(true);
+        config.setTlsTrustStore(tls.getTrustStore().toString());
+        config.setTlsTrustStorePassword(SelfSignedTls.PASSWORD);
+        config.setTlsProtocols(List.of(protocol));
+        return config;
+    }
+
+    private void connect(String protocol) throws Exception {
+        hsm = UtimacoSimulator.startTls(new SimulatorConfig(), tls.serverContext());
+        HSMConfig config = config(hsm.getPort(), protocol);
+        factory = new AsyncSocketFactory(config.getHsmNodes().get(0), config, commandBuilder);
+        connection = factory.makeObject();
+    }
+
+    private String expected(String command) {
+        return commandBuilder.parseResponse(UtimacoSimulator.respond(command));
+    }
+
+    @Test
+    void commandRoundTripOverTls13() throws Exception {
+        connect("TLSv1.3");
+        String command = commandBuilder.buildHMACCommand(KEY_BLOCK, "0011223344");
+        assertEquals(expected(command), connection.sendCommandToHSM(command, CorrelationIdGenerator.commandId()).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void commandRoundTripOverTls12() throws Exception {
+        connect("TLSv1.2");
+        String command = commandBuilder.buildHMACCommand(KEY_BLOCK, "0011223344");
+        assertEquals(expected(command), connection.sendCommandToHSM(command, CorrelationIdGenerator.commandId()).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void commandLargerThanATlsRecordIsSplitAndReassembled() throws Exception {
+        connect("TLSv1.3");
+        // a record carries at most 16 KB
+        String command = commandBuilder.buildHMACCommand(KEY_BLOCK, "AB".repeat(20_000));
+        assertEquals(expected(command), connection.sendCommandToHSM(command, CorrelationIdGenerator.commandId()).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void pipelinedCommandsFromSeveralThreadsAllGetTheirReply() throws Exception {
+        connect("TLSv1.3");
+        List<CompletableFuture<Void>> senders = new ArrayList<>();
+        for (int thread = 0; thread < 4; thread++) {
+            int sender = thread;
+            senders.add(CompletableFuture.runAsync(() -> {
+                for (int i = 0; i < 50; i++) {
+                    String command = commandBuilder.buildHMACCommand(KEY_BLOCK, String.format("%02d%04d", sender, i));
+                    try {
+                        assertEquals(expected(command),
+                                connection.sendCommandToHSM(command, CorrelationIdGenerator.commandId()).get(5, TimeUnit.SECONDS));
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }));
+        }
+        CompletableFuture.allOf(senders.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+        assertEquals(200, hsm.getCommandsReceived());
+    }
+
+    @Test
+    void untrustedCertificateFailsTheConnect() throws Exception {
+        hsm = UtimacoSimulator.startTls(new SimulatorConfig(), SelfSignedTls.create().serverContext());
+        HSMConfig config = config(hsm.getPort(), "TLSv1.3");
+        factory = new AsyncSocketFactory(config.getHsmNodes().get(0), config, commandBuilder);
+        assertThrows(IOException.class, () -> factory.makeObject());
+    }
+
+    @Test
+    void handshakeWithAPeerThatNeverAnswersTimesOut() throws Exception {
+        try (ServerSocket silent = new ServerSocket(0)) {
+            // accepts the TCP connection and never speaks TLS
+            CompletableFuture<Socket> accepted = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return silent.accept();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            HSMConfig config = config(silent.getLocalPort(), "TLSv1.3");
+            config.setTlsHandshakeTimeoutMillis(300);
+            factory = new AsyncSocketFactory(config.getHsmNodes().get(0), config, commandBuilder);
+
+            long start = System.nanoTime();
+            assertThrows(IOException.class, () -> factory.makeObject());
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(elapsedMillis < 3000, "handshake took " + elapsedMillis + " ms");
+            accepted.get(5, TimeUnit.SECONDS).close();
+        }
+    }
+}
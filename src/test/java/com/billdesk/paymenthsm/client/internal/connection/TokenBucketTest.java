@@ -0,0 +1,73 @@
+package com.billdesk.paymenthsm.client.internal.connection;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenBucketTest {
+
+    @Test
+    void startsFullAndAllowsTheBurstAtOnce() {
+        TokenBucket bucket = new TokenBucket(1, 5);
+        assertEquals(5, bucket.availableTokens());
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.tryAcquire(), "token " + i);
+        }
+        assertFalse(bucket.hasToken());
+        assertFalse(bucket.tryAcquire());
+        assertEquals(0, bucket.availableTokens());
+    }
+
+    @Test
+    void hasTokenDoesNotTakeOne() {
+        TokenBucket bucket = new TokenBucket(1, 1);
+        assertTrue(bucket.hasToken());
+        assertTrue(bucket.hasToken());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.hasToken());
+    }
+
+    @Test
+    void refillsAtTheConfiguredRate() throws InterruptedException {
+        // one token every 20ms
+        TokenBucket bucket = new TokenBucket(50, 1);
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+        Thread.sleep(40);
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    void idleTimeNeverBuildsUpMoreThanTheBurst() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(1000, 3);
+        Thread.sleep(20);
+        assertEquals(3, bucket.availableTokens());
+        int acquired = 0;
+        while (bucket.tryAcquire()) {
+            acquired++;
+        }
+        // a token may refill while draining, never twenty of them
+        assertTrue(acquired >= 3 && acquired <= 4, "acquired " + acquired);
+    }
+
+    @Test
+    void refundGivesTheTokenBack() {
+        TokenBucket bucket = new TokenBucket(1, 2);
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.hasToken());
+        bucket.refund();
+        assertEquals(1, bucket.availableTokens());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    @Test
+    void rejectsNonPositiveRate() {
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(0, 1));
+    }
+}
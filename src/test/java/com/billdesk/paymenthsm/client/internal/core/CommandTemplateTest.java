@@ -0,0 +1,46 @@
+package com.billdesk.paymenthsm.client.internal.core;
+
+import com.billdesk.paymenthsm.client.internal.provider.utimaco.UtimacoCommandBuilder;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CommandTemplateTest {
+
+    private static final String KEY_BLOCK = "1A4B2C0DE0000000A1B2C3D4E5F60718293A4B5C6D7E8F90123456789ABCDEF0";
+
+    private final UtimacoCommandBuilder commandBuilder = new UtimacoCommandBuilder();
+
+    @Test
+    void encodesTheSameBytesAsTheTaggedString() {
+        for (CommandTemplate template : new CommandTemplate[]{commandBuilder.hmacTemplate(KEY_BLOCK), commandBuilder.visaCAVVTemplate(KEY_BLOCK)}) {
+            String data = "00112233445566778899";
+            String tag = "BD_1718000000000_0a1b2c3d";
+            byte[] expected = commandBuilder.embedContextTag(template.render(data), tag).getBytes(StandardCharsets.UTF_8);
+
+            byte[] buffer = new byte[template.maxEncodedLength(data, tag) + 3];
+            int end = template.encode(data, tag, buffer, 3);
+            assertEquals(3 + expected.length, end);
+            assertArrayEquals(expected, Arrays.copyOfRange(buffer, 3, end));
+        }
+    }
+
+    @Test
+    void givesUpOnDataOutsideAscii() {
+        CommandTemplate template = commandBuilder.hmacTemplate(KEY_BLOCK);
+        byte[] buffer = new byte[256];
+        assertEquals(-1, template.encode("00é11", "BD_1", buffer, 0));
+    }
+
+    @Test
+    void templatesWithoutATagMarkerHaveNoSlot() {
+        assertFalse(new CommandTemplate("<00#", "#>").hasTagSlot());
+        assertTrue(commandBuilder.hmacTemplate(KEY_BLOCK).forKey("KEY", null).hasTagSlot());
+    }
+}
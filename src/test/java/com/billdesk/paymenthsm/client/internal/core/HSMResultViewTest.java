@@ -0,0 +1,75 @@
+package com.billdesk.paymenthsm.client.internal.core;
+
+import com.billdesk.paymenthsm.client.internal.exception.HSMProtocolException;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HSMResultViewTest {
+
+    // the result field of a reply frame, as the connection wraps it
+    private static HSMResultView field(String frame, String result) {
+        HSMResultView view = new HSMResultView();
+        view.wrap(frame.toCharArray(), frame.indexOf(result), result.length());
+        return view;
+    }
+
+    @Test
+    void viewCoversOnlyTheWrappedRange() {
+        HSMResultView view = field("<49B#0AFF10#^t1#>", "0AFF10");
+        assertEquals(6, view.length());
+        assertEquals('0', view.charAt(0));
+        assertEquals('0', view.charAt(5));
+        assertEquals("FF", view.subSequence(2, 4).toString());
+        assertEquals("0AFF10", view.toString());
+        assertThrows(IndexOutOfBoundsException.class, () -> view.charAt(6));
+        assertThrows(IndexOutOfBoundsException.class, () -> view.charAt(-1));
+    }
+
+    @Test
+    void copiesOutAsciiBytes() {
+        HSMResultView view = field("<49B#0AFF10#>", "0AFF10");
+        byte[] bytes = new byte[8];
+        assertEquals(6, view.getBytes(bytes, 2));
+        assertEquals('0', bytes[2]);
+        assertEquals('0', bytes[7]);
+        assertArrayEquals("0AFF10".getBytes(), view.toByteArray());
+    }
+
+    @Test
+    void decodesHexInEitherCase() {
+        assertArrayEquals(new byte[]{0x0A, (byte) 0xFF, 0x10}, field("<49B#0AFF10#>", "0AFF10").decodeHex());
+        HSMResultView lower = HSMResultView.of("0aff10");
+        assertEquals(3, lower.getDecodedHexLength());
+        byte[] into = new byte[4];
+        assertEquals(3, lower.decodeHex(into, 1));
+        assertArrayEquals(new byte[]{0, 0x0A, (byte) 0xFF, 0x10}, into);
+    }
+
+    @Test
+    void malformedHexIsAProtocolError() {
+        assertThrows(HSMProtocolException.class, () -> HSMResultView.of("ABC").decodeHex());
+        assertThrows(HSMProtocolException.class, () -> HSMResultView.of("0G").decodeHex());
+        assertThrows(HSMProtocolException.class, () -> HSMResultView.of("0é").decodeHex());
+    }
+
+    @Test
+    void comparesContentWithoutCopying() {
+        HSMResultView view = field("<49B#0AFF10#>", "0AFF10");
+        assertTrue(view.contentEquals("0AFF10"));
+        assertFalse(view.contentEquals("0AFF11"));
+        assertFalse(view.contentEquals("0AFF1"));
+    }
+
+    @Test
+    void rewrapReusesTheInstance() {
+        HSMResultView view = field("<49B#AA#>", "AA");
+        char[] next = "<49B#BBBB#>".toCharArray();
+        view.wrap(next, 5, 4);
+        assertEquals("BBBB", view.toString());
+    }
+}
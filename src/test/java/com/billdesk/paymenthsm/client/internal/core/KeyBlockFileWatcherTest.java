@@ -0,0 +1,99 @@
+package com.billdesk.paymenthsm.client.internal.core;
+
+import com.billdesk.paymenthsm.client.internal.provider.utimaco.UtimacoCommandBuilder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KeyBlockFileWatcherTest {
+
+    @TempDir
+    Path directory;
+
+    private static void write(Path file, String content) throws IOException {
+        Files.writeString(file, content, StandardCharsets.ISO_8859_1);
+    }
+
+    // replaced the way editors do it, a new file moved over the old one
+    private void replace(Path file, String content) throws IOException {
+        Path staged = Files.createTempFile(directory, "keys", ".tmp");
+        write(staged, content);
+        Files.move(staged, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void awaitVersion(KeyBlockRegistry registry, long version) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(15);
+        while (registry.getVersion() < version && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(version, registry.getVersion());
+    }
+
+    @Test
+    void loadReadsTrimmedProperties() throws IOException {
+        Path file = directory.resolve("keys.properties");
+        write(file, "# key blocks\nKEY_A = AAAA  \nKEY_B=BBBB\n");
+        assertEquals(Map.of("KEY_A", "AAAA", "KEY_B", "BBBB"), KeyBlockFileWatcher.load(file));
+    }
+
+    @Test
+    void reloadKeepsTheKeysWhenTheFileIsInvalid() throws IOException {
+        Path file = directory.resolve("keys.properties");
+        write(file, "KEY_A=AAAA\n");
+        KeyBlockRegistry registry = new KeyBlockRegistry(new UtimacoCommandBuilder(), KeyBlockFileWatcher.load(file));
+        try (KeyBlockFileWatcher watcher = new KeyBlockFileWatcher(file, registry)) {
+            write(file, "");
+            watcher.reload();
+            assertEquals(1, registry.getVersion());
+
+            write(file, "KEY_A=CCCC\n");
+            watcher.reload();
+            assertEquals(2, registry.getVersion());
+            assertEquals("CCCC", registry.current().getKeyBlocks().get("KEY_A"));
+        }
+    }
+
+    @Test
+    void replacedFileIsPickedUp() throws Exception {
+        Path file = directory.resolve("keys.properties");
+        write(file, "KEY_A=AAAA\n");
+        KeyBlockRegistry registry = new KeyBlockRegistry(new UtimacoCommandBuilder(), KeyBlockFileWatcher.load(file));
+        try (KeyBlockFileWatcher ignored = new KeyBlockFileWatcher(file, registry)) {
+            replace(file, "KEY_A=AAAA\nKEY_B=BBBB\n");
+            awaitVersion(registry, 2);
+            assertEquals("BBBB", registry.current().getKeyBlocks().get("KEY_B"));
+        }
+    }
+
+    @Test
+    void configMapSymlinkSwapIsPickedUp() throws Exception {
+        // the layout of a mounted config map: the file links through ..data to a versioned directory
+        Path first = Files.createDirectory(directory.resolve("..v1"));
+        write(first.resolve("keys.properties"), "KEY_A=AAAA\n");
+        Files.createSymbolicLink(directory.resolve("..data"), first.getFileName());
+        Path file = directory.resolve("keys.properties");
+        Files.createSymbolicLink(file, Path.of("..data", "keys.properties"));
+
+        KeyBlockRegistry registry = new KeyBlockRegistry(new UtimacoCommandBuilder(), KeyBlockFileWatcher.load(file));
+        try (KeyBlockFileWatcher ignored = new KeyBlockFileWatcher(file, registry)) {
+            Path second = Files.createDirectory(directory.resolve("..v2"));
+            write(second.resolve("keys.properties"), "KEY_A=CCCC\n");
+            Path link = Files.createSymbolicLink(directory.resolve("..data_tmp"), second.getFileName());
+            Files.move(link, directory.resolve("..data"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            awaitVersion(registry, 2);
+            assertEquals("CCCC", registry.current().getKeyBlocks().get("KEY_A"));
+            assertTrue(Files.isSymbolicLink(file));
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.billdesk.paymenthsm.client.internal.core;
+
+import com.billdesk.paymenthsm.client.internal.provider.utimaco.UtimacoCommandBuilder;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KeyBlockRegistryTest {
+
+    private final KeyBlockRegistry registry = new KeyBlockRegistry(new UtimacoCommandBuilder(), Map.of("KEY_A", "AAAA", "KEY_B", "BBBB"));
+
+    @Test
+    void startsAtVersionOneWithATemplatePerKey() {
+        assertEquals(1, registry.getVersion());
+        assertEquals(Map.of("KEY_A", "AAAA", "KEY_B", "BBBB").keySet(), registry.getKeyNames());
+        assertTrue(registry.templates().hmac("KEY_A").render("00").contains("AAAA"));
+        assertEquals("KEY_A", registry.templates().hmac("KEY_A").getKeyName());
+    }
+
+    @Test
+    void identicalKeyBlocksKeepTheSnapshot() {
+        KeyBlockRegistry.Snapshot before = registry.current();
+        assertEquals(1, registry.refresh(Map.of("KEY_A", "AAAA", "KEY_B", "BBBB")));
+        assertSame(before, registry.current());
+    }
+
+    @Test
+    void refreshSwapsInANewSnapshotAndLeavesTheOldOneIntact() {
+        KeyBlockRegistry.Snapshot before = registry.current();
+        assertEquals(2, registry.refresh(Map.of("KEY_A", "CCCC", "KEY_C", "DDDD")));
+
+        CommandTemplates templates = registry.templates();
+        assertTrue(templates.hmac("KEY_A").render("00").contains("CCCC"));
+        assertTrue(templates.hmac("KEY_C").render("00").contains("DDDD"));
+        assertNull(templates.hmac("KEY_B"));
+        // a command already rendered from the previous snapshot still sees its key blocks
+        assertTrue(before.getTemplates().hmac("KEY_A").render("00").contains("AAAA"));
+        assertEquals(1, before.getVersion());
+    }
+
+    @Test
+    void emptyKeyBlocksAreRejectedAndTheCurrentSnapshotKept() {
+        KeyBlockRegistry.Snapshot before = registry.current();
+        assertThrows(IllegalArgumentException.class, () -> registry.refresh(Map.of()));
+        assertSame(before, registry.current());
+    }
+}
@@ -0,0 +1,112 @@
+package com.billdesk.paymenthsm.client.internal.core;
+
+import com.billdesk.paymenthsm.client.internal.exception.HSMRequestTimeoutException;
+import com.billdesk.paymenthsm.client.internal.model.HSMRequest;
+import com.billdesk.paymenthsm.client.internal.provider.utimaco.UtimacoCommandBuilder;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SingleFlightTest {
+
+    private static final String KEY_BLOCK = "1A4B2C0DE0000000A1B2C3D4E5F60718293A4B5C6D7E8F90123456789ABCDEF0";
+
+    private final UtimacoCommandBuilder commandBuilder = new UtimacoCommandBuilder();
+    private final CommandTemplate template = commandBuilder.hmacTemplate(KEY_BLOCK).forKey("KEY", HSMRequest.Operation.HMAC);
+    private final SingleFlight singleFlight = new SingleFlight();
+    private final AtomicInteger sent = new AtomicInteger();
+    private final List<CompletableFuture<String>> commands = new ArrayList<>();
+
+    private CompletableFuture<String> execute(CommandTemplate template, String data) {
+        return singleFlight.execute(template, data, () -> {
+            sent.incrementAndGet();
+            CompletableFuture<String> command = new CompletableFuture<>();
+            commands.add(command);
+            return command;
+        });
+    }
+
+    @Test
+    void identicalRequestsInFlightShareOneCommand() throws Exception {
+        List<CompletableFuture<String>> callers = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            callers.add(execute(template, "0011223344"));
+        }
+        assertEquals(1, sent.get());
+        assertEquals(1, singleFlight.getInFlight());
+
+        commands.get(0).complete("A1B2");
+        for (CompletableFuture<String> caller : callers) {
+            assertEquals("A1B2", caller.get(1, TimeUnit.SECONDS));
+        }
+        assertEquals(1, singleFlight.getExecuted());
+        assertEquals(4, singleFlight.getCoalesced());
+        assertEquals(0, singleFlight.getInFlight());
+    }
+
+    @Test
+    void resultIsNotKeptAfterTheCommandCompletes() throws Exception {
+        CompletableFuture<String> first = execute(template, "0011223344");
+        commands.get(0).complete("A1B2");
+        assertEquals("A1B2", first.get(1, TimeUnit.SECONDS));
+
+        execute(template, "0011223344");
+        assertEquals(2, sent.get());
+    }
+
+    @Test
+    void otherDataOrAReloadedTemplateGetTheirOwnCommand() {
+        execute(template, "0011223344");
+        execute(template, "5566778899");
+        // a key block reload compiles a new template for the same key name
+        execute(commandBuilder.hmacTemplate(KEY_BLOCK).forKey("KEY", HSMRequest.Operation.HMAC), "0011223344");
+        assertEquals(3, sent.get());
+        assertEquals(0, singleFlight.getCoalesced());
+    }
+
+    @Test
+    void failureReachesEveryCaller() {
+        CompletableFuture<String> leader = execute(template, "0011223344");
+        CompletableFuture<String> follower = execute(template, "0011223344");
+        commands.get(0).completeExceptionally(new HSMRequestTimeoutException("timed out"));
+
+        for (CompletableFuture<String> caller : List.of(leader, follower)) {
+            ExecutionException failure = assertThrows(ExecutionException.class, () -> caller.get(1, TimeUnit.SECONDS));
+            assertInstanceOf(HSMRequestTimeoutException.class, failure.getCause());
+        }
+        assertEquals(0, singleFlight.getInFlight());
+    }
+
+    @Test
+    void aCallerCancellingDoesNotCancelTheOthers() throws Exception {
+        CompletableFuture<String> leader = execute(template, "0011223344");
+        CompletableFuture<String> follower = execute(template, "0011223344");
+        follower.cancel(false);
+
+        commands.get(0).complete("A1B2");
+        assertEquals("A1B2", leader.get(1, TimeUnit.SECONDS));
+        assertTrue(follower.isCancelled());
+    }
+
+    @Test
+    void commandThatThrowsDoesNotStayInFlight() {
+        CompletableFuture<String> failed = singleFlight.execute(template, "0011223344", () -> {
+            throw new IllegalStateException("no connection");
+        });
+        assertTrue(failed.isCompletedExceptionally());
+        assertEquals(0, singleFlight.getInFlight());
+
+        execute(template, "0011223344");
+        assertEquals(1, sent.get());
+    }
+}
@@ -0,0 +1,99 @@
+package com.billdesk.paymenthsm.client.internal.health;
+
+import com.billdesk.paymenthsm.client.internal.config.HSMConfig;
+import com.billdesk.paymenthsm.client.internal.connection.HSMConnectionPool;
+import com.billdesk.paymenthsm.client.internal.core.CorrelationIdGenerator;
+import com.billdesk.paymenthsm.client.internal.enums.Provider;
+import com.billdesk.paymenthsm.client.internal.model.HSMNode;
+import com.billdesk.paymenthsm.client.internal.provider.utimaco.UtimacoCommandBuilder;
+import com.billdesk.paymenthsm.simulator.LatencyDistribution;
+import com.billdesk.paymenthsm.simulator.SimulatorConfig;
+import com.billdesk.paymenthsm.simulator.UtimacoSimulator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HSMHealthMonitorTest {
+
+    private static final String KEY_BLOCK = "1A4B2C0DE0000000A1B2C3D4E5F60718293A4B5C6D7E8F90123456789ABCDEF0";
+
+    private final UtimacoCommandBuilder commandBuilder = new UtimacoCommandBuilder();
+    private UtimacoSimulator hsm;
+    private HSMConnectionPool pool;
+    private HSMHealthMonitor monitor;
+
+    @BeforeEach
+    void start() throws Exception {
+        SimulatorConfig simulatorConfig = new SimulatorConfig();
+        simulatorConfig.setDefaultLatency(LatencyDistribution.fixed(TimeUnit.MILLISECONDS.toMicros(2)));
+        hsm = UtimacoSimulator.start(simulatorConfig);
+        HSMNode node = new HSMNode();
+        node.setIp("127.0.0.1");
+        node.setPort(hsm.getPort());
+        HSMConfig config = new HSMConfig();
+        config.setProvider(Provider.UTIMACO);
+        config.setHsmNodes(List.of(node));
+        config.setMaxConnections(2);
+        config.setIdleConnections(1);
+        pool = new HSMConnectionPool(node, config, commandBuilder);
+        pool.warmupPoolAndMarkHealthyNodes();
+        // only refreshed by the test
+        monitor = new HSMHealthMonitor(() -> List.of(pool), () -> false, TimeUnit.HOURS.toMillis(1));
+    }
+
+    @AfterEach
+    void stop() {
+        monitor.close();
+        pool.shutdown();
+        hsm.close();
+    }
+
+    @Test
+    void snapshotShowsTheCommandsAndTheirLatency() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            pool.executeCommand(commandBuilder.buildHMACCommand(KEY_BLOCK, "0011223344"), CorrelationIdGenerator.commandId())
+                    .get(5, TimeUnit.SECONDS);
+        }
+        HSMHealthSnapshot before = monitor.current();
+        monitor.refresh();
+        HSMHealthSnapshot snapshot = monitor.current();
+        assertNotSame(before, snapshot);
+        assertSame(snapshot, monitor.current());
+
+        assertEquals(HSMHealthSnapshot.Status.UP, snapshot.getStatus());
+        assertEquals(1, snapshot.getHealthyNodes());
+        HSMHealthSnapshot.NodeHealth node = snapshot.getNodes().get(0);
+        assertEquals(HSMHealthSnapshot.NodeHealth.State.UP, node.getState());
+        assertEquals(20, node.getCommandsExecuted());
+        assertEquals(20, node.getLatencySamples());
+        assertTrue(node.getLatencyP50Micros() >= 2_000, "p50 " + node.getLatencyP50Micros());
+        assertTrue(node.getLatencyP50Micros() <= node.getLatencyP99Micros());
+        assertEquals(2, node.getMaxConnections());
+    }
+
+    @Test
+    void stateFollowsThePool() {
+        pool.startSlowStart();
+        monitor.refresh();
+        assertEquals(HSMHealthSnapshot.NodeHealth.State.RAMPING, monitor.current().getNodes().get(0).getState());
+
+        pool.markUnhealthy();
+        monitor.refresh();
+        assertEquals(HSMHealthSnapshot.NodeHealth.State.DOWN, monitor.current().getNodes().get(0).getState());
+        assertEquals(HSMHealthSnapshot.Status.DOWN, monitor.current().getStatus());
+
+        pool.markHealthy();
+        pool.drain();
+        monitor.refresh();
+        assertEquals(HSMHealthSnapshot.NodeHealth.State.DRAINING, monitor.current().getNodes().get(0).getState());
+        assertEquals(0, monitor.current().getHealthyNodes());
+    }
+}
@@ -0,0 +1,69 @@
+package com.billdesk.paymenthsm.client.internal.health;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyHistogramTest {
+
+    @Test
+    void smallValuesGetABucketEach() {
+        for (int micros = 0; micros < 16; micros++) {
+            assertEquals(micros, LatencyHistogram.bucket(micros));
+            assertEquals(micros, LatencyHistogram.upperBound(micros));
+        }
+    }
+
+    @Test
+    void everyValueIsWithinAQuarterBelowItsUpperBound() {
+        int previousBucket = -1;
+        for (long micros = 0; micros < 5_000_000; micros += 1 + micros / 97) {
+            int bucket = LatencyHistogram.bucket(micros);
+            long upper = LatencyHistogram.upperBound(bucket);
+            assertTrue(bucket >= previousBucket, "buckets go down at " + micros);
+            assertTrue(upper >= micros, micros + " above its bound " + upper);
+            assertTrue(upper <= micros + micros / 4 + 1, micros + " too far below its bound " + upper);
+            if (bucket > 0) {
+                assertTrue(LatencyHistogram.upperBound(bucket - 1) < micros, micros + " belongs in an earlier bucket");
+            }
+            previousBucket = bucket;
+        }
+    }
+
+    @Test
+    void powersOfTwoStartANewBucket() {
+        for (int exponent = 4; exponent < 62; exponent++) {
+            long value = 1L << exponent;
+            assertEquals(value - 1, LatencyHistogram.upperBound(LatencyHistogram.bucket(value) - 1));
+        }
+        int last = LatencyHistogram.bucket(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(last));
+        assertTrue(last < new LatencyHistogram().counts().length);
+    }
+
+    @Test
+    void percentilesCoverOnlyTheIntervalBetweenTwoCopies() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(-1, LatencyHistogram.percentile(histogram.counts(), null, 50));
+        for (int millis = 1; millis <= 100; millis++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+        long[] first = histogram.counts();
+        long p50 = LatencyHistogram.percentile(first, null, 50);
+        assertTrue(p50 >= 50_000 && p50 <= 62_500, "p50 " + p50);
+        long p99 = LatencyHistogram.percentile(first, null, 99);
+        assertTrue(p99 >= 99_000 && p99 <= 123_750, "p99 " + p99);
+
+        for (int i = 0; i < 10; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(5));
+        }
+        long[] second = histogram.counts();
+        assertEquals(10, LatencyHistogram.count(second, first));
+        assertEquals(5, LatencyHistogram.percentile(second, first, 99.9));
+        assertEquals(110, LatencyHistogram.count(second, null));
+        assertEquals(-1, LatencyHistogram.percentile(second, second, 50));
+    }
+}
@@ -0,0 +1,160 @@
+package com.billdesk.paymenthsm.client.internal.loadbalancer;
+
+import com.billdesk.paymenthsm.client.internal.config.HSMConfig;
+import com.billdesk.paymenthsm.client.internal.core.CorrelationIdGenerator;
+import com.billdesk.paymenthsm.client.internal.core.HSMResultView;
+import com.billdesk.paymenthsm.client.internal.core.HSMResultViewHandler;
+import com.billdesk.paymenthsm.client.internal.enums.Provider;
+import com.billdesk.paymenthsm.client.internal.model.HSMNode;
+import com.billdesk.paymenthsm.client.internal.provider.utimaco.UtimacoCommandBuilder;
+import com.billdesk.paymenthsm.client.internal.provider.utimaco.UtimacoHSMService;
+import com.billdesk.paymenthsm.simulator.LatencyDistribution;
+import com.billdesk.paymenthsm.simulator.SimulatorConfig;
+import com.billdesk.paymenthsm.simulator.UtimacoSimulator;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LoadBalancerTest {
+
+    private static final String KEY_BLOCK = "1A4B2C0DE0000000A1B2C3D4E5F60718293A4B5C6D7E8F90123456789ABCDEF0";
+    private static final int KEYS = 16;
+
+    private final UtimacoCommandBuilder commandBuilder = new UtimacoCommandBuilder();
+    private final List<UtimacoSimulator> simulators = new ArrayList<>();
+    private HSMConfig config;
+    private LoadBalancer loadBalancer;
+
+    @AfterEach
+    void stop() {
+        if (loadBalancer != null) {
+            loadBalancer.shutdown();
+        }
+        simulators.forEach(UtimacoSimulator::close);
+    }
+
+    private void start(LoadBalancingType type, SimulatorConfig... simulatorConfigs) throws IOException {
+        List<HSMNode> nodes = new ArrayList<>();
+        for (SimulatorConfig simulatorConfig : simulatorConfigs) {
+            UtimacoSimulator simulator = UtimacoSimulator.start(simulatorConfig);
+            simulators.add(simulator);
+            HSMNode node = new HSMNode();
+            node.setIp("127.0.0.1");
+            node.setPort(simulator.getPort());
+            nodes.add(node);
+        }
+        config = new HSMConfig();
+        config.setProvider(Provider.UTIMACO);
+        config.setLoadBalancingType(type);
+        config.setHsmNodes(nodes);
+        config.setMaxConnections(2);
+        config.setIdleConnections(1);
+        config.validate();
+        loadBalancer = new LoadBalancer(config, commandBuilder);
+    }
+
+    private CompletableFuture<String> hmac(String data) {
+        return loadBalancer.executeCommand(commandBuilder.buildHMACCommand(KEY_BLOCK, data), CorrelationIdGenerator.commandId());
+    }
+
+    @Test
+    void keyAffinityRetriesOnTheNextNodeWhenTheOwnerFails() throws Exception {
+        SimulatorConfig failing = new SimulatorConfig();
+        start(LoadBalancingType.CLIENT_SIDE_KEY_AFFINITY, failing, new SimulatorConfig());
+        Map<String, String> keyBlocks = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            keyBlocks.put("KEY_" + i, KEY_BLOCK);
+        }
+        UtimacoHSMService service = new UtimacoHSMService(config, loadBalancer, commandBuilder, keyBlocks);
+        // healthy through startup, then every command on the first node has its connection reset
+        failing.getFaults().setResetRate(1.0);
+
+        for (int i = 0; i < KEYS; i++) {
+            assertNotNull(service.generateHMAC("KEY_" + i, "0011223344").get(10, TimeUnit.SECONDS), "KEY_" + i);
+        }
+        // with 16 keys the first node owns some of them, at least one command failed there and was retried
+        assertTrue(simulators.get(0).getFaultsInjected() > 0);
+        assertEquals(KEYS, simulators.get(1).getCommandsReceived());
+    }
+
+    @Test
+    void viewHandlerGetsTheResultFromTheReceiveBuffer() throws Exception {
+        start(LoadBalancingType.CLIENT_SIDE_ROUND_ROBIN, new SimulatorConfig());
+        String command = commandBuilder.buildHMACCommand(KEY_BLOCK, "0011223344");
+        String expected = commandBuilder.parseResponse(UtimacoSimulator.respond(command));
+
+        CompletableFuture<byte[]> decoded = new CompletableFuture<>();
+        loadBalancer.executeCommand(commandBuilder.hmacTemplate(KEY_BLOCK), "0011223344", CorrelationIdGenerator.commandId(),
+                new HSMResultViewHandler<CompletableFuture<byte[]>>() {
+                    @Override
+                    public void completed(HSMResultView result, CompletableFuture<byte[]> context) {
+                        // copied out before returning, the view is reused for the next response
+                        context.complete(result.decodeHex());
+                    }
+
+                    @Override
+                    public void failed(Throwable error, CompletableFuture<byte[]> context) {
+                        context.completeExceptionally(error);
+                    }
+                }, decoded);
+
+        assertArrayEquals(HSMResultView.of(expected).decodeHex(), decoded.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void keyAffinitySpreadsCommandsWithoutRoutingKey() throws Exception {
+        start(LoadBalancingType.CLIENT_SIDE_KEY_AFFINITY, new SimulatorConfig(), new SimulatorConfig());
+        for (int i = 0; i < 10; i++) {
+            assertNotNull(hmac("0011223344").get(10, TimeUnit.SECONDS));
+        }
+        assertTrue(simulators.get(0).getCommandsReceived() > 0);
+        assertTrue(simulators.get(1).getCommandsReceived() > 0);
+    }
+
+    @Test
+    void weightedSendsEverythingToASingleNodeInSlowStart() throws Exception {
+        start(LoadBalancingType.CLIENT_SIDE_WEIGHTED, new SimulatorConfig());
+        // the node ramps up from slowStartMinWeight, it is still the only one that can take the commands
+        loadBalancer.getNodePools().get(0).startSlowStart();
+        for (int i = 0; i < 50; i++) {
+            assertNotNull(hmac("0011223344").get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(50, simulators.get(0).getCommandsReceived());
+    }
+
+    @Test
+    void drainNodeWaitsForCommandsInFlightAndRemovesTheNode() throws Exception {
+        SimulatorConfig slow = new SimulatorConfig();
+        slow.setDefaultLatency(LatencyDistribution.fixed(TimeUnit.MILLISECONDS.toMicros(60)));
+        // only the drained node is slow, the drain waits for its command and not for the other node's
+        start(LoadBalancingType.CLIENT_SIDE_ROUND_ROBIN, slow, new SimulatorConfig());
+        List<CompletableFuture<String>> inFlight = List.of(hmac("0011223344"), hmac("5566778899"));
+        assertNotNull(inFlight.get(1).get(10, TimeUnit.SECONDS));
+
+        UtimacoSimulator drained = simulators.get(0);
+        CompletableFuture<Void> drain = loadBalancer.drainNode("127.0.0.1", drained.getPort());
+        assertEquals(1, loadBalancer.getNodePools().size());
+        assertFalse(drain.isDone());
+
+        drain.get(10, TimeUnit.SECONDS);
+        for (CompletableFuture<String> command : inFlight) {
+            assertTrue(command.isDone() && !command.isCompletedExceptionally());
+        }
+        assertEquals(1, drained.getCommandsReceived());
+        assertNotNull(hmac("0011223344").get(10, TimeUnit.SECONDS));
+        assertEquals(1, drained.getCommandsReceived());
+    }
+}
@@ -0,0 +1,107 @@
+package com.billdesk.paymenthsm.client.internal.loadbalancer;
+
+import com.billdesk.paymenthsm.client.internal.config.HSMConfig;
+import com.billdesk.paymenthsm.client.internal.connection.HSMConnectionPool;
+import com.billdesk.paymenthsm.client.internal.enums.Provider;
+import com.billdesk.paymenthsm.client.internal.model.HSMNode;
+import com.billdesk.paymenthsm.client.internal.provider.utimaco.UtimacoCommandBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class WeightedSelectorTest {
+
+    private static final Predicate<HSMConnectionPool> ALL = pool -> true;
+    private static final Predicate<HSMConnectionPool> NONE = pool -> false;
+
+    private final List<HSMConnectionPool> pools = new ArrayList<>();
+
+    @AfterEach
+    void stop() {
+        pools.forEach(HSMConnectionPool::shutdown);
+    }
+
+    // pools without connections, selection only looks at the node settings and the predicates
+    private HSMConnectionPool pool(int port, int weight, String zone, int tier) {
+        HSMNode node = new HSMNode();
+        node.setIp("127.0.0.1");
+        node.setPort(port);
+        node.setWeight(weight);
+        node.setZone(zone);
+        node.setTier(tier);
+        HSMConfig config = new HSMConfig();
+        config.setProvider(Provider.UTIMACO);
+        config.setHsmNodes(List.of(node));
+        config.setIdleConnections(0);
+        HSMConnectionPool pool = new HSMConnectionPool(node, config, new UtimacoCommandBuilder());
+        pools.add(pool);
+        return pool;
+    }
+
+    @Test
+    void splitsTrafficByWeight() {
+        HSMConnectionPool heavy = pool(1501, 5, null, 0);
+        HSMConnectionPool medium = pool(1502, 3, null, 0);
+        HSMConnectionPool light = pool(1503, 2, null, 0);
+        WeightedSelector selector = new WeightedSelector(pools, null);
+
+        Map<HSMConnectionPool, Integer> counts = new IdentityHashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            counts.merge(selector.select(ALL, ALL, NONE), 1, Integer::sum);
+        }
+        assertEquals(500, counts.get(heavy));
+        assertEquals(300, counts.get(medium));
+        assertEquals(200, counts.get(light));
+    }
+
+    @Test
+    void prefersTheLocalZoneAndLowerTiers() {
+        HSMConnectionPool local = pool(1501, 1, "zone-a", 0);
+        HSMConnectionPool localBackup = pool(1502, 1, "zone-a", 1);
+        HSMConnectionPool remote = pool(1503, 10, "zone-b", 0);
+        WeightedSelector selector = new WeightedSelector(pools, "zone-a");
+
+        for (int i = 0; i < 10; i++) {
+            assertSame(local, selector.select(ALL, ALL, NONE));
+        }
+        Predicate<HSMConnectionPool> localDown = pool -> pool != local;
+        assertSame(localBackup, selector.select(localDown, ALL, NONE));
+        // a saturated group is left for the next one with free connections
+        assertSame(localBackup, selector.select(ALL, ALL, pool -> pool == local));
+        assertSame(remote, selector.select(pool -> pool == remote, ALL, NONE));
+        // everything saturated, the most preferred node still takes it
+        assertSame(local, selector.select(ALL, ALL, ALL));
+    }
+
+    @Test
+    void fallsBackToARampingNodeWhenNoneAcceptsTraffic() {
+        HSMConnectionPool only = pool(1501, 1, null, 0);
+        WeightedSelector selector = new WeightedSelector(pools, null);
+
+        assertSame(only, selector.select(ALL, NONE, NONE));
+        assertNull(selector.select(NONE, ALL, NONE));
+    }
+
+    @Test
+    void prefersASaturatedNodeOverARampingOne() {
+        HSMConnectionPool ramping = pool(1501, 1, null, 0);
+        HSMConnectionPool saturated = pool(1502, 1, null, 0);
+        WeightedSelector selector = new WeightedSelector(pools, null);
+
+        Set<HSMConnectionPool> accepting = Set.of(saturated);
+        for (int i = 0; i < 4; i++) {
+            assertSame(saturated, selector.select(ALL, accepting::contains, ALL));
+        }
+        assertEquals(Set.of(ramping, saturated), Set.of(selector.select(ALL, NONE, ALL), selector.select(ALL, NONE, ALL)));
+    }
+}
@@ -0,0 +1,42 @@
+package com.billdesk.paymenthsm.client.internal.provider.utimaco;
+
+import com.billdesk.paymenthsm.client.internal.core.HSMResultView;
+import com.billdesk.paymenthsm.client.internal.exception.HSMExecutionException;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class UtimacoCommandBuilderTest {
+
+    private final UtimacoCommandBuilder commandBuilder = new UtimacoCommandBuilder();
+
+    @Test
+    void parsesTheFirstFieldOfAReply() {
+        String reply = "<49B#A1B2C3#^t1#>";
+        assertEquals("A1B2C3", commandBuilder.parseResponse(reply));
+        assertEquals("A1B2C3", commandBuilder.parseResponse(reply.toCharArray(), 0, reply.length()));
+        assertEquals("t1", commandBuilder.extractContextTag(reply.toCharArray(), 0, reply.length()));
+    }
+
+    @Test
+    void parsesTheResultFieldIntoAViewOverTheFrame() {
+        char[] buffer = "xx<49B#A1B2C3#^t1#>yy".toCharArray();
+        HSMResultView view = new HSMResultView();
+        commandBuilder.parseResponse(buffer, 2, buffer.length - 2, view);
+        assertEquals("A1B2C3", view.toString());
+        // read in place, a later frame in the same buffer shows through
+        buffer[11] = 'F';
+        assertEquals("A1B2F3", view.toString());
+    }
+
+    @Test
+    void errorReplyFailsInsteadOfReturningTheErrorCode() {
+        String reply = "<ER#PROXY_OVERLOADED#^t1#>";
+        HSMExecutionException error = assertThrows(HSMExecutionException.class, () -> commandBuilder.parseResponse(reply));
+        assertEquals("HSM returned error PROXY_OVERLOADED", error.getMessage());
+        assertThrows(HSMExecutionException.class, () -> commandBuilder.parseResponse(reply.toCharArray(), 0, reply.length()));
+        // the tag is still there to fail the right command
+        assertEquals("t1", commandBuilder.extractContextTag(reply.toCharArray(), 0, reply.length()));
+    }
+}
@@ -0,0 +1,243 @@
+package com.billdesk.paymenthsm.client.internal.stream;
+
+import com.billdesk.paymenthsm.client.internal.exception.HSMRequestTimeoutException;
+import com.billdesk.paymenthsm.client.internal.model.HSMRequest;
+import com.billdesk.paymenthsm.client.internal.model.HSMResult;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HSMStreamPublisherTest {
+
+    // futures handed out by the executor, completed by the test
+    private final List<CompletableFuture<String>> sent = new ArrayList<>();
+    private final Function<HSMRequest, CompletableFuture<String>> executor = request -> {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        sent.add(future);
+        return future;
+    };
+
+    private int unanswered() {
+        return (int) sent.stream().filter(future -> !future.isDone()).count();
+    }
+
+    private static List<HSMRequest> requests(int count) {
+        List<HSMRequest> requests = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            requests.add(HSMRequest.hmac("KEY", String.valueOf(i)));
+        }
+        return requests;
+    }
+
+    private static List<String> data(List<HSMResult> results) {
+        List<String> data = new ArrayList<>();
+        for (HSMResult result : results) {
+            data.add(result.getRequest().getData());
+        }
+        return data;
+    }
+
+    @Test
+    void orderedStreamEmitsInRequestOrder() {
+        ListPublisher upstream = new ListPublisher(requests(3));
+        RecordingSubscriber results = new RecordingSubscriber(Long.MAX_VALUE);
+        new HSMStreamPublisher(upstream, executor, () -> 10, true).subscribe(results);
+
+        assertEquals(3, sent.size());
+        sent.get(2).complete("R2");
+        sent.get(0).complete("R0");
+        assertEquals(List.of("0"), data(results.received));
+        sent.get(1).complete("R1");
+
+        assertEquals(List.of("0", "1", "2"), data(results.received));
+        assertEquals("R2", results.received.get(2).getValue());
+        assertTrue(results.completed);
+    }
+
+    @Test
+    void unorderedStreamEmitsInCompletionOrder() {
+        ListPublisher upstream = new ListPublisher(requests(3));
+        RecordingSubscriber results = new RecordingSubscriber(Long.MAX_VALUE);
+        new HSMStreamPublisher(upstream, executor, () -> 10, false).subscribe(results);
+
+        sent.get(2).complete("R2");
+        sent.get(0).complete("R0");
+        sent.get(1).complete("R1");
+
+        assertEquals(List.of("2", "0", "1"), data(results.received));
+        assertTrue(results.completed);
+    }
+
+    @Test
+    void failedRequestIsDeliveredAsAResultAndTheStreamGoesOn() {
+        ListPublisher upstream = new ListPublisher(requests(2));
+        RecordingSubscriber results = new RecordingSubscriber(Long.MAX_VALUE);
+        new HSMStreamPublisher(upstream, executor, () -> 10, true).subscribe(results);
+
+        HSMRequestTimeoutException timeout = new HSMRequestTimeoutException("timed out");
+        sent.get(0).completeExceptionally(new CompletionException(timeout));
+        sent.get(1).complete("R1");
+
+        HSMResult failed = results.received.get(0);
+        assertFalse(failed.isSuccess());
+        assertNull(failed.getValue());
+        // unwrapped from the CompletionException
+        assertSame(timeout, failed.getError());
+        assertTrue(results.received.get(1).isSuccess());
+        assertNull(results.error);
+        assertTrue(results.completed);
+    }
+
+    @Test
+    void executorThatThrowsFailsOnlyItsRequest() {
+        ListPublisher upstream = new ListPublisher(requests(1));
+        RecordingSubscriber results = new RecordingSubscriber(Long.MAX_VALUE);
+        new HSMStreamPublisher(upstream, request -> {
+            throw new IllegalStateException("no key");
+        }, () -> 10, true).subscribe(results);
+
+        assertInstanceOf(IllegalStateException.class, results.received.get(0).getError());
+        assertTrue(results.completed);
+    }
+
+    @Test
+    void requestsArePulledOnlyWithinTheFreeCapacity() {
+        ListPublisher upstream = new ListPublisher(requests(10));
+        RecordingSubscriber results = new RecordingSubscriber(Long.MAX_VALUE);
+        // two slots, taken by this stream's own unanswered requests
+        new HSMStreamPublisher(upstream, executor, () -> 2 - unanswered(), true).subscribe(results);
+        assertEquals(2, upstream.requested);
+
+        sent.get(0).complete("R0");
+        assertEquals(3, upstream.requested);
+    }
+
+    @Test
+    void oneRequestGoesOutEvenWithNoFreeCapacity() {
+        ListPublisher upstream = new ListPublisher(requests(10));
+        RecordingSubscriber results = new RecordingSubscriber(Long.MAX_VALUE);
+        new HSMStreamPublisher(upstream, executor, () -> 0, true).subscribe(results);
+        assertEquals(1, upstream.requested);
+
+        sent.get(0).complete("R0");
+        assertEquals(2, upstream.requested);
+        assertEquals(1, results.received.size());
+    }
+
+    @Test
+    void requestsArePulledOnlyForDownstreamDemand() {
+        ListPublisher upstream = new ListPublisher(requests(10));
+        RecordingSubscriber results = new RecordingSubscriber(1);
+        new HSMStreamPublisher(upstream, executor, () -> 10, true).subscribe(results);
+        assertEquals(1, upstream.requested);
+
+        sent.get(0).complete("R0");
+        assertEquals(1, results.received.size());
+        assertEquals(1, upstream.requested);
+
+        results.subscription.request(2);
+        assertEquals(3, upstream.requested);
+    }
+
+    @Test
+    void nonPositiveRequestFailsTheStreamAndCancelsUpstream() {
+        ListPublisher upstream = new ListPublisher(requests(10));
+        RecordingSubscriber results = new RecordingSubscriber(0);
+        new HSMStreamPublisher(upstream, executor, () -> 10, true).subscribe(results);
+
+        results.subscription.request(0);
+        assertInstanceOf(IllegalArgumentException.class, results.error);
+        assertTrue(upstream.cancelled);
+        assertEquals(0, upstream.requested);
+    }
+
+    /**
+     * Emits its items synchronously on request, then completes.
+     */
+    private static final class ListPublisher implements Flow.Publisher<HSMRequest> {
+        private final List<HSMRequest> items;
+        private long requested;
+        private boolean cancelled;
+
+        ListPublisher(List<HSMRequest> items) {
+            this.items = items;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super HSMRequest> subscriber) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                private int next;
+                private boolean emitting;
+
+                @Override
+                public void request(long n) {
+                    requested += n;
+                    if (emitting) {
+                        return;
+                    }
+                    emitting = true;
+                    while (!cancelled && next < Math.min(items.size(), requested)) {
+                        subscriber.onNext(items.get(next++));
+                    }
+                    emitting = false;
+                    if (!cancelled && next == items.size()) {
+                        cancelled = true;
+                        subscriber.onComplete();
+                    }
+                }
+
+                @Override
+                public void cancel() {
+                    cancelled = true;
+                }
+            });
+        }
+    }
+
+    private static final class RecordingSubscriber implements Flow.Subscriber<HSMResult> {
+        private final long initialDemand;
+        private final List<HSMResult> received = new ArrayList<>();
+        private Flow.Subscription subscription;
+        private Throwable error;
+        private boolean completed;
+
+        RecordingSubscriber(long initialDemand) {
+            this.initialDemand = initialDemand;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (initialDemand > 0) {
+                subscription.request(initialDemand);
+            }
+        }
+
+        @Override
+        public void onNext(HSMResult item) {
+            received.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completed = true;
+        }
+    }
+}
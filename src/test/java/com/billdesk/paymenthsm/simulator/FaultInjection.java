@@ -0,0 +1,45 @@
+package com.billdesk.paymenthsm.simulator;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Probabilities (0..1) of a fault being injected for a command instead of a normal reply.
+ */
+@Getter
+@Setter
+public class FaultInjection {
+
+    public enum Fault {
+        NONE, DROP, RESET, STALL, GARBAGE
+    }
+
+    // command is swallowed, client sees a request timeout
+    private double dropRate;
+    // connection is reset (RST) instead of replying
+    private double resetRate;
+    // reply is delayed by stallMillis on top of the normal latency
+    private double stallRate;
+    private long stallMillis = 1000;
+    // a malformed frame is written instead of the reply
+    private double garbageRate;
+
+    public Fault next() {
+        double roll = ThreadLocalRandom.current().nextDouble();
+        if ((roll -= dropRate) < 0) {
+            return Fault.DROP;
+        }
+        if ((roll -= resetRate) < 0) {
+            return Fault.RESET;
+        }
+        if ((roll -= stallRate) < 0) {
+            return Fault.STALL;
+        }
+        if ((roll -= garbageRate) < 0) {
+            return Fault.GARBAGE;
+        }
+        return Fault.NONE;
+    }
+}
@@ -0,0 +1,57 @@
+package com.billdesk.paymenthsm.simulator;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Per-command service time of the simulated HSM, in microseconds.
+ */
+@FunctionalInterface
+public interface LatencyDistribution {
+
+    long nextMicros();
+
+    static LatencyDistribution none() {
+        return () -> 0L;
+    }
+
+    static LatencyDistribution fixed(long micros) {
+        return () -> micros;
+    }
+
+    static LatencyDistribution uniform(long minMicros, long maxMicros) {
+        if (maxMicros < minMicros) {
+            throw new IllegalArgumentException("maxMicros must be >= minMicros");
+        }
+        return () -> minMicros + ThreadLocalRandom.current().nextLong(maxMicros - minMicros + 1);
+    }
+
+    static LatencyDistribution exponential(long meanMicros) {
+        return () -> (long) (-meanMicros * Math.log(1.0 - ThreadLocalRandom.current().nextDouble()));
+    }
+
+    /**
+     * Mostly {@code base}, but with probability {@code tailProbability} the command takes {@code tail} instead.
+     * Handy to reproduce the occasional slow HSM operation.
+     */
+    static LatencyDistribution withTail(LatencyDistribution base, double tailProbability, LatencyDistribution tail) {
+        return () -> ThreadLocalRandom.current().nextDouble() < tailProbability ? tail.nextMicros() : base.nextMicros();
+    }
+
+    static LatencyDistribution parse(String spec) {
+        String[] parts = spec.trim().split(":");
+        switch (parts[0].toLowerCase()) {
+            case "none":
+                return none();
+            case "fixed":
+                return fixed(Long.parseLong(parts[1]));
+            case "uniform":
+                return uniform(Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+            case "exp":
+            case "exponential":
+                return exponential(Long.parseLong(parts[1]));
+            default:
+                throw new IllegalArgumentException("Unknown latency distribution " + spec
+                        + ", expected none, fixed:<us>, uniform:<minUs>:<maxUs> or exp:<meanUs>");
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.billdesk.paymenthsm.simulator;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A throwaway self-signed certificate for 127.0.0.1, made with the JDK's keytool so no extra dependency is needed.
+ * The server side goes to {@link UtimacoSimulator#startTls}, the trust store to {@code hsm.client.tls-trust-store}.
+ */
+public class SelfSignedTls {
+
+    public static final String PASSWORD = "simulator";
+
+    private final Path directory;
+    private final Path keyStore;
+    private final Path trustStore;
+
+    private SelfSignedTls(Path directory) {
+        this.directory = directory;
+        this.keyStore = directory.resolve("hsm.p12");
+        this.trustStore = directory.resolve("trust.p12");
+    }
+
+    public static SelfSignedTls create() throws IOException {
+        SelfSignedTls tls = new SelfSignedTls(Files.createTempDirectory("hsm-tls"));
+        Path certificate = tls.directory.resolve("hsm.crt");
+        keytool("-genkeypair", "-alias", "hsm", "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=localhost", "-ext", "san=ip:127.0.0.1", "-validity", "2",
+                "-keystore", tls.keyStore.toString(), "-storetype", "PKCS12", "-storepass", PASSWORD, "-keypass", PASSWORD);
+        keytool("-exportcert", "-alias", "hsm", "-keystore", tls.keyStore.toString(), "-storepass", PASSWORD,
+                "-file", certificate.toString());
+        keytool("-importcert", "-noprompt", "-alias", "hsm", "-file", certificate.toString(),
+                "-keystore", tls.trustStore.toString(), "-storetype", "PKCS12", "-storepass", PASSWORD);
+        return tls;
+    }
+
+    public SSLContext serverContext() throws IOException, GeneralSecurityException {
+        KeyStore store = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(keyStore)) {
+            store.load(in, PASSWORD.toCharArray());
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(store, PASSWORD.toCharArray());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+        return context;
+    }
+
+    public Path getTrustStore() {
+        return trustStore;
+    }
+
+    private static void keytool(String... args) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "keytool").toString());
+        command.addAll(List.of(args));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        try {
+            String output = new String(process.getInputStream().readAllBytes());
+            if (process.waitFor() != 0) {
+                throw new IOException("keytool failed: " + output);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running keytool", e);
+        }
+    }
+}
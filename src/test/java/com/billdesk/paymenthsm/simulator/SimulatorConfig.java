@@ -0,0 +1,29 @@
+package com.billdesk.paymenthsm.simulator;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+@Getter
+@Setter
+public class SimulatorConfig {
+    // 0 picks an ephemeral port, read it back from UtimacoSimulator.getPort()
+    private int port;
+    private String bindAddress = "127.0.0.1";
+    // number of commands the simulated HSM works on at the same time, the rest queue
+    private int maxConcurrentCommands = 64;
+    // when false every connection is served strictly one command at a time, in order
+    private boolean pipelining = true;
+    // when pipelining, each reply gets an extra random delay up to this value so replies overtake each other
+    private long outOfOrderJitterMicros;
+    private LatencyDistribution defaultLatency = LatencyDistribution.none();
+    // latency per command code e.g. 5D, 39B, 00
+    private Map<String, LatencyDistribution> commandLatencies = new HashMap<>();
+    private FaultInjection faults = new FaultInjection();
+
+    public LatencyDistribution latencyFor(String commandCode) {
+        return commandLatencies.getOrDefault(commandCode, defaultLatency);
+    }
+}
@@ -0,0 +1,370 @@
+package com.billdesk.paymenthsm.simulator;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal in-process stand-in for a Utimaco payment HSM speaking the framing produced by
+ * {@code UtimacoCommandBuilder}. It answers {@code <5D#...>} (CAVV), {@code <39B#...>} (HMAC) and
+ * {@code <00#>} (ping), echoes the {@code #^tag#} context tag and returns results that are a pure
+ * function of the command, so tests can assert on them.
+ * <p>
+ * Can also be run standalone, see {@link #main(String[])}.
+ */
+@Slf4j
+public class UtimacoSimulator implements AutoCloseable {
+
+    private static final byte[] GARBAGE_FRAME = "<??GARBAGE??>\n".getBytes(StandardCharsets.US_ASCII);
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final SimulatorConfig config;
+    private final ServerSocket serverSocket;
+    private final ExecutorService hsmWorkers;
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+    private final Thread acceptThread;
+    private volatile boolean running = true;
+
+    private final AtomicLong commandsReceived = new AtomicLong();
+    private final AtomicLong repliesSent = new AtomicLong();
+    private final AtomicLong faultsInjected = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final AtomicInteger connectionsAccepted = new AtomicInteger();
+
+    public UtimacoSimulator(SimulatorConfig config) throws IOException {
+        this(config, new ServerSocket());
+    }
+
+    protected UtimacoSimulator(SimulatorConfig config, ServerSocket serverSocket) throws IOException {
+        this.config = config;
+        this.serverSocket = serverSocket;
+        this.serverSocket.setReuseAddress(true);
+        this.serverSocket.bind(new java.net.InetSocketAddress(InetAddress.getByName(config.getBindAddress()), config.getPort()), 512);
+        AtomicInteger workerId = new AtomicInteger();
+        this.hsmWorkers = Executors.newFixedThreadPool(Math.max(1, config.getMaxConcurrentCommands()), runnable -> {
+            Thread thread = new Thread(runnable, "HSM-Simulator-Worker-" + workerId.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.acceptThread = new Thread(this::acceptLoop, "HSM-Simulator-Acceptor-" + getPort());
+        this.acceptThread.setDaemon(true);
+        this.acceptThread.start();
+        log.info("Utimaco simulator listening on {}:{}", config.getBindAddress(), getPort());
+    }
+
+    public static UtimacoSimulator start(SimulatorConfig config) throws IOException {
+        return new UtimacoSimulator(config);
+    }
+
+    /**
+     * Starts a simulator that only accepts TLS, handshaking with the server certificate of {@code sslContext}.
+     */
+    public static UtimacoSimulator startTls(SimulatorConfig config, SSLContext sslContext) throws IOException {
+        return new UtimacoSimulator(config, sslContext.getServerSocketFactory().createServerSocket());
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public SimulatorConfig getConfig() {
+        return config;
+    }
+
+    public long getCommandsReceived() {
+        return commandsReceived.get();
+    }
+
+    public long getRepliesSent() {
+        return repliesSent.get();
+    }
+
+    public long getFaultsInjected() {
+        return faultsInjected.get();
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight.get();
+    }
+
+    public int getConnectionsAccepted() {
+        return connectionsAccepted.get();
+    }
+
+    public int getOpenConnections() {
+        return clients.size();
+    }
+
+    /**
+     * Abruptly resets every client connection, as a rebooting HSM would.
+     */
+    public void resetAllConnections() {
+        for (Socket client : clients) {
+            reset(client);
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket client = serverSocket.accept();
+                client.setTcpNoDelay(true);
+                clients.add(client);
+                connectionsAccepted.incrementAndGet();
+                Thread reader = new Thread(() -> serve(client), "HSM-Simulator-Conn-" + client.getPort());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (running) {
+                    log.warn("Simulator failed to accept connection", e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket client) {
+        try (InputStream in = client.getInputStream()) {
+            OutputStream out = client.getOutputStream();
+            StringBuilder frame = new StringBuilder(256);
+            byte[] buffer = new byte[4096];
+            int read;
+            while (running && (read = in.read(buffer)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    char c = (char) (buffer[i] & 0xFF);
+                    if (frame.length() == 0 && c != '<') {
+                        continue;
+                    }
+                    frame.append(c);
+                    if (c == '>') {
+                        String command = frame.toString();
+                        frame.setLength(0);
+                        onCommand(client, out, command);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.debug("Simulator connection {} closed: {}", client.getPort(), e.getMessage());
+        } finally {
+            clients.remove(client);
+            closeQuietly(client);
+        }
+    }
+
+    private void onCommand(Socket client, OutputStream out, String command) {
+        commandsReceived.incrementAndGet();
+        if (config.isPipelining()) {
+            hsmWorkers.execute(() -> process(client, out, command, config.getOutOfOrderJitterMicros()));
+        } else {
+            process(client, out, command, 0);
+        }
+    }
+
+    private void process(Socket client, OutputStream out, String command, long jitterMicros) {
+        int current = inFlight.incrementAndGet();
+        maxInFlight.accumulateAndGet(current, Math::max);
+        try {
+            String commandCode = commandCode(command);
+            FaultInjection.Fault fault = config.getFaults().next();
+            long delayMicros = config.latencyFor(commandCode).nextMicros();
+            if (jitterMicros > 0) {
+                delayMicros += ThreadLocalRandom.current().nextLong(jitterMicros + 1);
+            }
+            if (fault == FaultInjection.Fault.STALL) {
+                delayMicros += TimeUnit.MILLISECONDS.toMicros(config.getFaults().getStallMillis());
+            }
+            pause(delayMicros);
+
+            switch (fault) {
+                case DROP:
+                    faultsInjected.incrementAndGet();
+                    return;
+                case RESET:
+                    faultsInjected.incrementAndGet();
+                    reset(client);
+                    return;
+                case GARBAGE:
+                    faultsInjected.incrementAndGet();
+                    write(out, GARBAGE_FRAME);
+                    return;
+                case STALL:
+                    faultsInjected.incrementAndGet();
+                    break;
+                default:
+                    break;
+            }
+            write(out, (respond(command, commandCode) + "\n").getBytes(StandardCharsets.US_ASCII));
+            repliesSent.incrementAndGet();
+        } catch (IOException e) {
+            log.debug("Simulator failed to reply on {}: {}", client.getPort(), e.getMessage());
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Builds the reply for a single framed command. Exposed so callers can compute expected results.
+     */
+    public static String respond(String command) {
+        return respond(command, commandCode(command));
+    }
+
+    private static String respond(String command, String commandCode) {
+        String tag = contextTag(command);
+        String tagSuffix = tag == null ? "#>" : "#^" + tag + "#>";
+        switch (commandCode) {
+            case "5D":
+                return "<6D#" + digest(stripContextTag(command)).substring(0, 28) + tagSuffix;
+            case "39B":
+                return "<49B#" + digest(stripContextTag(command)) + tagSuffix;
+            case "00":
+                return "<00#00" + tagSuffix;
+            default:
+                return "<ER#UNSUPPORTED_" + commandCode + tagSuffix;
+        }
+    }
+
+    static String commandCode(String command) {
+        int end = command.indexOf('#');
+        if (end < 0) {
+            end = command.indexOf('>');
+        }
+        return end > 1 ? command.substring(1, end) : "";
+    }
+
+    static String contextTag(String command) {
+        int start = command.lastIndexOf("#^");
+        if (start < 0) {
+            return null;
+        }
+        int end = command.indexOf('#', start + 2);
+        return end > start + 2 ? command.substring(start + 2, end) : null;
+    }
+
+    private static String stripContextTag(String command) {
+        int start = command.lastIndexOf("#^");
+        return start < 0 ? command : command.substring(0, start) + "#>";
+    }
+
+    private static String digest(String value) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            char[] hex = new char[hash.length * 2];
+            for (int i = 0; i < hash.length; i++) {
+                hex[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+                hex[i * 2 + 1] = HEX[hash[i] & 0xF];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static void write(OutputStream out, byte[] bytes) throws IOException {
+        synchronized (out) {
+            out.write(bytes);
+            out.flush();
+        }
+    }
+
+    private static void pause(long micros) {
+        if (micros <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.MICROSECONDS.sleep(micros);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void reset(Socket client) {
+        try {
+            client.setSoLinger(true, 0);
+        } catch (SocketException ignored) {
+        }
+        closeQuietly(client);
+        clients.remove(client);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+        }
+        for (Socket client : clients) {
+            closeQuietly(client);
+        }
+        clients.clear();
+        hsmWorkers.shutdownNow();
+    }
+
+    /**
+     * Standalone mode, arguments are key=value pairs:
+     * <pre>
+     * port=1500 bind=0.0.0.0 concurrency=64 pipelining=true jitterUs=0
+     * latency=fixed:2000 latency.5D=uniform:1000:4000 latency.39B=exp:800
+     * drop=0.001 reset=0 stall=0.001 stallMs=2000 garbage=0
+     * </pre>
+     */
+    public static void main(String[] args) throws Exception {
+        SimulatorConfig config = new SimulatorConfig();
+        config.setPort(1500);
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected key=value but got " + arg);
+            }
+            String key = arg.substring(0, eq);
+            String value = arg.substring(eq + 1);
+            if (key.startsWith("latency.")) {
+                config.getCommandLatencies().put(key.substring("latency.".length()), LatencyDistribution.parse(value));
+                continue;
+            }
+            switch (key) {
+                case "port" -> config.setPort(Integer.parseInt(value));
+                case "bind" -> config.setBindAddress(value);
+                case "concurrency" -> config.setMaxConcurrentCommands(Integer.parseInt(value));
+                case "pipelining" -> config.setPipelining(Boolean.parseBoolean(value));
+                case "jitterUs" -> config.setOutOfOrderJitterMicros(Long.parseLong(value));
+                case "latency" -> config.setDefaultLatency(LatencyDistribution.parse(value));
+                case "drop" -> config.getFaults().setDropRate(Double.parseDouble(value));
+                case "reset" -> config.getFaults().setResetRate(Double.parseDouble(value));
+                case "stall" -> config.getFaults().setStallRate(Double.parseDouble(value));
+                case "stallMs" -> config.getFaults().setStallMillis(Long.parseLong(value));
+                case "garbage" -> config.getFaults().setGarbageRate(Double.parseDouble(value));
+                default -> throw new IllegalArgumentException("Unknown simulator option " + key);
+            }
+        }
+        UtimacoSimulator simulator = start(config);
+        Runtime.getRuntime().addShutdownHook(new Thread(simulator::close));
+        Thread.currentThread().join();
+    }
+}